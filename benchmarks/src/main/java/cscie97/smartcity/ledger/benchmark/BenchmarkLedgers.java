@@ -0,0 +1,97 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cscie97.smartcity.ledger.Ledger;
+import cscie97.smartcity.ledger.LedgerConstants;
+import cscie97.smartcity.ledger.LedgerException;
+import cscie97.smartcity.ledger.SealingPolicy;
+import cscie97.smartcity.ledger.Transaction;
+import cscie97.smartcity.ledger.TransactionResult;
+
+/**
+ * Builds the ledgers the benchmarks run against: a number of accounts funded
+ * evenly from the master account, and a chain of full blocks
+ */
+final class BenchmarkLedgers implements LedgerConstants {
+
+	/**
+	 * The number of transactions submitted to the ledger in one batch while it is built
+	 */
+	private static final int SETUP_BATCH = 10000;
+
+	private BenchmarkLedgers () {
+	}
+
+	/**
+	 * @return the address of the account with the given index
+	 */
+	static String address (int index) {
+		return ("a" + index);
+	}
+
+	/**
+	 * Creates a ledger with the given number of accounts, each funded with an even
+	 * share of the currency, less the fees
+	 * @param accounts The number of accounts
+	 * @param blockSize The number of transactions in a block
+	 * @return the ledger, with all the funding transactions committed
+	 * @throws LedgerException if the ledger cannot be built
+	 */
+	static Ledger fundedLedger (int accounts, int blockSize) throws LedgerException {
+		Ledger ret = new Ledger ("benchmark", "benchmark")
+				.withSealingPolicy (new SealingPolicy ().withMaxTransactions (blockSize));
+		for (int iA = 0; iA < accounts; iA ++) {
+			ret.createAccount (address (iA));
+		}
+
+		int share = Integer.MAX_VALUE / (accounts + 1) - MINIMUM_FEE;
+		List<Transaction> batch = new ArrayList<> (SETUP_BATCH);
+		for (int iA = 0; iA < accounts; iA ++) {
+			batch.add (new Transaction ("fund-" + iA, MASTER_ACCOUNT, address (iA), share).withFee (MINIMUM_FEE));
+			if (batch.size () == SETUP_BATCH) {
+				process (ret, batch);
+			}
+		}
+		process (ret, batch);
+
+		ret.seal ();
+		return (ret);
+	}
+
+	/**
+	 * Extends the chain of a funded ledger with full blocks of transfers between its
+	 * accounts, in a ring; the transactions are identified by "tx-" and their index
+	 * @param ledger The ledger
+	 * @param accounts The number of accounts of the ledger
+	 * @param transactions The number of transactions added
+	 * @throws LedgerException if a transaction is rejected
+	 */
+	static void extendChain (Ledger ledger, int accounts, int transactions) throws LedgerException {
+		List<Transaction> batch = new ArrayList<> (SETUP_BATCH);
+		for (int iT = 0; iT < transactions; iT ++) {
+			batch.add (new Transaction ("tx-" + iT, address (iT % accounts), address ((iT + 1) % accounts), MINIMUM_FEE)
+					.withFee (MINIMUM_FEE));
+			if (batch.size () == SETUP_BATCH) {
+				process (ledger, batch);
+			}
+		}
+		process (ledger, batch);
+
+		ledger.seal ();
+	}
+
+	/**
+	 * Processes a batch of transactions, and clears it
+	 * @throws LedgerException the error of the first rejected transaction
+	 */
+	private static void process (Ledger ledger, List<Transaction> batch) throws LedgerException {
+		for (TransactionResult result: ledger.processTransactions (batch)) {
+			if (!result.isAccepted ()) {
+				throw result.getError ();
+			}
+		}
+		batch.clear ();
+	}
+}
@@ -0,0 +1,73 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cscie97.smartcity.ledger.Account;
+import cscie97.smartcity.ledger.Block;
+import cscie97.smartcity.ledger.LedgerConstants;
+import cscie97.smartcity.ledger.LedgerException;
+import cscie97.smartcity.ledger.Transaction;
+
+/**
+ * The construction of a block from scratch, as the genesis block of a ledger: the
+ * block is created, its accounts are added, the transactions are processed into
+ * it and its hash is computed
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class BlockBenchmark implements LedgerConstants {
+
+	@Param ({ "16", "1024" })
+	public int accounts;
+
+	@Param ({ "1", "100", "1000" })
+	public int transactions;
+
+	private String[] mAddresses;
+
+	private Transaction[] mTransactions;
+
+	@Setup (Level.Trial)
+	public void setUp () {
+		mAddresses = new String [accounts];
+		for (int iA = 0; iA < accounts; iA ++) {
+			mAddresses[iA] = BenchmarkLedgers.address (iA);
+		}
+		mTransactions = new Transaction [transactions];
+		for (int iT = 0; iT < transactions; iT ++) {
+			mTransactions[iT] = new Transaction ("tx-" + iT, MASTER_ACCOUNT, mAddresses[iT % accounts], MINIMUM_FEE)
+					.withFee (MINIMUM_FEE);
+		}
+	}
+
+	@Benchmark
+	public Block buildBlock () throws LedgerException {
+		Block ret = new Block (null, "benchmark");
+		ret.addAccount (new Account (MASTER_ACCOUNT).withBalance (Integer.MAX_VALUE));
+		for (String address: mAddresses) {
+			ret.addAccount (new Account (address));
+		}
+		for (Transaction transaction: mTransactions) {
+			ret.processTransaction (transaction);
+		}
+		ret.updateHash ();
+		return (ret);
+	}
+}
@@ -0,0 +1,70 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cscie97.smartcity.ledger.Ledger;
+import cscie97.smartcity.ledger.LedgerException;
+import cscie97.smartcity.ledger.Transaction;
+
+/**
+ * The latency of {@link Ledger#getTransaction(String)}: the lookup of a random
+ * committed transaction, against chains of growing numbers of blocks
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class GetTransactionBenchmark {
+
+	private static final int ACCOUNTS = 1000;
+
+	private static final int BLOCK_SIZE = 10;
+
+	@Param ({ "100", "10000", "100000" })
+	public int blocks;
+
+	private Ledger mLedger;
+
+	private String[] mIds;
+
+	private SplittableRandom mRandom;
+
+	@Setup (Level.Trial)
+	public void setUp () throws LedgerException {
+		mLedger = BenchmarkLedgers.fundedLedger (ACCOUNTS, BLOCK_SIZE);
+		int transactions = blocks * BLOCK_SIZE;
+		BenchmarkLedgers.extendChain (mLedger, ACCOUNTS, transactions);
+		mIds = new String [transactions];
+		for (int iT = 0; iT < transactions; iT ++) {
+			mIds[iT] = "tx-" + iT;
+		}
+		mRandom = new SplittableRandom (97);
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown () throws LedgerException {
+		mLedger.close ();
+	}
+
+	@Benchmark
+	public Transaction getTransaction () throws LedgerException {
+		return (mLedger.getTransaction (mIds[mRandom.nextInt (mIds.length)]));
+	}
+}
@@ -0,0 +1,66 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cscie97.smartcity.ledger.Hash;
+
+/**
+ * The Merkle hashing of {@link Hash}: the root over growing numbers of leaves,
+ * sequential and on the fork/join pool, and the hash of a single leaf
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (1)
+public class HashBenchmark {
+
+	@Param ({ "16", "1024", "65536" })
+	public int leaves;
+
+	private byte[][] mLeaves;
+
+	private int mNextLeaf;
+
+	@Setup (Level.Trial)
+	public void setUp () {
+		mLeaves = new byte [leaves][];
+		for (int iL = 0; iL < leaves; iL ++) {
+			mLeaves[iL] = Hash.leaf ().putString (BenchmarkLedgers.address (iL)).putInt (iL).hash ();
+		}
+		mNextLeaf = 0;
+	}
+
+	@Benchmark
+	public byte[] root () {
+		return (Hash.root (mLeaves));
+	}
+
+	@Benchmark
+	public byte[] parallelRoot () {
+		return (Hash.parallelRoot (mLeaves));
+	}
+
+	/**
+	 * The leaf hash of an account, as its address and balance
+	 */
+	@Benchmark
+	public byte[] leaf () {
+		int index = mNextLeaf ++ & 1023;
+		return (Hash.leaf ().putString ("account").putInt (index).hash ());
+	}
+}
@@ -0,0 +1,78 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cscie97.smartcity.ledger.Ledger;
+import cscie97.smartcity.ledger.LedgerConstants;
+import cscie97.smartcity.ledger.LedgerException;
+import cscie97.smartcity.ledger.Transaction;
+
+/**
+ * The latency of {@link Ledger#processTransaction(Transaction)}: a transfer between
+ * two random accounts, against ledgers of growing numbers of accounts. Blocks are
+ * sealed every {@link #BLOCK_SIZE} transactions, so the cost of sealing is amortized
+ * over the transactions; only the most recent blocks are retained, so the heap does
+ * not grow with the length of the run, other than by the transaction index
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ProcessTransactionBenchmark implements LedgerConstants {
+
+	private static final int BLOCK_SIZE = 100;
+
+	private static final int RETAINED_BLOCKS = 16;
+
+	@Param ({ "1000", "100000", "1000000" })
+	public int accounts;
+
+	private Ledger mLedger;
+
+	private String[] mAddresses;
+
+	private SplittableRandom mRandom;
+
+	private long mNextId;
+
+	@Setup (Level.Trial)
+	public void setUp () throws LedgerException {
+		mLedger = BenchmarkLedgers.fundedLedger (accounts, BLOCK_SIZE).withRetention (RETAINED_BLOCKS);
+		mAddresses = new String [accounts];
+		for (int iA = 0; iA < accounts; iA ++) {
+			mAddresses[iA] = BenchmarkLedgers.address (iA);
+		}
+		mRandom = new SplittableRandom (97);
+		mNextId = 0;
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown () throws LedgerException {
+		mLedger.close ();
+	}
+
+	@Benchmark
+	public void processTransaction () throws LedgerException {
+		int payer = mRandom.nextInt (accounts);
+		int receiver = mRandom.nextInt (accounts);
+		mLedger.processTransaction (new Transaction (Long.toString (mNextId ++), mAddresses[payer],
+				mAddresses[receiver], MINIMUM_FEE).withFee (MINIMUM_FEE));
+	}
+}
@@ -0,0 +1,58 @@
+package cscie97.smartcity.ledger.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cscie97.smartcity.ledger.Ledger;
+import cscie97.smartcity.ledger.LedgerException;
+
+/**
+ * The full validation of a chain, {@link Ledger#validate(boolean)}, against chains
+ * of growing numbers of blocks; every block is verified on each call
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3, time = 2)
+@Measurement (iterations = 5, time = 2)
+@Fork (value = 1, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class ValidateBenchmark {
+
+	private static final int ACCOUNTS = 1000;
+
+	private static final int BLOCK_SIZE = 10;
+
+	@Param ({ "100", "1000", "10000" })
+	public int blocks;
+
+	private Ledger mLedger;
+
+	@Setup (Level.Trial)
+	public void setUp () throws LedgerException {
+		mLedger = BenchmarkLedgers.fundedLedger (ACCOUNTS, BLOCK_SIZE);
+		BenchmarkLedgers.extendChain (mLedger, ACCOUNTS, blocks * BLOCK_SIZE);
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown () throws LedgerException {
+		mLedger.close ();
+	}
+
+	@Benchmark
+	public void validate () throws LedgerException {
+		mLedger.validate (true);
+	}
+}
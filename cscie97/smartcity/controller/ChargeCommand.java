@@ -1,5 +1,7 @@
 package cscie97.smartcity.controller;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import cscie97.smartcity.ledger.LedgerConstants;
 import cscie97.smartcity.ledger.LedgerException;
 import cscie97.smartcity.ledger.Transaction;
@@ -19,7 +21,7 @@ public abstract class ChargeCommand implements Command, LedgerConstants {
 	/**
 	 * the unique index of the transaction; auto-increments
 	 */
-	private static Integer mCounter = 0;
+	private static final AtomicInteger mCounter = new AtomicInteger ();
 
 	/**
 	 * The payer and reciever account addresses
@@ -44,15 +46,14 @@ public abstract class ChargeCommand implements Command, LedgerConstants {
 		}
 		
 		/**
-		 * Create and execute transaction
+		 * Create and execute transaction; the ledger is thread-safe,
+		 * so only the index needs to be claimed atomically
 		 */
-		synchronized (mCounter) {
-			Transaction t = new Transaction ("charge_" + (mCounter++), from, to, mAmount);
-			try {
-				controller.getLedger ().processTransaction (t);
-			} catch (LedgerException lx) {
-				throw new ControllerException (lx.getMessage ());
-			}
+		Transaction t = new Transaction ("charge_" + mCounter.getAndIncrement (), from, to, mAmount);
+		try {
+			controller.getLedger ().processTransaction (t);
+		} catch (LedgerException lx) {
+			throw new ControllerException (lx.getMessage ());
 		}
 	}
 
@@ -7,6 +7,7 @@ import java.util.Map;
 import cscie97.smartcity.authentication.AuthenticationService;
 import cscie97.smartcity.authentication.AuthenticationException;
 import cscie97.smartcity.ledger.Ledger;
+import cscie97.smartcity.ledger.LedgerConstants;
 import cscie97.smartcity.ledger.LedgerException;
 import cscie97.smartcity.model.Device;
 import cscie97.smartcity.model.EventObserver;
@@ -44,7 +45,10 @@ public class Controller implements EventObserver {
 	public Controller () throws ControllerException {
 		mModelService = new ModelService ();
 		try {
-			mLedger = new Ledger ("controller", "");
+			// charges are posted by the commands of many events, possibly in parallel,
+			// and should not wait for the blocks they fill to be hashed
+			mLedger = new Ledger ("controller", "").withConcurrency (LedgerConstants.ACCOUNT_LOCK_STRIPES)
+					.withPipelinedSealing (LedgerConstants.SEAL_PIPELINE_DEPTH);
 		} catch (LedgerException lx) {
 			throw new ControllerException (lx.getMessage ());
 		}
@@ -15,14 +15,19 @@ public class Account implements Cloneable {
 	 */
 	private int mBalance;
 	
+	/**
+	 * The cached hash of this account's contents; reset whenever the balance changes
+	 */
+	private byte[] mHash;
+	
 	public Account (String address) {
 		mAddress = address;
 	}
 	
 	/**
 	 * The account object must be capable of deep-cloning itself,
-	 * for use in the code that initializes a new block
-	 * from the previous block in the chain.
+	 * for use in the code that modifies an account shared with
+	 * the previous blocks in the chain (copy-on-write).
 	 */
 	@Override
 	protected Account clone () {
@@ -36,6 +41,33 @@ public class Account implements Cloneable {
 	 */
 	public void addToBalance (int funds) {
 		mBalance += funds;
+		mHash = null;
+	}
+	
+	/**
+	 * Computes the leaf hash of this account for the Merkle tree of the account state.
+	 * The canonical encoding is: address (string), balance (integer); see {@link Hash.Encoder}
+	 * @return the raw leaf hash
+	 */
+	public byte[] computeLeafHash () {
+		return (Hash.leaf ().putString (mAddress).putInt (mBalance).hash ());
+	}
+	
+	/**
+	 * Obtains the leaf hash of this account, caching it
+	 * @param useCache if false, the hash is recomputed even if cached
+	 * @return the raw leaf hash
+	 */
+	byte[] getHash (boolean useCache) {
+		if (!useCache) {
+			return (computeLeafHash ());
+		}
+		
+		if (mHash == null) {
+			mHash = computeLeafHash ();
+		}
+		
+		return (mHash);
 	}
 
 	/**
@@ -57,6 +89,7 @@ public class Account implements Cloneable {
 	 */
 	public Account withBalance (int balance) {
 		mBalance = balance;
+		mHash = null;
 		return (this);
 	}
 
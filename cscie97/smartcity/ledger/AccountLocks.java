@@ -0,0 +1,70 @@
+package cscie97.smartcity.ledger;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks guarding the accounts of a ledger in the concurrent mode.
+ * Each account handle (@see AddressBook) maps to one of the locks (stripes); the
+ * handles are dense, so consecutive accounts take different locks, and transfers
+ * between disjoint pairs of accounts usually proceed in parallel.
+ * The two locks of a transfer are always taken in the order of their stripe indices,
+ * so two transfers can never wait for each other in a cycle.
+ */
+class AccountLocks {
+
+	private final ReentrantLock[] mStripes;
+
+	/**
+	 * @param stripes The requested number of locks; rounded up to a power of two
+	 */
+	AccountLocks (int stripes) {
+		int count = Integer.highestOneBit (Math.max (1, stripes));
+		if (count < stripes) {
+			count <<= 1;
+		}
+
+		mStripes = new ReentrantLock [count];
+		for (int iS = 0; iS < count; iS ++) {
+			mStripes[iS] = new ReentrantLock ();
+		}
+	}
+
+	private int stripeOf (int handle) {
+		return (handle & (mStripes.length - 1));
+	}
+
+	/**
+	 * Takes the locks of both accounts of a transfer; the accounts may coincide
+	 * @param first The handle of one account
+	 * @param second The handle of the other account
+	 */
+	void lock (int first, int second) {
+		int s1 = stripeOf (first);
+		int s2 = stripeOf (second);
+		mStripes[Math.min (s1, s2)].lock ();
+		if (s1 != s2) {
+			mStripes[Math.max (s1, s2)].lock ();
+		}
+	}
+
+	/**
+	 * Releases the locks taken by {@link #lock(int, int)} with the same accounts
+	 * @param first The handle of one account
+	 * @param second The handle of the other account
+	 */
+	void unlock (int first, int second) {
+		int s1 = stripeOf (first);
+		int s2 = stripeOf (second);
+		if (s1 != s2) {
+			mStripes[Math.max (s1, s2)].unlock ();
+		}
+		mStripes[Math.min (s1, s2)].unlock ();
+	}
+
+	/**
+	 * @return the number of locks
+	 */
+	int size () {
+		return (mStripes.length);
+	}
+}
@@ -0,0 +1,541 @@
+package cscie97.smartcity.ledger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/**
+ * A persistent (immutable) map of accounts keyed by account address, implemented
+ * as a hash array mapped trie. Every modification returns a new map that shares
+ * all untouched branches with the original, copying only the nodes on the path
+ * to the changed entry. This allows each block to inherit the account state of
+ * its predecessor in constant time.
+ * The account objects stored in the map must be treated as immutable once the map
+ * is shared; a modified account is always stored as a new object.
+ * The trie doubles as a Merkle tree: each node caches the hash of its children's
+ * hashes, so the root hash of a derived map only requires rehashing the nodes on
+ * the paths to the changed accounts.
+ */
+public final class AccountMap implements Iterable<Account> {
+
+	/**
+	 * The number of hash bits consumed at each level of the trie
+	 */
+	private static final int BITS_PER_LEVEL = 5;
+
+	/**
+	 * The map with no accounts; the starting point for all maps
+	 */
+	public static final AccountMap EMPTY = new AccountMap (BitmapNode.EMPTY, 0);
+
+	/**
+	 * The deepest path in the trie: a level for each group of hash bits, and
+	 * a collision node once the bits are exhausted
+	 */
+	private static final int MAX_DEPTH = (Integer.SIZE + BITS_PER_LEVEL - 1) / BITS_PER_LEVEL + 1;
+
+	private final Node mRoot;
+
+	private final int mSize;
+
+	private AccountMap (Node root, int size) {
+		mRoot = root;
+		mSize = size;
+	}
+
+	/**
+	 * Spreads the bits of the address hash code, so that addresses that differ
+	 * only in their higher hash bits do not end up deep in the trie
+	 */
+	private static int hashOf (String address) {
+		int h = address.hashCode ();
+		return (h ^ (h >>> 16));
+	}
+
+	/*---------------------------------------------------*/
+	/* public API */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Looks up the account with the given address
+	 * @param address The account address
+	 * @return the account, or null if there is no account with this address
+	 */
+	public Account get (String address) {
+		return (mRoot.find (address, hashOf (address), 0));
+	}
+
+	/**
+	 * Checks for the presence of the account with the given address
+	 * @param address The account address
+	 * @return true if the account is in the map
+	 */
+	public boolean containsKey (String address) {
+		return (get (address) != null);
+	}
+
+	/**
+	 * Creates a map that contains the given account in addition to (or instead of,
+	 * if the address is already present) the entries of this map
+	 * @param acct The account to be stored
+	 * @return the new map; this map is not changed
+	 */
+	public AccountMap with (Account acct) {
+		boolean[] added = new boolean [1];
+		Node root = mRoot.put (acct, hashOf (acct.getAddress ()), 0, added);
+		return (root == mRoot ? this : new AccountMap (root, added[0] ? mSize + 1 : mSize));
+	}
+
+	/**
+	 * Creates a map that contains all the given accounts in addition to the entries
+	 * of this map
+	 * @param accts The accounts to be stored
+	 * @return the new map; this map is not changed
+	 */
+	public AccountMap withAll (Iterable<Account> accts) {
+		AccountMap ret = this;
+		for (Account acct: accts) {
+			ret = ret.with (acct);
+		}
+
+		return (ret);
+	}
+
+	/**
+	 * @return the number of accounts in the map
+	 */
+	public int size () {
+		return (mSize);
+	}
+
+	/**
+	 * Obtains the Merkle root hash of the accounts, reusing the hashes cached in
+	 * the nodes shared with earlier maps
+	 * @return the raw root hash
+	 */
+	public byte[] getRootHash () {
+		return (mRoot.hash (true));
+	}
+	
+	/**
+	 * Recomputes the Merkle root hash of the accounts from scratch, ignoring all
+	 * cached hashes; for verifying that the cached hashes are consistent with
+	 * the contents of the map. Large maps have the subtrees of the root hashed
+	 * in parallel.
+	 * @return the raw root hash
+	 */
+	public byte[] computeRootHash () {
+		if (mSize < Hash.PARALLEL_THRESHOLD) {
+			return (mRoot.hash (false));
+		}
+		
+		Object[] slots = mRoot.slots ();
+		byte[][] childHashes = new byte [slots.length][];
+		IntStream.range (0, slots.length).parallel ()
+			.forEach ((iS) -> childHashes[iS] = slotHash (slots[iS], false));
+		return (Hash.root (childHashes));
+	}
+	
+	/**
+	 * Collects the Merkle path from the leaf of an account up to the root of the map:
+	 * at each node from the bottom up, the sibling hashes along the path within the
+	 * root over the slots of the node (@see Hash#collectPath)
+	 * @param address The account address
+	 * @param siblings Receives the sibling hashes, from the leaf up
+	 * @param siblingOnLeft Receives, for each sibling hash, whether it is the left child
+	 * @return the account, or null if there is no account with this address; then
+	 * nothing is collected
+	 */
+	Account collectPath (String address, List<byte[]> siblings, List<Boolean> siblingOnLeft) {
+		int hash = hashOf (address);
+		List<Object[]> levels = new ArrayList<> ();
+		List<Integer> indices = new ArrayList<> ();
+		Node node = mRoot;
+		int shift = 0;
+		Account found = null;
+		while (found == null) {
+			int idx = node.slotOf (address, hash, shift);
+			if (idx < 0) {
+				return (null);
+			}
+			
+			Object[] slots = node.slots ();
+			levels.add (slots);
+			indices.add (idx);
+			if (slots[idx] instanceof Node) {
+				node = (Node) slots[idx];
+				shift += BITS_PER_LEVEL;
+			} else if (((Account) slots[idx]).getAddress ().equals (address)) {
+				found = (Account) slots[idx];
+			} else {
+				return (null);
+			}
+		}
+		
+		for (int iL = levels.size () - 1; iL >= 0; iL --) {
+			Object[] slots = levels.get (iL);
+			byte[][] hashes = new byte [slots.length][];
+			for (int iS = 0; iS < slots.length; iS ++) {
+				hashes[iS] = slotHash (slots[iS], true);
+			}
+			Hash.collectPath (hashes, indices.get (iL), siblings, siblingOnLeft);
+		}
+		
+		return (found);
+	}
+	
+	/**
+	 * @return the hash of a trie slot, which is either a node or an account
+	 */
+	private static byte[] slotHash (Object slot, boolean useCache) {
+		return ((slot instanceof Node) ?
+				((Node) slot).hash (useCache) :
+				((Account) slot).getHash (useCache));
+	}
+
+	/**
+	 * Iterates over the accounts in the trie order, which depends only on the
+	 * addresses present in the map, not on the order of their insertion
+	 */
+	@Override
+	public Iterator<Account> iterator () {
+		return (new AccountIterator (mRoot));
+	}
+
+	/**
+	 * Iterates over the accounts in the trie order, starting right after the account
+	 * with the given address; so that a traversal can be resumed where it stopped
+	 * @param address The address of the account last visited
+	 * @return the iterator; null if there is no account with this address
+	 */
+	Iterator<Account> iteratorAfter (String address) {
+		AccountIterator ret = new AccountIterator ();
+		int hash = hashOf (address);
+		Node node = mRoot;
+		int shift = 0;
+		for (;;) {
+			int idx = node.slotOf (address, hash, shift);
+			if (idx < 0) {
+				return (null);
+			}
+
+			Object[] slots = node.slots ();
+			ret.push (slots, idx + 1);
+			if (slots[idx] instanceof Node) {
+				node = (Node) slots[idx];
+				shift += BITS_PER_LEVEL;
+			} else if (((Account) slots[idx]).getAddress ().equals (address)) {
+				ret.advance ();
+				return (ret);
+			} else {
+				return (null);
+			}
+		}
+	}
+
+	/**
+	 * Collects the accounts into an array, in the iteration order
+	 * @return the array of accounts
+	 */
+	public Account[] toArray () {
+		Account[] ret = new Account [mSize];
+		int idx = 0;
+		for (Account acct: this) {
+			ret[idx ++] = acct;
+		}
+
+		return (ret);
+	}
+
+	/*---------------------------------------------------*/
+	/* trie nodes */
+	/*---------------------------------------------------*/
+
+	private static abstract class Node {
+		/**
+		 * The cached hash of this node; the node never changes, so once
+		 * computed, the hash stays valid
+		 */
+		private byte[] mHash;
+		
+		/**
+		 * @param useCache if false, all hashes in this subtree are recomputed
+		 * @return the Merkle root of the hashes of the children of this node
+		 */
+		final byte[] hash (boolean useCache) {
+			if (useCache && mHash != null) {
+				return (mHash);
+			}
+			
+			Object[] slots = slots ();
+			byte[][] childHashes = new byte [slots.length][];
+			for (int iS = 0; iS < slots.length; iS ++) {
+				childHashes[iS] = slotHash (slots[iS], useCache);
+			}
+			
+			byte[] ret = Hash.root (childHashes);
+			if (useCache) {
+				mHash = ret;
+			}
+			
+			return (ret);
+		}
+		
+		abstract Account find (String address, int hash, int shift);
+		
+		/**
+		 * @return the index of the slot that holds the account or the subtree where it
+		 * would be; -1 if there is none
+		 */
+		abstract int slotOf (String address, int hash, int shift);
+
+		/**
+		 * @param added set to true if the account was not present before
+		 * @return the node containing the account; this very node if nothing changed
+		 */
+		abstract Node put (Account acct, int hash, int shift, boolean[] added);
+
+		/**
+		 * @return the child slots of this node; each is either an account or a node
+		 */
+		abstract Object[] slots ();
+	}
+
+	/**
+	 * An inner node holding up to 32 slots, present ones flagged in the bitmap
+	 */
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode (0, new Object [0]);
+
+		final int mBitmap;
+
+		final Object[] mSlots;
+
+		BitmapNode (int bitmap, Object[] slots) {
+			mBitmap = bitmap;
+			mSlots = slots;
+		}
+
+		@Override
+		Account find (String address, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((mBitmap & bit) == 0) {
+				return (null);
+			}
+
+			Object slot = mSlots[Integer.bitCount (mBitmap & (bit - 1))];
+			if (slot instanceof Node) {
+				return (((Node) slot).find (address, hash, shift + BITS_PER_LEVEL));
+			}
+
+			Account acct = (Account) slot;
+			return (acct.getAddress ().equals (address) ? acct : null);
+		}
+
+		@Override
+		int slotOf (String address, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			return (((mBitmap & bit) != 0) ? Integer.bitCount (mBitmap & (bit - 1)) : -1);
+		}
+
+		@Override
+		Node put (Account acct, int hash, int shift, boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int idx = Integer.bitCount (mBitmap & (bit - 1));
+
+			if ((mBitmap & bit) == 0) {
+				// free slot; insert the account as a leaf
+				Object[] slots = new Object [mSlots.length + 1];
+				System.arraycopy (mSlots, 0, slots, 0, idx);
+				slots[idx] = acct;
+				System.arraycopy (mSlots, idx, slots, idx + 1, mSlots.length - idx);
+				added[0] = true;
+				return (new BitmapNode (mBitmap | bit, slots));
+			}
+
+			Object slot = mSlots[idx];
+			Object replacement;
+			if (slot instanceof Node) {
+				Node child = (Node) slot;
+				replacement = child.put (acct, hash, shift + BITS_PER_LEVEL, added);
+				if (replacement == child) {
+					return (this);
+				}
+			} else {
+				Account existing = (Account) slot;
+				if (existing == acct) {
+					return (this);
+				} else if (existing.getAddress ().equals (acct.getAddress ())) {
+					replacement = acct;
+				} else {
+					replacement = merge (existing, hashOf (existing.getAddress ()),
+							acct, hash, shift + BITS_PER_LEVEL);
+					added[0] = true;
+				}
+			}
+
+			Object[] slots = mSlots.clone ();
+			slots[idx] = replacement;
+			return (new BitmapNode (mBitmap, slots));
+		}
+
+		@Override
+		Object[] slots () {
+			return (mSlots);
+		}
+
+		/**
+		 * Creates the subtree holding two accounts that used to compete for the same slot
+		 */
+		private static Node merge (Account a1, int h1, Account a2, int h2, int shift) {
+			if (shift >= Integer.SIZE) {
+				// all hash bits are exhausted
+				return (new CollisionNode (h1, new Account[] { a1 }).put (a2, h2, shift, new boolean [1]));
+			}
+
+			int i1 = (h1 >>> shift) & 31;
+			int i2 = (h2 >>> shift) & 31;
+			if (i1 == i2) {
+				return (new BitmapNode (1 << i1, new Object[] { merge (a1, h1, a2, h2, shift + BITS_PER_LEVEL) }));
+			}
+
+			return (new BitmapNode ((1 << i1) | (1 << i2),
+					i1 < i2 ? new Object[] { a1, a2 } : new Object[] { a2, a1 }));
+		}
+	}
+
+	/**
+	 * A leaf node holding the accounts whose addresses have identical hashes;
+	 * kept sorted by address
+	 */
+	private static final class CollisionNode extends Node {
+		final int mHash;
+
+		final Account[] mAccounts;
+
+		CollisionNode (int hash, Account[] accounts) {
+			mHash = hash;
+			mAccounts = accounts;
+		}
+
+		@Override
+		Account find (String address, int hash, int shift) {
+			for (Account acct: mAccounts) {
+				if (acct.getAddress ().equals (address)) {
+					return (acct);
+				}
+			}
+
+			return (null);
+		}
+
+		@Override
+		int slotOf (String address, int hash, int shift) {
+			for (int iA = 0; iA < mAccounts.length; iA ++) {
+				if (mAccounts[iA].getAddress ().equals (address)) {
+					return (iA);
+				}
+			}
+
+			return (-1);
+		}
+
+		@Override
+		Node put (Account acct, int hash, int shift, boolean[] added) {
+			for (int iA = 0; iA < mAccounts.length; iA ++) {
+				if (mAccounts[iA].getAddress ().equals (acct.getAddress ())) {
+					if (mAccounts[iA] == acct) {
+						return (this);
+					}
+					Account[] accounts = mAccounts.clone ();
+					accounts[iA] = acct;
+					return (new CollisionNode (mHash, accounts));
+				}
+			}
+
+			Account[] accounts = Arrays.copyOf (mAccounts, mAccounts.length + 1);
+			accounts[mAccounts.length] = acct;
+			Arrays.sort (accounts, (a1, a2) -> a1.getAddress ().compareTo (a2.getAddress ()));
+			added[0] = true;
+			return (new CollisionNode (mHash, accounts));
+		}
+
+		@Override
+		Object[] slots () {
+			return (mAccounts);
+		}
+	}
+
+	/**
+	 * Depth-first traversal of the trie, using an explicit stack of positions; as
+	 * the trie is at most {@link #MAX_DEPTH} levels deep, the stack is of fixed size
+	 */
+	private static final class AccountIterator implements Iterator<Account> {
+		private final Object[][] mSlotStack = new Object [MAX_DEPTH][];
+
+		/**
+		 * The position of the next slot to visit at each level of the stack
+		 */
+		private final int[] mIndexStack = new int [MAX_DEPTH];
+
+		private int mDepth = 0;
+
+		private Account mNext;
+
+		AccountIterator () {
+		}
+
+		AccountIterator (Node root) {
+			push (root.slots (), 0);
+			advance ();
+		}
+
+		/**
+		 * Descends into the slots of a node, from the given position
+		 */
+		void push (Object[] slots, int index) {
+			mSlotStack[mDepth] = slots;
+			mIndexStack[mDepth] = index;
+			mDepth ++;
+		}
+
+		void advance () {
+			mNext = null;
+			while (mNext == null && mDepth > 0) {
+				Object[] slots = mSlotStack[mDepth - 1];
+				int idx = mIndexStack[mDepth - 1];
+				if (idx >= slots.length) {
+					mSlotStack[-- mDepth] = null;
+					continue;
+				}
+
+				mIndexStack[mDepth - 1] = idx + 1;
+				Object slot = slots[idx];
+				if (slot instanceof Node) {
+					push (((Node) slot).slots (), 0);
+				} else {
+					mNext = (Account) slot;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext () {
+			return (mNext != null);
+		}
+
+		@Override
+		public Account next () {
+			if (mNext == null) {
+				throw new NoSuchElementException ();
+			}
+
+			Account ret = mNext;
+			advance ();
+			return (ret);
+		}
+	}
+}
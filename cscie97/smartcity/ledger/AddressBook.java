@@ -0,0 +1,149 @@
+package cscie97.smartcity.ledger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The chain-wide dictionary of account addresses, assigning each address a dense
+ * integer handle: 0 for the master account, then 1, 2, ... in the order the
+ * accounts are created. The working block keeps the balances it changes in a table
+ * indexed by these handles (@see BalanceTable), and each transaction carries the
+ * handles of its accounts, resolved once; so a transfer does not hash or compare
+ * the address strings.
+ * The dictionary is thread-safe; the lookups of handles and addresses do not lock,
+ * as they are made for every transaction. Handles are never reassigned.
+ */
+class AddressBook implements LedgerConstants {
+
+	/**
+	 * The handle of the master account
+	 */
+	static final int MASTER_HANDLE = 0;
+
+	/**
+	 * The initial number of addresses the dictionary is sized for
+	 */
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * The handles of the payer and the receiver of a transaction, as resolved in
+	 * one dictionary; a transaction keeps them for its next use
+	 */
+	static final class Handles {
+		final AddressBook mBook;
+
+		/**
+		 * The handle of the payer; -1 if the address was unknown
+		 */
+		final int mPayer;
+
+		/**
+		 * The handle of the receiver; -1 if the address was unknown
+		 */
+		final int mReceiver;
+
+		Handles (AddressBook book, int payer, int receiver) {
+			mBook = book;
+			mPayer = payer;
+			mReceiver = receiver;
+		}
+	}
+
+	/**
+	 * The handles, keyed by address; the lookups do not lock
+	 */
+	private final ConcurrentHashMap<String, Integer> mHandles = new ConcurrentHashMap<> (INITIAL_CAPACITY);
+
+	/**
+	 * The addresses, indexed by handle. An address is stored before its handle is
+	 * published in the map, and a grown array before it replaces this one, so a reader
+	 * that obtained a handle finds its address without locking
+	 */
+	private volatile String[] mAddresses;
+
+	/**
+	 * The number of addresses, which is also the next handle
+	 */
+	private volatile int mSize;
+
+	AddressBook () {
+		mAddresses = new String [INITIAL_CAPACITY];
+		intern (MASTER_ACCOUNT);
+	}
+
+	/**
+	 * Builds the dictionary of all accounts in an account state, such as the one
+	 * restored from the block log
+	 * @param accounts The account state
+	 */
+	AddressBook (AccountMap accounts) {
+		this ();
+		for (Account acct: accounts) {
+			intern (acct.getAddress ());
+		}
+	}
+
+	/**
+	 * Assigns a handle to an address, unless it already has one. The handles are
+	 * assigned under the monitor, so that they stay dense
+	 * @param address The account address
+	 * @return the handle of the address
+	 */
+	synchronized int intern (String address) {
+		Integer handle = mHandles.get (address);
+		if (handle != null) {
+			return (handle);
+		}
+
+		String[] addresses = mAddresses;
+		if (mSize == addresses.length) {
+			addresses = new String [mSize * 2];
+			System.arraycopy (mAddresses, 0, addresses, 0, mSize);
+			mAddresses = addresses;
+		}
+
+		addresses[mSize] = address;
+		mHandles.put (address, mSize);
+		return (mSize ++);
+	}
+
+	/**
+	 * Looks up the handle of an address
+	 * @param address The account address
+	 * @return the handle, or -1 if the address has none
+	 */
+	int find (String address) {
+		Integer handle = mHandles.get (address);
+		return ((handle != null) ? handle : -1);
+	}
+
+	/**
+	 * @param handle The handle of an address
+	 * @return the address
+	 */
+	String getAddress (int handle) {
+		return (mAddresses[handle]);
+	}
+
+	/**
+	 * Resolves the handles of the accounts of a transaction, reusing the ones
+	 * the transaction carries if they were resolved in this dictionary
+	 * @param transaction The transaction
+	 * @return the handles; an unknown address is resolved again on the next use
+	 */
+	Handles resolve (Transaction transaction) {
+		Handles handles = transaction.getHandles ();
+		if (handles == null || handles.mBook != this || handles.mPayer < 0 || handles.mReceiver < 0) {
+			handles = new Handles (this, find (transaction.getPayer ()), find (transaction.getReceiver ()));
+			transaction.setHandles (handles);
+		}
+
+		return (handles);
+	}
+
+	/**
+	 * @return the number of addresses
+	 */
+	int size () {
+		return (mSize);
+	}
+}
@@ -0,0 +1,70 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A cursor over the balances of a view (@see BalanceView). Each call to {@link #next()}
+ * moves it to the next account of the view whose address has the prefix of the view;
+ * the address and the balance of that account are then read as they are stored, with
+ * no map entry or boxed balance created on the way. The view beneath the cursor never
+ * changes; the cursor itself is used by one thread at a time.
+ */
+public final class BalanceCursor {
+
+	private final Iterator<Account> mAccounts;
+
+	private final String mPrefix;
+
+	private Account mCurrent = null;
+
+	/**
+	 * @param accounts The accounts, from the position the cursor starts at
+	 * @param prefix The prefix of the addresses visited; empty for all
+	 */
+	BalanceCursor (Iterator<Account> accounts, String prefix) {
+		mAccounts = accounts;
+		mPrefix = prefix;
+	}
+
+	/**
+	 * Moves to the next account
+	 * @return false if there are no more accounts; then the cursor has no current account
+	 */
+	public boolean next () {
+		while (mAccounts.hasNext ()) {
+			Account acct = mAccounts.next ();
+			if (acct.getAddress ().startsWith (mPrefix)) {
+				mCurrent = acct;
+				return (true);
+			}
+		}
+
+		mCurrent = null;
+		return (false);
+	}
+
+	/**
+	 * @return the address of the current account
+	 * @throws NoSuchElementException if the cursor is not on an account
+	 */
+	public String getAddress () {
+		return (current ().getAddress ());
+	}
+
+	/**
+	 * @return the balance of the current account
+	 * @throws NoSuchElementException if the cursor is not on an account
+	 */
+	public long getBalance () {
+		return (current ().getBalance ());
+	}
+
+	private Account current () {
+		if (mCurrent == null) {
+			throw new NoSuchElementException ();
+		}
+
+		return (mCurrent);
+	}
+}
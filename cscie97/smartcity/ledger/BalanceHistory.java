@@ -0,0 +1,80 @@
+package cscie97.smartcity.ledger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The index of the balance changes of all accounts over the committed blocks.
+ * For each account, it keeps the numbers of the blocks that changed it, in ascending
+ * order, with the balance each of them left; the balance as of any block is found
+ * by a binary search for the latest change up to that block. So the committed blocks
+ * do not have to retain the state of all accounts to answer historical inquiries.
+ * <p>
+ * The index is not thread-safe; the ledger only uses it under its monitor.
+ */
+class BalanceHistory implements LedgerConstants {
+
+	/**
+	 * The balance changes of one account
+	 */
+	private static final class Changes {
+		private int[] mBlocks = new int [2];
+
+		private int[] mBalances = new int [2];
+
+		private int mSize = 0;
+
+		void add (int block, int balance) {
+			if (mSize == mBlocks.length) {
+				mBlocks = Arrays.copyOf (mBlocks, mSize * 2);
+				mBalances = Arrays.copyOf (mBalances, mSize * 2);
+			}
+			mBlocks[mSize] = block;
+			mBalances[mSize] = balance;
+			mSize ++;
+		}
+
+		/**
+		 * @return the position of the latest change up to the given block; -1 if there is none
+		 */
+		int find (int block) {
+			int pos = Arrays.binarySearch (mBlocks, 0, mSize, block);
+			return ((pos >= 0) ? pos : -pos - 2);
+		}
+	}
+
+	/**
+	 * The changes keyed by account address
+	 */
+	private final Map<String, Changes> mChanges = new HashMap<> ();
+
+	/**
+	 * Records the balances of the accounts changed in a committed block; the blocks
+	 * must be recorded in order
+	 * @param block The committed block
+	 */
+	void record (Block block) {
+		for (Account acct: block.getChangedAccounts ()) {
+			mChanges.computeIfAbsent (acct.getAddress (), (a) -> new Changes ())
+				.add (block.getNumber (), acct.getBalance ());
+		}
+	}
+
+	/**
+	 * Inquires of the balance of an account as of a committed block
+	 * @param address The account address
+	 * @param block The block number; the blocks up to it must have been recorded
+	 * @return the balance left by the latest change of the account up to the block
+	 * @throws LedgerException if the account did not exist as of the block
+	 */
+	int getBalance (String address, int block) throws LedgerException {
+		Changes changes = mChanges.get (address);
+		int pos = (changes != null) ? changes.find (block) : -1;
+		if (pos < 0) {
+			throw new LedgerException (OP_GET_BALANCE, "Account " + address + " does not exist in block " + block);
+		}
+
+		return (changes.mBalances[pos]);
+	}
+}
@@ -0,0 +1,131 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * The balances of the accounts a working block has changed, indexed by the handles
+ * of the accounts (@see AddressBook). These are the private copies of the balances,
+ * which are folded into the account map of the block once it is committed; a
+ * transfer between accounts the block already owns changes two slots of the table.
+ * The chain keeps the folded balances of all of its accounts in a table of its own,
+ * where each account is owned from its creation on.
+ * <p>
+ * The table is divided into chunks of fixed size that never move once allocated,
+ * so a chunk can be added while other threads change balances in the existing ones.
+ * Taking ownership of an account is synchronized; in the concurrent mode, each
+ * balance is otherwise only accessed under the lock of its account.
+ */
+class BalanceTable {
+
+	private static final int CHUNK_BITS = 10;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	/**
+	 * The balances and the ownership marks of a range of handles
+	 */
+	private static final class Chunk {
+		final int[] mBalances = new int [CHUNK_SIZE];
+
+		final boolean[] mOwned = new boolean [CHUNK_SIZE];
+	}
+
+	/**
+	 * The chunks, replaced as a whole when one is added
+	 */
+	private volatile Chunk[] mChunks = new Chunk [0];
+
+	/**
+	 * The handles of the owned accounts, in the order of taking ownership
+	 */
+	private int[] mHandles = new int [16];
+
+	private int mSize = 0;
+
+	/**
+	 * @return true if the table holds the balance of the account
+	 */
+	boolean isOwned (int handle) {
+		Chunk[] chunks = mChunks;
+		int iC = handle >>> CHUNK_BITS;
+		return (iC < chunks.length && chunks[iC] != null && chunks[iC].mOwned[handle & (CHUNK_SIZE - 1)]);
+	}
+
+	/**
+	 * @return the balance of an owned account
+	 */
+	int get (int handle) {
+		return (mChunks[handle >>> CHUNK_BITS].mBalances[handle & (CHUNK_SIZE - 1)]);
+	}
+
+	/**
+	 * Changes the balance of an owned account by the given amount
+	 */
+	void add (int handle, int funds) {
+		mChunks[handle >>> CHUNK_BITS].mBalances[handle & (CHUNK_SIZE - 1)] += funds;
+	}
+
+	/**
+	 * Sets the balance of an account, taking ownership of it if the table does not hold it yet
+	 */
+	void put (int handle, int balance) {
+		if (isOwned (handle)) {
+			mChunks[handle >>> CHUNK_BITS].mBalances[handle & (CHUNK_SIZE - 1)] = balance;
+		} else {
+			own (handle, balance);
+		}
+	}
+
+	private synchronized void own (int handle, int balance) {
+		int iC = handle >>> CHUNK_BITS;
+		Chunk[] chunks = mChunks;
+		if (iC >= chunks.length || chunks[iC] == null) {
+			Chunk[] grown = new Chunk [Math.max (chunks.length, iC + 1)];
+			System.arraycopy (chunks, 0, grown, 0, chunks.length);
+			grown[iC] = new Chunk ();
+			mChunks = chunks = grown;
+		}
+
+		chunks[iC].mBalances[handle & (CHUNK_SIZE - 1)] = balance;
+		chunks[iC].mOwned[handle & (CHUNK_SIZE - 1)] = true;
+		if (mSize == mHandles.length) {
+			int[] handles = new int [mSize * 2];
+			System.arraycopy (mHandles, 0, handles, 0, mSize);
+			mHandles = handles;
+		}
+		mHandles[mSize ++] = handle;
+	}
+
+	/**
+	 * @return the number of owned accounts
+	 */
+	synchronized int size () {
+		return (mSize);
+	}
+
+	/**
+	 * @param index The position of an owned account, in the order of taking ownership
+	 * @return the handle of the account
+	 */
+	synchronized int getHandle (int index) {
+		return (mHandles[index]);
+	}
+
+	/**
+	 * Gives up the ownership of all accounts; the allocated chunks are kept
+	 */
+	synchronized void clear () {
+		Chunk[] chunks = mChunks;
+		for (int iH = 0; iH < mSize; iH ++) {
+			chunks[mHandles[iH] >>> CHUNK_BITS].mOwned[mHandles[iH] & (CHUNK_SIZE - 1)] = false;
+		}
+		mSize = 0;
+	}
+
+	/**
+	 * Gives up the ownership of all accounts and frees the chunks; called once the
+	 * block will not change any more
+	 */
+	synchronized void release () {
+		mSize = 0;
+		mChunks = new Chunk [0];
+	}
+}
@@ -0,0 +1,185 @@
+package cscie97.smartcity.ledger;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * A read-only view of the balances of the accounts as recorded in a block. The view
+ * shares the persistent account state of the block (@see AccountMap) rather than
+ * copying it, so obtaining one costs nothing however many accounts there are, and it
+ * stays unchanged as the ledger moves on. The balances are read through a cursor
+ * (@see BalanceCursor), passed to a consumer, or written to an {@link Appendable};
+ * in each case without materializing a map of boxed balances.
+ * <p>
+ * The accounts are visited in the order of the account state, which depends only
+ * on the addresses present. A view may be restricted to the addresses with a given
+ * prefix, such as those of one city, and read in pages: a page starts right after
+ * the last account of the previous one.
+ */
+public final class BalanceView implements LedgerConstants {
+
+	private final int mBlockNumber;
+
+	/**
+	 * The account state of the block; null if the block does not hold it
+	 */
+	private final AccountMap mAccounts;
+
+	/**
+	 * The accounts changed in the block, if it does not hold its account state
+	 */
+	private final Collection<Account> mChangedAccounts;
+
+	private final String mPrefix;
+
+	/**
+	 * @param blockNumber The number of the block
+	 * @param accounts The account state of the block; null if the block does not hold it
+	 * @param changedAccounts The accounts changed in the block; only used without the account state
+	 */
+	BalanceView (int blockNumber, AccountMap accounts, Collection<Account> changedAccounts) {
+		this (blockNumber, accounts, changedAccounts, "");
+	}
+
+	private BalanceView (int blockNumber, AccountMap accounts, Collection<Account> changedAccounts, String prefix) {
+		mBlockNumber = blockNumber;
+		mAccounts = accounts;
+		mChangedAccounts = changedAccounts;
+		mPrefix = prefix;
+	}
+
+	/**
+	 * @return the number of the block whose balances are viewed
+	 */
+	public int getBlockNumber () {
+		return (mBlockNumber);
+	}
+
+	/**
+	 * @return true if the view holds all accounts; false if the block does not hold
+	 * its account state, so only the accounts changed in it are viewed
+	 */
+	public boolean isComplete () {
+		return (mAccounts != null);
+	}
+
+	/**
+	 * @return the prefix of the addresses viewed; empty for all
+	 */
+	public String getPrefix () {
+		return (mPrefix);
+	}
+
+	/**
+	 * Restricts the view to the addresses with the given prefix
+	 * @param prefix The prefix; null or empty for all addresses
+	 * @return the restricted view; this view is unchanged
+	 */
+	public BalanceView withPrefix (String prefix) {
+		return (new BalanceView (mBlockNumber, mAccounts, mChangedAccounts, (prefix != null) ? prefix : ""));
+	}
+
+	/**
+	 * @return a cursor before the first account of the view
+	 */
+	public BalanceCursor cursor () {
+		return (new BalanceCursor (accounts ().iterator (), mPrefix));
+	}
+
+	/**
+	 * Starts a cursor where another one stopped
+	 * @param address The address of the account the cursor starts after; null to start
+	 * before the first account
+	 * @return a cursor before the account following the given one
+	 * @throws LedgerException if there is no account with this address in the block
+	 */
+	public BalanceCursor cursorAfter (String address) throws LedgerException {
+		if (address == null) {
+			return (cursor ());
+		}
+
+		Iterator<Account> accounts = null;
+		if (mAccounts != null) {
+			accounts = mAccounts.iteratorAfter (address);
+		} else {
+			Iterator<Account> changed = mChangedAccounts.iterator ();
+			while (accounts == null && changed.hasNext ()) {
+				if (changed.next ().getAddress ().equals (address)) {
+					accounts = changed;
+				}
+			}
+		}
+		if (accounts == null) {
+			throw new LedgerException (OP_GET_ALL_BALANCES, "Account " + address +
+					" is not among the balances of block " + mBlockNumber);
+		}
+
+		return (new BalanceCursor (accounts, mPrefix));
+	}
+
+	/**
+	 * Passes the address and the balance of each account of the view to the consumer
+	 * @param action The consumer
+	 */
+	public void forEach (ObjLongConsumer<String> action) {
+		for (Account acct: accounts ()) {
+			if (acct.getAddress ().startsWith (mPrefix)) {
+				action.accept (acct.getAddress (), acct.getBalance ());
+			}
+		}
+	}
+
+	/**
+	 * Writes the balances of all accounts of the view, each on a line of its own
+	 * (@see #appendTo(Appendable, String, int))
+	 * @param out The output
+	 * @throws IOException if the output cannot be written
+	 */
+	public void appendTo (Appendable out) throws IOException {
+		try {
+			appendTo (out, null, Integer.MAX_VALUE);
+		} catch (LedgerException lx) {
+			// not thrown without a starting account
+		}
+	}
+
+	/**
+	 * Writes a page of balances; each balance is written on a line of its own, that is
+	 * after a line separator, as two spaces, the address, a colon and the balance
+	 * @param out The output
+	 * @param after The address of the account the page starts after, as returned for
+	 * the previous page; null for the first page
+	 * @param limit The largest number of balances written
+	 * @return the address of the last account written if more accounts follow it,
+	 * so the next page starts after it; null if the page is the last one
+	 * @throws IOException if the output cannot be written
+	 * @throws LedgerException if there is no account with the starting address
+	 */
+	public String appendTo (Appendable out, String after, int limit) throws IOException, LedgerException {
+		BalanceCursor cursor = cursorAfter (after);
+		String lastAddress = null;
+		for (int iB = 0; iB < limit && cursor.next (); iB ++) {
+			lastAddress = cursor.getAddress ();
+			out.append (System.lineSeparator ()).append ("  ").append (lastAddress).append (": ");
+			if (out instanceof StringBuilder) {
+				((StringBuilder) out).append (cursor.getBalance ());
+			} else {
+				out.append (Long.toString (cursor.getBalance ()));
+			}
+		}
+
+		return ((lastAddress != null && cursor.next ()) ? lastAddress : null);
+	}
+
+	private Iterable<Account> accounts () {
+		return ((mAccounts != null) ? mAccounts : mChangedAccounts);
+	}
+
+	@Override
+	public String toString () {
+		return ("balances of block " + mBlockNumber + (mPrefix.isEmpty () ? "" : " with prefix " + mPrefix) +
+				(isComplete () ? "" : " (changed accounts only)"));
+	}
+}
@@ -1,214 +1,871 @@
 package cscie97.smartcity.ledger;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a block of transactions, which becomes a link in the blockchain as
- * soon as the number of transactions reaches a predefined number (@see 
+ * soon as it is sealed according to the ledger's sealing policy (@see SealingPolicy)
  */
 public class Block implements LedgerConstants {
 
+	/**
+	 * The balance found for an account that does not exist (@see #findBalance(int))
+	 */
+	private static final long NO_ACCOUNT = Long.MIN_VALUE;
+
+	/**
+	 * The estimated heap held by a transaction, besides its serialized size, and by an
+	 * account, in bytes (@see #estimateHeapBytes())
+	 */
+	static final int TRANSACTION_HEAP_OVERHEAD = 160;
+
+	static final int ACCOUNT_HEAP_OVERHEAD = 96;
+
+	/**
+	 * The estimated heap held by the cached transaction tree, per transaction, in bytes:
+	 * about two hashes with their array headers
+	 */
+	static final int TRANSACTION_TREE_HEAP_OVERHEAD = 112;
+
 	/**
 	 * The 1-based identifier of this block, assigned consecutively
 	 */
 	private final int mNumber;
 	
 	/**
-	 * Reference to the previous block in the chain
+	 * The persistent map of all accounts, keyed by account address.
+	 * Shared with the previous block, except for the accounts that
+	 * were changed in this block; those are folded in when the block
+	 * is committed. Null for a block read back from the block log
+	 * without its account state
 	 */
-	private final Block mPrevBlock;
+	private AccountMap	mAccountMap;
 	
 	/**
-	 * Local copy of the list of all accounts, keyed by account address
-	 * Deep-cloned, so changes to objects do not propagate to other block
+	 * The final state of all accounts created or modified in this block,
+	 * keyed by account address
 	 */
-	private final Map<String, Account>	mAccountMap;
+	private final Map<String, Account> mChangedAccounts;
 	
 	/**
-	 * List of all transaction accepted for this block. There will be
-	 * at most {@link LedgerConstants.TRANSACTIONS_IN_BLOCK} of them;
-	 * once that number is achieved, the block is linked to the chain and
-	 * does not change
+	 * The Merkle root of the account state; computed when the block is committed
+	 */
+	private byte[] mAccountRoot;
+	
+	/**
+	 * The Merkle root of the transactions; computed when the block is committed,
+	 * or on demand for a rebuilt block
+	 */
+	private byte[] mTransactionRoot;
+	
+	/**
+	 * The levels of the Merkle tree of the transactions, from the leaves up; cached
+	 * when the block is sealed, so that the inclusion proofs do not rehash the
+	 * transactions. Null for a rebuilt block
+	 */
+	private byte[][][] mTransactionTree;
+	
+	/**
+	 * The balances of the accounts created or modified in this block that have
+	 * not yet been folded into the account map, indexed by account handle. These
+	 * are private copies, so changes to them do not propagate to other blocks.
+	 * In the concurrent mode, each balance is only changed under its account lock
+	 */
+	private final BalanceTable mOwnedBalances;
+	
+	/**
+	 * The handles of the account addresses of the chain; shared by all of its
+	 * working blocks. Null for a block read back from the block log
+	 */
+	private final AddressBook mAddressBook;
+	
+	/**
+	 * The balances of all accounts of the chain as folded so far, indexed by account
+	 * handle; shared by all of its working blocks, like the address book. A working
+	 * block takes the balances it does not own from this table, so that the first
+	 * access to an account in each block does not look up the account map, which is
+	 * only used to build the Merkle tree of the account state. Only the working block
+	 * folds balances into the table. Null for a block read back from the block log
+	 */
+	private final BalanceTable mCommittedBalances;
+	
+	/**
+	 * The fees collected by the concurrent transfers but not yet credited to
+	 * the master account; they are credited when the accounts are folded.
+	 * Accumulating them separately keeps the master account from being locked
+	 * by every transfer
+	 */
+	private final AtomicLong mPendingFees;
+	
+	/**
+	 * List of all transaction accepted for this block. Once the sealing
+	 * policy of the ledger decides that the block is full, it is linked
+	 * to the chain and does not change.
+	 * Its monitor is the sequencer of the block: the position of each transaction,
+	 * and the totals derived from the list, are only changed while holding it
 	 */
 	private final Map<String, Transaction> mTransactions;
 	
+	/**
+	 * The total serialized size of the accepted transactions, in bytes
+	 */
+	private long mTransactionBytes;
+	
+	/**
+	 * The time of acceptance of the first transaction, in milliseconds;
+	 * the block is considered open from that moment
+	 */
+	private long mOpenedAt;
+	
+	/**
+	 * The index of identifiers of all transactions accepted into this
+	 * chain; shared by all of its blocks
+	 */
+	private final TransactionIndex mTransactionIndex;
+	
 	/**
 	 * Copy of the initial ledger seed
 	 */
 	private final String mSeed;
 	
 	/**
-	 * Cached copy of the hash of the previous block (if present)
+	 * The hash of the previous block (empty for the genesis block). It may still be
+	 * pending while this block accepts transactions, if the previous block is being
+	 * sealed in the background; it completes once the previous block is committed
 	 */
-	private final String mPrevHash;
+	private final CompletableFuture<byte[]> mPrevHash;
 	
 	/**
-	 * base64 string representing a Merkle-tree hash of this block. 
+	 * The raw Merkle-tree hash of this block. 
 	 * Includes hashes for the initial seed, the block number,
 	 * the accounts and the transactions.
 	 * Computed wher the block is committed to the chain
 	 */
-	private String mHash;
+	private byte[] mHash;
+	
+	/**
+	 * The hash of this block, as seen by the next block; completes once this block is committed
+	 */
+	private final CompletableFuture<byte[]> mCommittedHash = new CompletableFuture<> ();
 	
 	public Block (Block prevBlock, String seed) {
-		mAccountMap = new HashMap <> ();
-		mTransactions = new HashMap<> ();
+		mOwnedBalances = new BalanceTable ();
+		mPendingFees = new AtomicLong ();
+		mChangedAccounts = new LinkedHashMap<> ();
+		mTransactions = new LinkedHashMap<> ();
 		mSeed = (seed != null) ? seed : "";
 		
 		if (prevBlock != null) {
 			mNumber = prevBlock.mNumber + 1;
-			mPrevBlock = prevBlock;
-			mPrevHash = prevBlock.getHash ();
-			Iterator<Account> accIter = mPrevBlock.mAccountMap.values ().iterator ();
-			while (accIter.hasNext ()) {
-				Account acc = accIter.next ();
-				mAccountMap.put (acc.getAddress (), acc.clone ());
+			mPrevHash = prevBlock.mCommittedHash;
+			mTransactionIndex = prevBlock.mTransactionIndex;
+			// share the account state of the previous block; only the accounts
+			// touched by this block's transactions will be copied
+			mAccountMap = prevBlock.foldAccounts ();
+			prevBlock.mOwnedBalances.release ();
+			// a block restored from the log has no dictionary; the chain continues
+			// with one built from its account state
+			if (prevBlock.mAddressBook != null) {
+				mAddressBook = prevBlock.mAddressBook;
+				mCommittedBalances = prevBlock.mCommittedBalances;
+			} else {
+				mAddressBook = new AddressBook (mAccountMap);
+				mCommittedBalances = new BalanceTable ();
+				for (Account acct: mAccountMap) {
+					mCommittedBalances.put (mAddressBook.find (acct.getAddress ()), acct.getBalance ());
+				}
 			}
 		} else {
 			mNumber = 1;
-			mPrevBlock = null;
-			mPrevHash = "";
+			mPrevHash = CompletableFuture.completedFuture (new byte [0]);
+			mTransactionIndex = new TransactionIndex ();
+			mAccountMap = AccountMap.EMPTY;
+			mAddressBook = new AddressBook ();
+			mCommittedBalances = new BalanceTable ();
+		}
+	}
+	
+	/**
+	 * Rebuilds a committed block from its stored contents
+	 * @param number The block number
+	 * @param seed The ledger seed
+	 * @param prevHash The hash of the previous block
+	 * @param hash The stored hash of this block
+	 * @param accountRoot The stored root of the account state
+	 * @param transactions The transactions, in the order of acceptance
+	 * @param changedAccounts The final state of the accounts created or modified in the block
+	 * @param prevState The account state of the previous block; if null, the block is
+	 * rebuilt without its account state, and its account root is taken on trust
+	 * @param index The transaction index of the chain
+	 */
+	Block (int number, String seed, byte[] prevHash, byte[] hash, byte[] accountRoot,
+			List<Transaction> transactions, List<Account> changedAccounts,
+			AccountMap prevState, TransactionIndex index)
+	{
+		mNumber = number;
+		mSeed = (seed != null) ? seed : "";
+		mPrevHash = CompletableFuture.completedFuture (prevHash);
+		mHash = hash;
+		mCommittedHash.complete (hash);
+		mAccountRoot = accountRoot;
+		mTransactionIndex = index;
+		mOwnedBalances = new BalanceTable ();
+		mAddressBook = null;
+		mCommittedBalances = null;
+		mPendingFees = new AtomicLong ();
+		mChangedAccounts = new LinkedHashMap<> ();
+		mTransactions = new LinkedHashMap<> ();
+		
+		for (Transaction transaction: transactions) {
+			mTransactions.put (transaction.getId (), transaction);
+			mTransactionBytes += transaction.getSerializedSize ();
+		}
+		for (Account acct: changedAccounts) {
+			mChangedAccounts.put (acct.getAddress (), acct);
+		}
+		mAccountMap = (prevState != null) ? prevState.withAll (changedAccounts) : null;
+	}
+	
+	/**
+	 * Moves the accounts owned by this block into the persistent account map.
+	 * After this, the accounts are shared and must not be changed in place
+	 * @return the account map with all changes of this block
+	 */
+	private AccountMap foldAccounts () {
+		long fees = mPendingFees.getAndSet (0);
+		if (fees != 0) {
+			ownBalance (AddressBook.MASTER_HANDLE);
+			mOwnedBalances.add (AddressBook.MASTER_HANDLE, (int) fees);
 		}
+		
+		int owned = mOwnedBalances.size ();
+		if (owned > 0) {
+			List<Account> accounts = new ArrayList<> (owned);
+			for (int iA = 0; iA < owned; iA ++) {
+				int handle = mOwnedBalances.getHandle (iA);
+				int balance = mOwnedBalances.get (handle);
+				accounts.add (new Account (mAddressBook.getAddress (handle)).withBalance (balance));
+				mCommittedBalances.put (handle, balance);
+			}
+			mAccountMap = mAccountMap.withAll (accounts);
+			for (Account acct: accounts) {
+				mChangedAccounts.put (acct.getAddress (), acct);
+			}
+			mOwnedBalances.clear ();
+		}
+		
+		return (mAccountMap);
 	}
 	
 	/**
-	 * Computes a Merkle-tree string hash in base64 of the contents of this block.
-	 * Includes the initial seed, identifier, the hash of all transactions and
-	 * the hash of all accounts.
+	 * Finds the current state of the account with the given address
+	 * @return a copy of the account, or null if no such account exists
 	 */
-	private String computeHash () {
-		return (Hash.hash (
-					mSeed,
-					Hash.hash (mNumber, getPreviousHash ()),
-					Hash.hash (mTransactions.values ()), 
-					Hash.hash (mAccountMap.values ())
-					)
-				);
+	private Account findAccount (String address) {
+		int handle = (mAddressBook != null) ? mAddressBook.find (address) : -1;
+		long balance = findBalance (handle);
+		return ((balance != NO_ACCOUNT) ? new Account (address).withBalance ((int) balance) : null);
 	}
 	
+	/**
+	 * @return the number of accounts known to the chain as of this block, including
+	 * those created in it
+	 */
+	int getAccountCount () {
+		if (mAddressBook != null) {
+			return (mAddressBook.size ());
+		}
+		
+		AccountMap accounts = getAccountMap ();
+		return ((accounts != null) ? accounts.size () : 0);
+	}
+	
+	/**
+	 * Finds the current balance of the account with the given handle
+	 * @param handle The account handle; -1 for an unknown address
+	 * @return the balance, or {@link #NO_ACCOUNT} if no such account exists
+	 */
+	private long findBalance (int handle) {
+		if (handle < 0) {
+			return (NO_ACCOUNT);
+		} else if (mOwnedBalances.isOwned (handle)) {
+			return (mOwnedBalances.get (handle));
+		}
+		
+		return (mCommittedBalances.isOwned (handle) ? mCommittedBalances.get (handle) : NO_ACCOUNT);
+	}
+	
+	/**
+	 * Takes the private copy of the balance of the account with the given handle,
+	 * copying it from the committed balances of the chain on first access
+	 */
+	private void ownBalance (int handle) {
+		if (!mOwnedBalances.isOwned (handle)) {
+			mOwnedBalances.put (handle, mCommittedBalances.get (handle));
+		}
+	}
+	
+	/**
+	 * Computes the Merkle-tree hash of the contents of this block: the root over
+	 * the leaf of the initial seed, the leaf of the block number and the previous
+	 * block hash, the root of the transactions (in the order of acceptance) and
+	 * the root of the account state. See {@link Hash} for the hashing format.
+	 * If the block has no account state, its stored account root is used.
+	 * @param full if false, the account state root is obtained incrementally, rehashing
+	 * only the accounts changed since the previous block; if true, it is recomputed from scratch
+	 */
+	private byte[] computeHash (boolean full) {
+		return (computeHash (computeAccountRoot (full)));
+	}
+	
+	private byte[] computeHash (byte[] accountRoot) {
+		return (BlockHeader.computeHash (mSeed, mNumber, mPrevHash.join (), computeTransactionRoot (), accountRoot));
+	}
+	
+	private byte[] computeAccountRoot (boolean full) {
+		AccountMap accounts = getAccountMap ();
+		if (accounts == null) {
+			return (mAccountRoot);
+		}
+		
+		return (full ? accounts.computeRootHash () : accounts.getRootHash ());
+	}
+	
+	/**
+	 * Computes the Merkle root of the transactions, in the order of their acceptance
+	 */
+	private byte[] computeTransactionRoot () {
+		return (Hash.root (new ArrayList<> (mTransactions.values ()), Transaction::computeLeafHash));
+	}
+	
+	/**
+	 * Computes and stores the account root and the hash of this block, once it is sealed.
+	 * Waits for the hash of the previous block if it is still pending
+	 */
 	public void updateHash () {
-		mHash = computeHash ();
+		mAccountRoot = computeAccountRoot (false);
+		mTransactionTree = Hash.tree (new ArrayList<> (mTransactions.values ()), Transaction::computeLeafHash);
+		mTransactionRoot = Hash.root (mTransactionTree);
+		mHash = BlockHeader.computeHash (mSeed, mNumber, mPrevHash.join (), mTransactionRoot, mAccountRoot);
+	}
+	
+	/**
+	 * Hands the hash of this block over to the next block; called once this block
+	 * is committed, so the next block is not hashed against a block that could still
+	 * change or fail to be committed
+	 */
+	void commitHash () {
+		mCommittedHash.complete (mHash);
+	}
+	
+	/**
+	 * Checks the stored hashes of a rebuilt block against its contents, taking the
+	 * account root incrementally from the account state
+	 * @return true if both the account root and the block hash match
+	 */
+	boolean verifyRestored () {
+		if (mAccountMap == null) {
+			return (MessageDigest.isEqual (mHash, computeHash (mAccountRoot)));
+		}
+		
+		byte[] accountRoot = computeAccountRoot (false);
+		return (MessageDigest.isEqual (mAccountRoot, accountRoot) &&
+				MessageDigest.isEqual (mHash, computeHash (accountRoot)));
+	}
+	
+	/**
+	 * Accessor method for the root of the account state of this block.
+	 * @return The raw account root; null if the block has not been committed
+	 */
+	public byte[] getAccountRoot () {
+		return (mAccountRoot);
+	}
+	
+	/**
+	 * Accessor method for the account state of this block.
+	 * @return The persistent account map; null if the block holds no account state
+	 */
+	AccountMap getAccountMap () {
+		// the account state may be released concurrently, once a later block is committed
+		return ((mAccountMap != null) ? foldAccounts () : null);
+	}
+	
+	/**
+	 * Builds the compact header of this committed block
+	 * @return the header, holding the hashes and the Merkle roots of this block
+	 */
+	public BlockHeader getHeader () {
+		byte[] transactionRoot = (mTransactionRoot != null) ? mTransactionRoot : computeTransactionRoot ();
+		return (new BlockHeader (mNumber, mHash, getRawPreviousHash (), transactionRoot, mAccountRoot));
+	}
+	
+	/**
+	 * Builds the proof that a transaction is included in this committed block
+	 * @param id The transaction identifier
+	 * @return the proof leading from the transaction to the block hash
+	 * @throws LedgerException if the block has not been committed, or does not hold the transaction
+	 */
+	public MerkleProof proveTransaction (String id) throws LedgerException {
+		int index = 0;
+		for (String key: mTransactions.keySet ()) {
+			if (key.equals (id)) {
+				break;
+			}
+			index ++;
+		}
+		if (index >= mTransactions.size ()) {
+			throw new LedgerException (OP_GET_PROOF, "Transaction " + id + " is not in block " + mNumber);
+		}
+		
+		// a rebuilt block does not cache its tree, as it is usually decoded for one inquiry
+		byte[][][] tree = (mTransactionTree != null) ? mTransactionTree :
+			Hash.tree (new ArrayList<> (mTransactions.values ()), Transaction::computeLeafHash);
+		List<byte[]> siblings = new ArrayList<> ();
+		List<Boolean> siblingOnLeft = new ArrayList<> ();
+		Hash.collectPath (tree, index, siblings, siblingOnLeft);
+		collectBlockPath (BlockHeader.TRANSACTION_ROOT_PART, Hash.root (tree), siblings, siblingOnLeft);
+		return (new MerkleProof (mNumber, siblings, siblingOnLeft));
+	}
+	
+	/**
+	 * Builds the proof of the balance of an account in this committed block; the block
+	 * must hold the state of all accounts
+	 * @param address The account address
+	 * @return the proof leading from the account balance to the block hash
+	 * @throws LedgerException if the block has not been committed, does not hold the
+	 * account state, or there is no account with this address
+	 */
+	public MerkleProof proveAccount (String address) throws LedgerException {
+		AccountMap accounts = getAccountMap ();
+		if (accounts == null) {
+			throw new LedgerException (OP_GET_PROOF, "Block " + mNumber + " does not retain its account state");
+		}
+		
+		List<byte[]> siblings = new ArrayList<> ();
+		List<Boolean> siblingOnLeft = new ArrayList<> ();
+		if (accounts.collectPath (address, siblings, siblingOnLeft) == null) {
+			throw new LedgerException (OP_GET_PROOF, "Account " + address + " does not exist in block " + mNumber);
+		}
+		collectBlockPath (BlockHeader.ACCOUNT_ROOT_PART, mAccountRoot, siblings, siblingOnLeft);
+		return (new MerkleProof (mNumber, siblings, siblingOnLeft));
+	}
+	
+	/**
+	 * Completes a proof with the path from one of the roots of this block up to its hash
+	 */
+	private void collectBlockPath (int part, byte[] root, List<byte[]> siblings, List<Boolean> siblingOnLeft)
+		throws LedgerException
+	{
+		if (mHash == null) {
+			throw new LedgerException (OP_GET_PROOF, "Block " + mNumber + " has not been committed");
+		}
+		
+		byte[] transactionRoot = (part == BlockHeader.TRANSACTION_ROOT_PART) ? root :
+			((mTransactionRoot != null) ? mTransactionRoot : computeTransactionRoot ());
+		byte[][] parts = BlockHeader.computeParts (mSeed, mNumber, getRawPreviousHash (), transactionRoot, mAccountRoot);
+		Hash.collectPath (parts, part, siblings, siblingOnLeft);
+	}
+	
+	/**
+	 * Drops the state of all accounts, keeping only the accounts changed in this block
+	 * and the account root. Called on a committed block once a later block is committed,
+	 * as the balance history of the ledger answers the inquiries about older blocks
+	 */
+	void releaseAccountState () {
+		mAccountMap = null;
+	}
+	
+	/**
+	 * @return true if this block holds the state of all accounts, not only the changed ones
+	 */
+	public boolean hasAccountState () {
+		return (mAccountMap != null);
 	}
 	
 	/**
-	 * Accessor method for the base6 hash of this block.
+	 * Accessor method for the base64 hash of this block.
 	 * @return The hash of this block.
 	 */
 	public String getHash () {
+		return (Hash.toBase64 (mHash));
+	}
+	
+	/**
+	 * Accessor method for the raw hash of this block.
+	 * @return The hash of this block; null if the block has not been committed
+	 */
+	public byte[] getRawHash () {
 		return (mHash);
 	}
 	
 	/**
-	 * Accessor method for the base6 hash of the previous block in the chain.
+	 * Accessor method for the base64 hash of the previous block in the chain.
 	 * Returns empty string is this is the genesis block. 
 	 * @return The hash of the previous block.
 	 */
 	public String getPreviousHash () {
-		return (mPrevHash);
+		return (Hash.toBase64 (mPrevHash.join ()));
+	}
+	
+	/**
+	 * Accessor method for the raw hash of the previous block in the chain.
+	 * Waits for the hash if the previous block is still being committed.
+	 * @return The hash of the previous block; empty for the genesis block.
+	 */
+	public byte[] getRawPreviousHash () {
+		return (mPrevHash.join ());
 	}
 	
 	/**
 	 * This method adds a new account to the map of accounts stored in this block.
+	 * The block stores its own copy, so later changes to the supplied object
+	 * do not affect the ledger.
 	 * @param acct The account to be added
 	 * @throws LedgerException if an account with this address already exists
 	 */
 	public void addAccount (Account acct) throws LedgerException {
+		addAccount (acct, mAddressBook.intern (acct.getAddress ()));
+	}
+	
+	private void addAccount (Account acct, int handle) throws LedgerException {
 		String address = acct.getAddress ();
-		if (mAccountMap.containsKey (address)) {
+		if (mOwnedBalances.isOwned (handle) || mCommittedBalances.isOwned (handle)) {
 			throw new LedgerException (OP_CREATE_ACCOUNT, "Account " + address + " already exists");
 		}
 			
-		mAccountMap.put (address, acct);		
+		mOwnedBalances.put (handle, acct.getBalance ());
 	}
 	
-	private final void validateTransaction (Transaction transaction) throws LedgerException {
+	/**
+	 * Adds a new account in the concurrent mode, under the lock of its address
+	 * @param acct The account to be added
+	 * @param locks The account locks of the ledger
+	 * @throws LedgerException if an account with this address already exists
+	 */
+	void addAccount (Account acct, AccountLocks locks) throws LedgerException {
+		int handle = mAddressBook.intern (acct.getAddress ());
+		locks.lock (handle, handle);
+		try {
+			addAccount (acct, handle);
+		} finally {
+			locks.unlock (handle, handle);
+		}
+	}
+	
+	private final void validateTransaction (Transaction transaction, AddressBook.Handles handles)
+			throws LedgerException
+	{
 		// verify that no transaction with this id exists in any of the blocks
-		for (Block b = this; b != null; b = b.mPrevBlock) {
-			if (b.getTransaction (transaction.getId ()) != null) {
-				throw new LedgerException (OP_TRANSACTION, 
-						"Invalid transaction " + transaction.getId () + ": duplicate identifier");
-			}
+		if (mTransactionIndex.contains (transaction.getId ())) {
+			throw new LedgerException (OP_TRANSACTION, duplicateIdentifier (transaction));
 		}
 		
+		long payerBalance = findBalance (handles.mPayer);
+		long receiverBalance = findBalance (handles.mReceiver);
+		String error = checkAccounts (transaction, payerBalance != NO_ACCOUNT, receiverBalance != NO_ACCOUNT);
+		if (error == null) {
+			error = checkAmounts (transaction, (int) payerBalance, (int) receiverBalance,
+					handles.mPayer == AddressBook.MASTER_HANDLE, handles.mReceiver == AddressBook.MASTER_HANDLE);
+		}
+		if (error != null) {
+			throw new LedgerException (OP_TRANSACTION, error);
+		}
+	}
+	
+	/**
+	 * @return the reason for rejecting a transaction whose identifier is already taken
+	 */
+	static String duplicateIdentifier (Transaction transaction) {
+		return ("Invalid transaction " + transaction.getId () + ": duplicate identifier");
+	}
+	
+	/**
+	 * Verifies that both accounts of a transaction exist. The checks return the reason
+	 * for the rejection rather than throw, as they are also used for speculative execution
+	 * @param transaction The transaction
+	 * @param payerExists Whether the payer account exists
+	 * @param receiverExists Whether the receiver account exists
+	 * @return the reason for the rejection; null if both accounts exist
+	 */
+	static String checkAccounts (Transaction transaction, boolean payerExists, boolean receiverExists) {
 		// verify that payer account exists
-		String	from = transaction.getPayer ();
-		if (!mAccountMap.containsKey (from)) {
-			throw new LedgerException (OP_TRANSACTION,
-					"Invalid transaction " + transaction.getId () + ": payer account " +
-							from + " does not exist.");
+		if (!payerExists) {
+			return ("Invalid transaction " + transaction.getId () + ": payer account " +
+							transaction.getPayer () + " does not exist.");
 		}
 		
 		// verify that receiving account exists
-		String	to = transaction.getReceiver ();
-		if (!mAccountMap.containsKey (to)) {
-			throw new LedgerException (OP_TRANSACTION,
-					"Invalid transaction " + transaction.getId () + ": receiver account " +
-							to + " does not exist.");
+		if (!receiverExists) {
+			return ("Invalid transaction " + transaction.getId () + ": receiver account " +
+							transaction.getReceiver () + " does not exist.");
 		}
 		
+		return (null);
+	}
+	
+	/**
+	 * Verifies the fee and the amount of a transaction against the balances of its accounts
+	 * @param transaction The transaction
+	 * @param payerBalance The current balance of the payer
+	 * @param receiverBalance The current balance of the receiver
+	 * @param payerIsMaster Whether the payer is the master account
+	 * @param receiverIsMaster Whether the receiver is the master account
+	 * @return the reason for the rejection; null if the fee and the balances allow the transfer
+	 */
+	static String checkAmounts (Transaction transaction, int payerBalance, int receiverBalance,
+			boolean payerIsMaster, boolean receiverIsMaster)
+	{
+		String	from = transaction.getPayer ();
+		String	to = transaction.getReceiver ();
 		int amount = transaction.getAmount ();
 		int fee = transaction.getFee ();
 		
 		// verify that the fee is at least the defined minimum fee
 		if (fee < MINIMUM_FEE) {
-			throw new LedgerException (OP_TRANSACTION,
-					"Invalid transaction " + transaction.getId () + 
+			return ("Invalid transaction " + transaction.getId () + 
 					": the fee amount is less than minimum allowed");
 		}
 		
 		// verify that the payer account has at least amount+fee in funds
-		if (mAccountMap.get (from).getBalance () < amount + 
-				(from.equalsIgnoreCase (MASTER_ACCOUNT) ? -fee : fee)) {
-			throw new LedgerException (OP_TRANSACTION,
-					"Invalid transaction " + transaction.getId () + ": payer account " +
+		if (payerBalance < amount + (payerIsMaster ? -fee : fee)) {
+			return ("Invalid transaction " + transaction.getId () + ": payer account " +
 					from + " does not have enough funds.");
 		}
 		
 		// Verify that the receiver account will not end up with more money than exists
-		if (mAccountMap.get (to).getBalance () + amount +
-				(to.equalsIgnoreCase (MASTER_ACCOUNT) ? fee : -fee) < 0) { // overflow 
-			throw new LedgerException (OP_TRANSACTION,
-					"Invalid transaction " + transaction.getId () + ": receiver account " +
+		if (receiverBalance + amount + (receiverIsMaster ? fee : -fee) < 0) { // overflow 
+			return ("Invalid transaction " + transaction.getId () + ": receiver account " +
 					to + " cannot have more funds than are available in the world.");
 		}
-	
+		
+		return (null);
 	}
 	
-	private void transferFunds (Transaction transaction) throws LedgerException {
+	private void transferFunds (Transaction transaction, LedgerMetrics metrics) throws LedgerException {
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		
 		// verify that the transfer request is valid
-		validateTransaction (transaction);
+		AddressBook.Handles handles = mAddressBook.resolve (transaction);
+		validateTransaction (transaction, handles);
+		
+		long validated = 0;
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.VALIDATE_TRANSACTION, start);
+			validated = System.nanoTime ();
+		}
 		
 		int amount = transaction.getAmount ();
 		int fee = transaction.getFee ();
 		
 		// The payer gets the amount of the transaction and the fee deducted from balance
-		mAccountMap.get (transaction.getPayer ()).addToBalance (-amount - fee);
+		ownBalance (handles.mPayer);
+		mOwnedBalances.add (handles.mPayer, -amount - fee);
 		
 		// The payee receives the transaction amount
-		mAccountMap.get (transaction.getReceiver ()).addToBalance (amount);
+		ownBalance (handles.mReceiver);
+		mOwnedBalances.add (handles.mReceiver, amount);
 		
 		// The fee goes back to master account
 		// Note: if it's a funding request, that is, the payer is master,
 		// then no fee is due - and the next line will restore the fee amount deducted
 		// during the first balance adjustment in this method
-		mAccountMap.get (MASTER_ACCOUNT).addToBalance (fee);
+		ownBalance (AddressBook.MASTER_HANDLE);
+		mOwnedBalances.add (AddressBook.MASTER_HANDLE, fee);
+		
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.TRANSFER, validated);
+		}
 	}
 	
 	/**
 	 * Accepts a previously created transaction for processing and inclusion in the block.
 	 * If the transaction is valid, the funds are transferred and the transaction is recorded
 	 * @param transaction the transaction to be processed
-	 * @return a boolean flag indicating if the block still did not reach the threshold number 
-	 * of transactions for it to be linked to the chain
 	 * @throws LedgerException if the transaction is invalid
 	 */
-	public boolean processTransaction (Transaction transaction) throws LedgerException {
-		transferFunds (transaction);
+	public void processTransaction (Transaction transaction) throws LedgerException {
+		processTransaction (transaction, null);
+	}
+	
+	/**
+	 * Accepts a transaction, recording the latencies of its validation and transfer
+	 * @param transaction the transaction to be processed
+	 * @param metrics The metrics of the ledger; null if they are not enabled
+	 * @throws LedgerException if the transaction is invalid
+	 */
+	void processTransaction (Transaction transaction, LedgerMetrics metrics) throws LedgerException {
+		transferFunds (transaction, metrics);
 		
+		synchronized (mTransactions) {
+			recordTransaction (transaction);
+		}
+	}
+	
+	/**
+	 * Accepts a transaction in the concurrent mode, where transactions on disjoint
+	 * accounts are processed in parallel. The transaction is validated and applied
+	 * under the locks of its payer and receiver, and takes its position in the block
+	 * from the sequencer in between; so, of any two transactions sharing an account,
+	 * the one applied first also comes first in the block. The fee is collected
+	 * without locking the master account, unless the master is the payer
+	 * @param transaction the transaction to be processed
+	 * @param locks The account locks of the ledger
+	 * @param policy The sealing policy of the ledger
+	 * @param metrics The metrics of the ledger; null if they are not enabled
+	 * @return false if the block is already full; the transaction is not processed then
+	 * @throws LedgerException if the transaction is invalid
+	 */
+	boolean processTransaction (Transaction transaction, AccountLocks locks, SealingPolicy policy,
+			LedgerMetrics metrics) throws LedgerException
+	{
+		AddressBook.Handles handles = mAddressBook.resolve (transaction);
+		int from = handles.mPayer;
+		int to = handles.mReceiver;
+		if (from < 0 || to < 0) {
+			// one of the accounts does not exist, so there is nothing to lock
+			validateTransaction (transaction, handles);
+		}
+		
+		locks.lock (from, to);
+		try {
+			long start = (metrics != null) ? System.nanoTime () : 0;
+			validateTransaction (transaction, handles);
+			
+			long validated = 0;
+			if (metrics != null) {
+				metrics.record (LedgerMetrics.Timer.VALIDATE_TRANSACTION, start);
+				validated = System.nanoTime ();
+			}
+			
+			synchronized (mTransactions) {
+				if (policy.isFull (this)) {
+					return (false);
+				}
+				if (mTransactionIndex.contains (transaction.getId ())) {
+					throw new LedgerException (OP_TRANSACTION, duplicateIdentifier (transaction));
+				}
+				recordTransaction (transaction);
+			}
+			
+			int amount = transaction.getAmount ();
+			int fee = transaction.getFee ();
+			ownBalance (from);
+			mOwnedBalances.add (from, -amount - fee);
+			ownBalance (to);
+			mOwnedBalances.add (to, amount);
+			if (from == AddressBook.MASTER_HANDLE) {
+				// a funding transfer; the master account is locked as the payer
+				mOwnedBalances.add (from, fee);
+			} else {
+				mPendingFees.addAndGet (fee);
+			}
+			
+			if (metrics != null) {
+				metrics.record (LedgerMetrics.Timer.TRANSFER, validated);
+			}
+		} finally {
+			locks.unlock (from, to);
+		}
+		
+		return (true);
+	}
+	
+	/**
+	 * Executes a batch of transactions optimistically in parallel against the current
+	 * state of this block (@see ParallelExecutor), without changing the block; the
+	 * outcome is to be applied transaction by transaction with {@link #applyExecuted}
+	 * @param transactions The batch, in the order of submission
+	 * @return the executor holding the outcome of each transaction
+	 */
+	ParallelExecutor executeBatch (List<Transaction> transactions) {
+		// credit the pending fees first, so the master balance is read exactly
+		foldAccounts ();
+		return (new ParallelExecutor (transactions.toArray (new Transaction [0]),
+				this::findAccount, mTransactionIndex).run ());
+	}
+	
+	/**
+	 * Records a transaction accepted by the parallel executor, along with its changes
+	 * @param transaction The transaction
+	 * @param balances The new balances written by the transaction, keyed by address
+	 * @param fee The fee to be credited to the master account in addition to the balances
+	 */
+	void applyExecuted (Transaction transaction, Map<String, Integer> balances, int fee) {
+		for (Map.Entry<String, Integer> entry: balances.entrySet ()) {
+			int handle = mAddressBook.find (entry.getKey ());
+			if (handle == AddressBook.MASTER_HANDLE) {
+				// the written master balance already includes all fees credited before
+				mPendingFees.set (0);
+			}
+			mOwnedBalances.put (handle, entry.getValue ());
+		}
+		mPendingFees.addAndGet (fee);
+		
+		synchronized (mTransactions) {
+			recordTransaction (transaction);
+		}
+	}
+	
+	/**
+	 * Assigns the accepted transaction its position in the block; called by the sequencer
+	 */
+	private void recordTransaction (Transaction transaction) {
+		if (mTransactions.isEmpty ()) {
+			mOpenedAt = System.currentTimeMillis ();
+		}
 		mTransactions.put (transaction.getId (), transaction);
-		return (mTransactions.size () < TRANSACTIONS_IN_BLOCK);
+		mTransactionBytes += transaction.getSerializedSize ();
+		mTransactionIndex.add (transaction.getId (), mNumber);
+	}
+	
+	/**
+	 * Estimates the heap held by the body of this block once it is committed: its
+	 * transactions with their cached tree and the accounts changed in it, not counting
+	 * the shared account state
+	 * @return the estimate, in bytes
+	 */
+	long estimateHeapBytes () {
+		synchronized (mTransactions) {
+			int treeOverhead = (mTransactionTree != null) ? TRANSACTION_TREE_HEAP_OVERHEAD : 0;
+			return (mTransactionBytes + mTransactions.size () * (long) (TRANSACTION_HEAP_OVERHEAD + treeOverhead) +
+					mChangedAccounts.size () * (long) ACCOUNT_HEAP_OVERHEAD);
+		}
+	}
+	
+	/**
+	 * @return the number of transactions accepted into this block
+	 */
+	public int getTransactionCount () {
+		synchronized (mTransactions) {
+			return (mTransactions.size ());
+		}
+	}
+	
+	/**
+	 * @return the total serialized size of the transactions in this block, in bytes
+	 */
+	public long getTransactionBytes () {
+		synchronized (mTransactions) {
+			return (mTransactionBytes);
+		}
+	}
+	
+	/**
+	 * @return the time the first transaction was accepted into this block, in milliseconds
+	 */
+	public long getOpenedAt () {
+		synchronized (mTransactions) {
+			return (mOpenedAt);
+		}
 	}
 	
 	/**
@@ -219,27 +876,71 @@ public class Block implements LedgerConstants {
 	 * @throws LedgerException if there is no account with this address
 	 */
 	public int getAccountBalance (String address) throws LedgerException {
-		Account acct = mAccountMap.get (address);
+		AccountMap accounts = getAccountMap ();
+		Account acct = (accounts != null) ? accounts.get (address) : mChangedAccounts.get (address);
 		if (acct != null) {
 			return (acct.getBalance ());
+		} else if (accounts == null) {
+			throw new LedgerException (OP_GET_BALANCE, "Account " + address + 
+					" was not changed in block " + mNumber + ", whose account state is not retained");
 		} else {
 			throw new LedgerException (OP_GET_BALANCE, "Account " + address + " does not exist");
 		}
 	}
 	
 	/**
-	 * Collects balances of all accounts in the account map, as recorded in this block
+	 * Collects balances of all accounts in the account map, as recorded in this block.
+	 * If the block holds no account state, only the accounts changed in it are included
 	 * @return the map of account balances (in whole units) keyed by the account address
 	 */
 	public Map<String, Integer> getAccountBalances () {
 		Map<String, Integer> ret = new HashMap<> ();
-		for (Account acct: mAccountMap.values ()) {
+		for (Account acct: getAccounts ()) {
 			ret.put (acct.getAddress (), acct.getBalance ());
 		}
 		
 		return (ret);
 	}
 	
+	/**
+	 * Obtains a read-only view of the balances of all accounts, as recorded in this block,
+	 * which shares the account state of the block rather than copying it (@see BalanceView).
+	 * If the block holds no account state, only the accounts changed in it are viewed
+	 * @return the view of the balances
+	 */
+	public BalanceView getBalanceView () {
+		AccountMap accounts = getAccountMap ();
+		return (new BalanceView (mNumber, accounts, (accounts != null) ? null : mChangedAccounts.values ()));
+	}
+	
+	/**
+	 * @return all accounts of this block, or only the changed ones if it holds no account state
+	 */
+	private Iterable<Account> getAccounts () {
+		AccountMap accounts = getAccountMap ();
+		return ((accounts != null) ? accounts : mChangedAccounts.values ());
+	}
+	
+	/**
+	 * Collects the accounts created or modified in this block
+	 * @return the final state of the changed accounts
+	 */
+	public Collection<Account> getChangedAccounts () {
+		if (mAccountMap != null) {
+			foldAccounts ();
+		}
+		
+		return (Collections.unmodifiableCollection (mChangedAccounts.values ()));
+	}
+	
+	/**
+	 * Collects the transactions of this block
+	 * @return the transactions, in the order of their acceptance
+	 */
+	public Collection<Transaction> getTransactions () {
+		return (Collections.unmodifiableCollection (mTransactions.values ()));
+	}
+	
 	/**
 	 * Looks up the transaction withthe given identifier in this block
 	 * @param transaction identifier
@@ -249,6 +950,15 @@ public class Block implements LedgerConstants {
 		return (mTransactions.get (id));
 	}
 	
+	/**
+	 * Accessor method for the index of transaction identifiers of the chain
+	 * this block belongs to
+	 * @return the transaction index
+	 */
+	public TransactionIndex getTransactionIndex () {
+		return (mTransactionIndex);
+	}
+	
 	/**
 	 * Accessor method for the seqiential number of this block in the chain (1-based)
 	 * @return the block number
@@ -265,9 +975,10 @@ public class Block implements LedgerConstants {
 	public String toString () {
 		StringBuilder sb = new StringBuilder ();
 		sb.append ("Block ").append (mNumber).append (System.lineSeparator ());
-		sb.append ("  Hash: ").append (mHash).append (System.lineSeparator ());
-		sb.append ("  Accounts:");
-		for (Account acct: mAccountMap.values ()) {
+		sb.append ("  Hash: ").append (getHash ()).append (System.lineSeparator ());
+		Iterable<Account> accounts = getAccounts ();
+		sb.append ((accounts instanceof AccountMap) ? "  Accounts:" : "  Accounts changed:");
+		for (Account acct: accounts) {
 			sb.append (System.lineSeparator ()).append ("    ").append (acct.toString ());
 		}
 		sb.append (System.lineSeparator ()).append ("  Transactions:");
@@ -279,18 +990,18 @@ public class Block implements LedgerConstants {
 	}
 	
 	/**
-	 * Verifies that the stored hash of the previous block coincides with the one that's computed
-	 * at the time of the call to this method.
+	 * Verifies that the stored hash of this block coincides with the one that's computed
+	 * from its contents at the time of the call to this method. The account state root is
+	 * recomputed from scratch, not taken from the cached hashes; if the block holds no
+	 * account state, its stored account root is used.
 	 * @throws LedgerException if the verification failed; does nothing if hashes are equal
 	 */
 	public void validate () throws LedgerException {
-		if (mPrevBlock != null) {
-			String computedHash = mPrevBlock.computeHash ();
-			if (!mPrevHash.equals (computedHash)) {
-				throw new LedgerException (OP_VALIDATE, "Verification of block " + mPrevBlock.getNumber () +
-						"failed: expected hash " +
-						mPrevHash + ", but computed " + computedHash);
-			}
+		byte[] computedHash = computeHash (true);
+		if (mHash == null || !MessageDigest.isEqual (mHash, computedHash)) {
+			throw new LedgerException (OP_VALIDATE, "Verification of block " + mNumber +
+					" failed: expected hash " +
+					getHash () + ", but computed " + Hash.toBase64 (computedHash));
 		}
 	}
 	
@@ -0,0 +1,156 @@
+package cscie97.smartcity.ledger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Converts committed blocks to and from their stored binary form. A block is stored
+ * as its number, the previous hash, its own hash and its account root, followed by
+ * its transactions and the final state of the accounts created or modified in it.
+ * This is enough to rebuild the account state of the whole chain by applying the
+ * changed accounts of each block in order, without executing the transactions again.
+ * Integers are 4 bytes big-endian; strings and hashes are prefixed with their
+ * 4-byte length (-1 for a null string), strings being encoded in UTF-8.
+ */
+public class BlockCodec implements LedgerConstants {
+
+	/**
+	 * Converts a committed block to its stored form
+	 * @param block The committed block
+	 * @return the encoded block
+	 */
+	public static byte[] encode (Block block) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream ();
+		try (DataOutputStream out = new DataOutputStream (bytes)) {
+			out.writeInt (block.getNumber ());
+			writeBytes (out, block.getRawPreviousHash ());
+			writeBytes (out, block.getRawHash ());
+			writeBytes (out, block.getAccountRoot ());
+
+			Collection<Transaction> transactions = block.getTransactions ();
+			out.writeInt (transactions.size ());
+			for (Transaction transaction: transactions) {
+				writeString (out, transaction.getId ());
+				writeString (out, transaction.getPayer ());
+				writeString (out, transaction.getReceiver ());
+				out.writeInt (transaction.getAmount ());
+				out.writeInt (transaction.getFee ());
+				writeString (out, transaction.getPayload ());
+			}
+
+			Collection<Account> accounts = block.getChangedAccounts ();
+			out.writeInt (accounts.size ());
+			for (Account acct: accounts) {
+				writeString (out, acct.getAddress ());
+				out.writeInt (acct.getBalance ());
+			}
+		} catch (IOException iox) {
+			// cannot happen when writing to memory
+			throw new IllegalStateException (iox);
+		}
+
+		return (bytes.toByteArray ());
+	}
+
+	/**
+	 * Reads the block number from the stored form, without decoding the rest of it
+	 * @param buf The encoded block; its position is not changed
+	 * @return the block number
+	 */
+	public static int peekNumber (ByteBuffer buf) {
+		return (buf.getInt (buf.position ()));
+	}
+
+	/**
+	 * Rebuilds a committed block from its stored form
+	 * @param buf The encoded block, positioned at its start
+	 * @param seed The ledger seed
+	 * @param prevState The account state of the previous block; if null, the block is
+	 * rebuilt without its account state
+	 * @param index The transaction index of the chain the block belongs to
+	 * @return the rebuilt block
+	 * @throws LedgerException if the stored form is malformed
+	 */
+	public static Block decode (ByteBuffer buf, String seed, AccountMap prevState, TransactionIndex index)
+			throws LedgerException
+	{
+		try {
+			int number = buf.getInt ();
+			byte[] prevHash = readBytes (buf);
+			byte[] hash = readBytes (buf);
+			byte[] accountRoot = readBytes (buf);
+
+			int txCount = buf.getInt ();
+			List<Transaction> transactions = new ArrayList<> (txCount);
+			for (int iT = 0; iT < txCount; iT ++) {
+				String id = readString (buf);
+				String payer = readString (buf);
+				String receiver = readString (buf);
+				int amount = buf.getInt ();
+				int fee = buf.getInt ();
+				String payload = readString (buf);
+				transactions.add (new Transaction (id, payer, receiver, amount).withFee (fee).withPayload (payload));
+			}
+
+			int acctCount = buf.getInt ();
+			List<Account> accounts = new ArrayList<> (acctCount);
+			for (int iA = 0; iA < acctCount; iA ++) {
+				String address = readString (buf);
+				accounts.add (new Account (address).withBalance (buf.getInt ()));
+			}
+
+			return (new Block (number, seed, prevHash, hash, accountRoot, transactions, accounts, prevState, index));
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException x) {
+			throw new LedgerException (OP_BLOCK_LOG, "malformed stored block");
+		}
+	}
+
+	static void writeBytes (DataOutputStream out, byte[] value) throws IOException {
+		out.writeInt (value.length);
+		out.write (value);
+	}
+
+	static void writeString (DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt (-1);
+		} else {
+			writeBytes (out, value.getBytes (StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Reads a length prefix, rejecting lengths that run past the end of the buffer
+	 */
+	private static int readLength (ByteBuffer buf) {
+		int len = buf.getInt ();
+		if (len > buf.remaining ()) {
+			throw new BufferUnderflowException ();
+		}
+		
+		return (len);
+	}
+
+	static byte[] readBytes (ByteBuffer buf) {
+		byte[] ret = new byte [readLength (buf)];
+		buf.get (ret);
+		return (ret);
+	}
+
+	static String readString (ByteBuffer buf) {
+		int len = readLength (buf);
+		if (len < 0) {
+			return (null);
+		}
+
+		byte[] utf8 = new byte [len];
+		buf.get (utf8);
+		return (new String (utf8, StandardCharsets.UTF_8));
+	}
+}
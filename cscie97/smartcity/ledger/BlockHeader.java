@@ -0,0 +1,140 @@
+package cscie97.smartcity.ledger;
+
+import java.security.MessageDigest;
+
+/**
+ * The compact header of a committed block: its number, its hash, the hash of the
+ * previous block and the Merkle roots of its transactions and of its account state.
+ * The hash of a block is computed from exactly these parts and the ledger seed, so
+ * a header can be verified on its own, and a chain of headers can be verified link
+ * by link, after the bodies of the blocks have been discarded.
+ */
+public final class BlockHeader implements LedgerConstants {
+
+	/**
+	 * The position of the transaction root among the parts of the block hash
+	 */
+	static final int TRANSACTION_ROOT_PART = 2;
+
+	/**
+	 * The position of the account root among the parts of the block hash
+	 */
+	static final int ACCOUNT_ROOT_PART = 3;
+
+	private final int mNumber;
+
+	private final byte[] mHash;
+
+	private final byte[] mPrevHash;
+
+	private final byte[] mTransactionRoot;
+
+	private final byte[] mAccountRoot;
+
+	BlockHeader (int number, byte[] hash, byte[] prevHash, byte[] transactionRoot, byte[] accountRoot) {
+		mNumber = number;
+		mHash = hash;
+		mPrevHash = prevHash;
+		mTransactionRoot = transactionRoot;
+		mAccountRoot = accountRoot;
+	}
+
+	/**
+	 * Computes the hash of a block from its parts: the root over the leaf of the
+	 * ledger seed, the leaf of the block number and the previous block hash, the root
+	 * of the transactions and the root of the account state
+	 */
+	static byte[] computeHash (String seed, int number, byte[] prevHash, byte[] transactionRoot, byte[] accountRoot) {
+		return (Hash.root (computeParts (seed, number, prevHash, transactionRoot, accountRoot)));
+	}
+	
+	/**
+	 * @return the hashes the block hash is the root of, in order
+	 */
+	static byte[][] computeParts (String seed, int number, byte[] prevHash, byte[] transactionRoot, byte[] accountRoot) {
+		return (new byte[][] {
+					Hash.leaf ().putString (seed).hash (),
+					Hash.leaf ().putInt (number).putBytes (prevHash).hash (),
+					transactionRoot,
+					accountRoot
+				});
+	}
+
+
+	/**
+	 * Verifies that the stored hash of the block coincides with the one computed
+	 * from the other parts of the header
+	 * @param seed The ledger seed
+	 * @throws LedgerException if the hashes differ
+	 */
+	public void verify (String seed) throws LedgerException {
+		byte[] computedHash = computeHash ((seed != null) ? seed : "", mNumber, mPrevHash, mTransactionRoot, mAccountRoot);
+		if (!MessageDigest.isEqual (mHash, computedHash)) {
+			throw new LedgerException (OP_VALIDATE, "Verification of the header of block " + mNumber +
+					" failed: expected hash " + getHash () + ", but computed " + Hash.toBase64 (computedHash));
+		}
+	}
+
+	/**
+	 * @return the block number (1-based)
+	 */
+	public int getNumber () {
+		return (mNumber);
+	}
+
+	/**
+	 * @return the base64 hash of the block
+	 */
+	public String getHash () {
+		return (Hash.toBase64 (mHash));
+	}
+
+	/**
+	 * @return the raw hash of the block
+	 */
+	public byte[] getRawHash () {
+		return (mHash);
+	}
+
+	/**
+	 * @return the base64 hash of the previous block; empty for the genesis block
+	 */
+	public String getPreviousHash () {
+		return (Hash.toBase64 (mPrevHash));
+	}
+
+	/**
+	 * @return the raw hash of the previous block; empty for the genesis block
+	 */
+	public byte[] getRawPreviousHash () {
+		return (mPrevHash);
+	}
+
+	/**
+	 * @return the raw Merkle root of the transactions of the block
+	 */
+	public byte[] getTransactionRoot () {
+		return (mTransactionRoot);
+	}
+
+	/**
+	 * @return the raw Merkle root of the account state of the block
+	 */
+	public byte[] getAccountRoot () {
+		return (mAccountRoot);
+	}
+
+	/**
+	 * The string representation of the header; contains the block number and the hashes
+	 */
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("Block ").append (mNumber).append (" (header only)").append (System.lineSeparator ());
+		sb.append ("  Hash: ").append (getHash ()).append (System.lineSeparator ());
+		sb.append ("  Previous hash: ").append (getPreviousHash ()).append (System.lineSeparator ());
+		sb.append ("  Transaction root: ").append (Hash.toBase64 (mTransactionRoot)).append (System.lineSeparator ());
+		sb.append ("  Account root: ").append (Hash.toBase64 (mAccountRoot));
+		return (sb.toString ());
+	}
+}
@@ -0,0 +1,431 @@
+package cscie97.smartcity.ledger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The durable, append-only log of committed blocks. The log is a directory of
+ * segment files, each named after the number of its first block. Every block is
+ * appended as a record: its length and CRC-32, 4 bytes each, followed by the stored
+ * form of the block (@see BlockCodec). Once a segment reaches its maximum size, a new
+ * one is started. Records are read through memory-mapped segments, so historical
+ * blocks do not have to be kept on the heap.
+ * When the log is opened, the segments are scanned and an incomplete record at the end
+ * of the last segment, left by an interrupted write, is cut off.
+ */
+public class BlockLog implements LedgerConstants {
+
+	/**
+	 * The moments at which the appended records are forced to the storage device
+	 */
+	public enum SyncPolicy {
+		/** after every block */
+		PER_BLOCK,
+		/** after every group of a fixed number of blocks */
+		GROUPED,
+		/** at fixed time intervals, by a background timer */
+		PERIODIC
+	}
+
+	private static final String SEGMENT_PREFIX = "blocks-";
+
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * The length and the checksum preceding each record
+	 */
+	private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+	/**
+	 * The default maximum size of a segment file, in bytes
+	 */
+	private static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The largest size of a segment file, in bytes: a segment is mapped in one buffer,
+	 * which is addressed by int positions
+	 */
+	private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+
+	/**
+	 * A segment file and the positions of its records
+	 */
+	private static final class Segment {
+		final int mFirstBlock;
+
+		final Path mPath;
+
+		/**
+		 * The open channel; only the last segment keeps it
+		 */
+		FileChannel mChannel;
+
+		/**
+		 * The mapping of the segment for reading; remapped as the segment grows
+		 */
+		MappedByteBuffer mMap;
+
+		long mSize;
+
+		long[] mOffsets = new long [64];
+
+		int mCount;
+
+		Segment (int firstBlock, Path path) {
+			mFirstBlock = firstBlock;
+			mPath = path;
+		}
+
+		void addOffset (long offset) {
+			if (mCount == mOffsets.length) {
+				mOffsets = Arrays.copyOf (mOffsets, mCount * 2);
+			}
+			mOffsets[mCount ++] = offset;
+		}
+	}
+
+	private final Path mDirectory;
+
+	private final List<Segment> mSegments = new ArrayList<> ();
+
+	private long mMaxSegmentBytes = DEFAULT_SEGMENT_BYTES;
+
+	private SyncPolicy mSyncPolicy = SyncPolicy.PER_BLOCK;
+
+	private int mSyncGroup = 1;
+
+	private int mUnsyncedBlocks = 0;
+
+	private ScheduledExecutorService mSyncTimer = null;
+
+	/**
+	 * The number of the last block in the log; 0 if the log is empty
+	 */
+	private int mLastBlock = 0;
+
+	/**
+	 * Opens the log in the given directory, creating the directory if needed,
+	 * and scans the existing segments
+	 * @param directory The log directory
+	 * @throws LedgerException if the log cannot be read or is corrupted
+	 */
+	public BlockLog (Path directory) throws LedgerException {
+		mDirectory = directory;
+		try {
+			Files.createDirectories (directory);
+			List<Path> paths = new ArrayList<> ();
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream (directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+				dir.forEach (paths::add);
+			}
+			paths.sort (Comparator.comparingInt (BlockLog::firstBlockOf));
+
+			for (int iS = 0; iS < paths.size (); iS ++) {
+				Path path = paths.get (iS);
+				Segment segment = new Segment (firstBlockOf (path), path);
+				if (segment.mFirstBlock != mLastBlock + 1) {
+					throw new LedgerException (OP_BLOCK_LOG, "segment " + path + " does not continue the log at block " + (mLastBlock + 1));
+				}
+				scan (segment, iS == paths.size () - 1);
+				mSegments.add (segment);
+				mLastBlock = segment.mFirstBlock + segment.mCount - 1;
+			}
+		} catch (IOException | NumberFormatException x) {
+			throw new LedgerException (OP_BLOCK_LOG, "could not open the block log in " + directory + ": " + x.getMessage ());
+		}
+	}
+
+	private static int firstBlockOf (Path path) {
+		String name = path.getFileName ().toString ();
+		return (Integer.parseInt (name.substring (SEGMENT_PREFIX.length (), name.length () - SEGMENT_SUFFIX.length ())));
+	}
+
+	private static long checksum (ByteBuffer payload) {
+		CRC32 crc = new CRC32 ();
+		crc.update (payload.duplicate ());
+		return (crc.getValue ());
+	}
+
+	/**
+	 * Locates the records of an existing segment. A damaged record in the last segment
+	 * is treated as an interrupted write, and the segment is truncated before it
+	 */
+	private void scan (Segment segment, boolean last) throws IOException, LedgerException {
+		FileChannel channel = FileChannel.open (segment.mPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long size = channel.size ();
+		MappedByteBuffer map = channel.map (FileChannel.MapMode.READ_ONLY, 0, size);
+
+		long pos = 0;
+		while (pos + RECORD_HEADER <= size) {
+			int len = map.getInt ((int) pos);
+			long crc = map.getInt ((int) pos + Integer.BYTES) & 0xFFFFFFFFL;
+			if (len < Integer.BYTES || pos + RECORD_HEADER + len > size) {
+				break;
+			}
+
+			ByteBuffer payload = map.duplicate ().position ((int) pos + RECORD_HEADER).limit ((int) pos + RECORD_HEADER + len);
+			if (checksum (payload) != crc ||
+					BlockCodec.peekNumber (payload) != segment.mFirstBlock + segment.mCount) {
+				break;
+			}
+
+			segment.addOffset (pos);
+			pos += RECORD_HEADER + len;
+		}
+
+		if (pos < size) {
+			if (!last) {
+				channel.close ();
+				throw new LedgerException (OP_BLOCK_LOG, "segment " + segment.mPath + " is damaged at offset " + pos);
+			}
+			// cut off the incomplete record
+			channel.truncate (pos);
+			channel.force (true);
+			map = channel.map (FileChannel.MapMode.READ_ONLY, 0, pos);
+		}
+
+		segment.mSize = pos;
+		segment.mMap = map;
+		if (last) {
+			segment.mChannel = channel;
+		} else {
+			channel.close ();
+		}
+	}
+
+	/*---------------------------------------------------*/
+	/* public API */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Builder-pattern setter of the maximum segment size. A segment is mapped in one
+	 * buffer, so the size is limited to {@link Integer#MAX_VALUE} bytes; a larger one is
+	 * reduced to the limit
+	 * @param maxSegmentBytes The size after which a new segment is started
+	 * @return The log
+	 */
+	public synchronized BlockLog withSegmentBytes (long maxSegmentBytes) {
+		mMaxSegmentBytes = Math.min (MAX_SEGMENT_BYTES, Math.max (RECORD_HEADER, maxSegmentBytes));
+		return (this);
+	}
+
+	/**
+	 * Builder-pattern setter of the sync policy
+	 * @param policy The sync policy
+	 * @param parameter The number of blocks in a group for {@link SyncPolicy#GROUPED},
+	 * the interval in milliseconds for {@link SyncPolicy#PERIODIC}; ignored otherwise
+	 * @return The log
+	 */
+	public synchronized BlockLog withSyncPolicy (SyncPolicy policy, long parameter) {
+		mSyncPolicy = policy;
+		mSyncGroup = (policy == SyncPolicy.GROUPED) ? (int) Math.max (1, parameter) : 1;
+
+		if (mSyncTimer != null) {
+			mSyncTimer.shutdownNow ();
+			mSyncTimer = null;
+		}
+		if (policy == SyncPolicy.PERIODIC) {
+			mSyncTimer = Executors.newSingleThreadScheduledExecutor ((r) -> {
+				Thread t = new Thread (r, "block-log-sync");
+				t.setDaemon (true);
+				return (t);
+			});
+			long period = Math.max (1, parameter);
+			mSyncTimer.scheduleAtFixedRate (() -> {
+				try {
+					sync ();
+				} catch (LedgerException lx) {
+					// the next sync will try again
+				}
+			}, period, period, TimeUnit.MILLISECONDS);
+		}
+
+		return (this);
+	}
+
+	/**
+	 * @return the number of the last block in the log; 0 if the log is empty
+	 */
+	public synchronized int getLastBlockNumber () {
+		return (mLastBlock);
+	}
+
+	/**
+	 * Appends a committed block to the log
+	 * @param block The block; its number must follow the last block in the log
+	 * @throws LedgerException if the block is out of order, too large for a segment, or cannot be written
+	 */
+	public synchronized void append (Block block) throws LedgerException {
+		if (block.getNumber () != mLastBlock + 1) {
+			throw new LedgerException (OP_BLOCK_LOG, "block " + block.getNumber () +
+					" does not follow the last logged block " + mLastBlock);
+		}
+
+		ByteBuffer payload = ByteBuffer.wrap (BlockCodec.encode (block));
+		ByteBuffer header = ByteBuffer.allocate (RECORD_HEADER);
+		header.putInt (payload.remaining ()).putInt ((int) checksum (payload)).flip ();
+		long recordBytes = RECORD_HEADER + payload.remaining ();
+		if (recordBytes > MAX_SEGMENT_BYTES) {
+			throw new LedgerException (OP_BLOCK_LOG, "block " + block.getNumber () + " is too large for a segment: " +
+					recordBytes + " bytes");
+		}
+
+		try {
+			Segment segment = mSegments.isEmpty () ? null : mSegments.get (mSegments.size () - 1);
+			if (segment == null || (segment.mCount > 0 && segment.mSize + recordBytes > mMaxSegmentBytes)) {
+				segment = startSegment (block.getNumber ());
+			}
+
+			FileChannel channel = segment.mChannel;
+			channel.position (segment.mSize);
+			ByteBuffer[] record = { header, payload };
+			while (payload.hasRemaining ()) {
+				channel.write (record);
+			}
+
+			segment.addOffset (segment.mSize);
+			segment.mSize += recordBytes;
+			mLastBlock ++;
+
+			mUnsyncedBlocks ++;
+			if (mSyncPolicy != SyncPolicy.PERIODIC && mUnsyncedBlocks >= mSyncGroup) {
+				channel.force (false);
+				mUnsyncedBlocks = 0;
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_BLOCK_LOG, "could not append block " + block.getNumber () + ": " + iox.getMessage ());
+		}
+	}
+
+	/**
+	 * Seals the current last segment and starts a new one
+	 */
+	private Segment startSegment (int firstBlock) throws IOException {
+		if (!mSegments.isEmpty ()) {
+			Segment last = mSegments.get (mSegments.size () - 1);
+			last.mChannel.force (false);
+			last.mMap = last.mChannel.map (FileChannel.MapMode.READ_ONLY, 0, last.mSize);
+			last.mChannel.close ();
+			last.mChannel = null;
+		}
+
+		Path path = mDirectory.resolve (String.format ("%s%010d%s", SEGMENT_PREFIX, firstBlock, SEGMENT_SUFFIX));
+		Segment segment = new Segment (firstBlock, path);
+		segment.mChannel = FileChannel.open (path, StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		mSegments.add (segment);
+		return (segment);
+	}
+
+	/**
+	 * Obtains the stored form of a block from the mapped segment
+	 * @param number The block number
+	 * @return the read-only buffer holding the stored block
+	 * @throws LedgerException if there is no such block in the log
+	 */
+	public synchronized ByteBuffer readRecord (int number) throws LedgerException {
+		if (number <= 0 || number > mLastBlock) {
+			throw new LedgerException (OP_BLOCK_LOG, "block " + number + " is not in the log");
+		}
+
+		// find the last segment that starts at or before the block
+		int lo = 0;
+		int hi = mSegments.size () - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (mSegments.get (mid).mFirstBlock <= number) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		Segment segment = mSegments.get (lo);
+		long offset = segment.mOffsets[number - segment.mFirstBlock];
+
+		try {
+			if (segment.mMap == null || segment.mMap.capacity () < segment.mSize) {
+				// the segment has grown since it was last mapped
+				segment.mMap = segment.mChannel.map (FileChannel.MapMode.READ_ONLY, 0, segment.mSize);
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_BLOCK_LOG, "could not read block " + number + ": " + iox.getMessage ());
+		}
+
+		int len = segment.mMap.getInt ((int) offset);
+		int start = (int) offset + RECORD_HEADER;
+		return (segment.mMap.duplicate ().position (start).limit (start + len).slice ().asReadOnlyBuffer ());
+	}
+
+	/**
+	 * Reads a block back from the log, without its account state
+	 * @param number The block number
+	 * @param seed The ledger seed
+	 * @param index The transaction index of the chain
+	 * @return the rebuilt block
+	 * @throws LedgerException if there is no such block in the log, or it cannot be decoded
+	 */
+	public Block read (int number, String seed, TransactionIndex index) throws LedgerException {
+		return (BlockCodec.decode (readRecord (number), seed, null, index));
+	}
+
+	/**
+	 * Forces all appended records to the storage device
+	 * @throws LedgerException if the records cannot be written
+	 */
+	public synchronized void sync () throws LedgerException {
+		if (mSegments.isEmpty () || mUnsyncedBlocks == 0) {
+			return;
+		}
+
+		try {
+			mSegments.get (mSegments.size () - 1).mChannel.force (false);
+			mUnsyncedBlocks = 0;
+		} catch (IOException iox) {
+			throw new LedgerException (OP_BLOCK_LOG, "could not sync the block log: " + iox.getMessage ());
+		}
+	}
+
+	/**
+	 * Syncs and closes the log; it cannot be used afterwards
+	 * @throws LedgerException if the records cannot be written
+	 */
+	public synchronized void close () throws LedgerException {
+		if (mSyncTimer != null) {
+			mSyncTimer.shutdownNow ();
+			mSyncTimer = null;
+		}
+		sync ();
+
+		try {
+			for (Segment segment: mSegments) {
+				if (segment.mChannel != null) {
+					segment.mChannel.close ();
+					segment.mChannel = null;
+				}
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_BLOCK_LOG, "could not close the block log: " + iox.getMessage ());
+		}
+	}
+
+	/**
+	 * The string representation of the log; contains its directory and size
+	 */
+	@Override
+	public String toString () {
+		return ("block log " + mDirectory + ", " + mLastBlock + " blocks in " + mSegments.size () + " segments");
+	}
+}
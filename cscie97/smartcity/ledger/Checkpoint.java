@@ -0,0 +1,145 @@
+package cscie97.smartcity.ledger;
+
+import java.security.MessageDigest;
+
+/**
+ * A global checkpoint of a sharded ledger (@see ShardedLedger#checkpoint): the
+ * number and the hash of the last committed block of every shard, at one moment.
+ * As a block hash covers the account root of the block, a checkpoint commits the
+ * state of all shards. The checkpoints form a chain of their own: the hash of a
+ * checkpoint is computed from the ledger seed, its number, the hash of the previous
+ * checkpoint and the blocks of the shards, in the order of the shards.
+ */
+public final class Checkpoint implements LedgerConstants {
+
+	private final int mNumber;
+
+	private final byte[] mHash;
+
+	private final byte[] mPrevHash;
+
+	/**
+	 * The number of the last committed block of each shard; 0 if a shard has none
+	 */
+	private final int[] mBlockNumbers;
+
+	/**
+	 * The raw hash of the last committed block of each shard; empty if a shard has none
+	 */
+	private final byte[][] mBlockHashes;
+
+	private final long mTimestamp = System.currentTimeMillis ();
+
+	Checkpoint (String seed, int number, byte[] prevHash, int[] blockNumbers, byte[][] blockHashes) {
+		mNumber = number;
+		mPrevHash = prevHash;
+		mBlockNumbers = blockNumbers;
+		mBlockHashes = blockHashes;
+		mHash = computeHash (seed, number, prevHash, blockNumbers, blockHashes);
+	}
+
+	/**
+	 * Computes the hash of a checkpoint: the root over the leaf of the ledger seed,
+	 * the leaf of the checkpoint number and the previous hash, and a leaf for the
+	 * block of each shard
+	 */
+	static byte[] computeHash (String seed, int number, byte[] prevHash, int[] blockNumbers, byte[][] blockHashes) {
+		byte[][] parts = new byte [blockNumbers.length + 2][];
+		parts[0] = Hash.leaf ().putString (seed).hash ();
+		parts[1] = Hash.leaf ().putInt (number).putBytes (prevHash).hash ();
+		for (int iS = 0; iS < blockNumbers.length; iS ++) {
+			parts[iS + 2] = Hash.leaf ().putInt (iS).putInt (blockNumbers[iS]).putBytes (blockHashes[iS]).hash ();
+		}
+
+		return (Hash.root (parts));
+	}
+
+	/**
+	 * Verifies that the stored hash of the checkpoint coincides with the one computed
+	 * from its other parts
+	 * @param seed The seed of the sharded ledger
+	 * @throws LedgerException if the hashes differ
+	 */
+	public void verify (String seed) throws LedgerException {
+		byte[] computedHash = computeHash ((seed != null) ? seed : "", mNumber, mPrevHash, mBlockNumbers, mBlockHashes);
+		if (!MessageDigest.isEqual (mHash, computedHash)) {
+			throw new LedgerException (OP_CHECKPOINT, "Verification of checkpoint " + mNumber +
+					" failed: expected hash " + getHash () + ", but computed " + Hash.toBase64 (computedHash));
+		}
+	}
+
+	/**
+	 * @return the checkpoint number (1-based)
+	 */
+	public int getNumber () {
+		return (mNumber);
+	}
+
+	/**
+	 * @return the base64 hash of the checkpoint
+	 */
+	public String getHash () {
+		return (Hash.toBase64 (mHash));
+	}
+
+	/**
+	 * @return the raw hash of the checkpoint
+	 */
+	public byte[] getRawHash () {
+		return (mHash);
+	}
+
+	/**
+	 * @return the raw hash of the previous checkpoint; empty for the first one
+	 */
+	public byte[] getRawPreviousHash () {
+		return (mPrevHash);
+	}
+
+	/**
+	 * @return the number of shards
+	 */
+	public int getShardCount () {
+		return (mBlockNumbers.length);
+	}
+
+	/**
+	 * @param shard The shard index (0-based)
+	 * @return the number of the last committed block of the shard; 0 if it had none
+	 */
+	public int getBlockNumber (int shard) {
+		return (mBlockNumbers[shard]);
+	}
+
+	/**
+	 * @param shard The shard index (0-based)
+	 * @return the raw hash of the last committed block of the shard; empty if it had none
+	 */
+	public byte[] getBlockHash (int shard) {
+		return (mBlockHashes[shard]);
+	}
+
+	/**
+	 * @return the time the checkpoint was taken, in milliseconds since the epoch
+	 */
+	public long getTimestamp () {
+		return (mTimestamp);
+	}
+
+	/**
+	 * The string representation of the checkpoint; contains its number, its hash
+	 * and the block of each shard
+	 */
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("Checkpoint ").append (mNumber).append (System.lineSeparator ());
+		sb.append ("  Hash: ").append (getHash ()).append (System.lineSeparator ());
+		sb.append ("  Previous hash: ").append (Hash.toBase64 (mPrevHash));
+		for (int iS = 0; iS < mBlockNumbers.length; iS ++) {
+			sb.append (System.lineSeparator ()).append ("  Shard ").append (iS).append (": block ")
+					.append (mBlockNumbers[iS]).append (", hash ").append (Hash.toBase64 (mBlockHashes[iS]));
+		}
+		return (sb.toString ());
+	}
+}
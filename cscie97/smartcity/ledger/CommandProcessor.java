@@ -4,11 +4,16 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
@@ -25,6 +30,11 @@ public class CommandProcessor implements LedgerConstants {
 	 */
 	private Ledger mLedger = null;
 
+	/**
+	 * The size, in characters, of the output buffer of a command file replay
+	 */
+	private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
 	/**
 	 * The output stream where all messages arising from the operations being accepted or
 	 * rejected are directed. Default to the system output.
@@ -59,6 +69,12 @@ public class CommandProcessor implements LedgerConstants {
 	 * ledger and caches it. Needs to be execited before all other commands.
 	 */
 	private final Command mCreateLedgerCommand = (args) -> {
+		// the previous ledger releases its block log and threads, which the new one may reuse
+		if (mLedger != null) {
+			Ledger previous = mLedger;
+			mLedger = null;
+			previous.close ();
+		}
 		mLedger = parseLedger (args);
 		return ("created " + mLedger);
 	};
@@ -81,7 +97,8 @@ public class CommandProcessor implements LedgerConstants {
 
 	/**
 	 * The instance of the command interface that inquires of the balance of 
-	 * an account and formats it for printing
+	 * an account and formats it for printing; the "block" option asks for
+	 * the balance as of a committed block
 	 */
 	private final Command mGetAccountBalanceCommand = (args) -> {
 		if (mLedger == null) {
@@ -93,26 +110,57 @@ public class CommandProcessor implements LedgerConstants {
 		}
 		
 		String address = args[0];
+		
+		// the inquiry may be made as of a committed block
+		if (args.length > 2 && BALANCE_BLOCK.equalsIgnoreCase (args[1])) {
+			int blockNumber;
+			try {
+				blockNumber = Integer.parseInt (args[2]);
+			} catch (NumberFormatException nfx) {
+				throw new LedgerException (OP_GET_BALANCE, "the block number is not valid.");
+			}
+			return ("balance for " + address + " in block " + blockNumber + ": " +
+					String.valueOf (mLedger.getAccountBalance (address, blockNumber)));
+		}
+		
 		return ("balance for " + address + ": " + String.valueOf (mLedger.getAccountBalance (address)));
 	};
 
 	/**
-	 * The instance of the command interface that collects balances of 
-	 * all known accounts and formats them for printing
+	 * The instance of the command interface that formats the balances of all
+	 * known accounts for printing, straight from the view of the balances;
+	 * optionally only those of the addresses with a prefix, a page at a time
 	 */
 	private final Command mGetAccountBalancesCommand = (args) -> {
 		if (mLedger == null) {
 			throw new LedgerException (OP_GET_ALL_BALANCES, "no ledger");
 		}
 		
-		Map<String, Integer> balances = mLedger.getAccountBalances ();
+		int[] located = locateArgs (args, 0, BALANCES_OPTIONS);
+		int limit = Integer.MAX_VALUE;
+		String limitArg = getFirstArg (args, located, OPTION_BALANCES_LIMIT);
+		if (limitArg != null) {
+			try {
+				limit = Integer.parseInt (limitArg);
+			} catch (NumberFormatException nfx) {
+				limit = 0;
+			}
+			if (limit <= 0) {
+				throw new LedgerException (OP_GET_ALL_BALANCES, "the page size is not valid.");
+			}
+		}
+		
+		BalanceView view = mLedger.getBalanceView ().withPrefix (getFirstArg (args, located, OPTION_BALANCES_PREFIX));
 
 		StringBuilder sb = new StringBuilder ();		
 		sb.append ("account balances:");
-		
-		for (Map.Entry<String, Integer> entry: balances.entrySet ()) {
-			sb.append (System.lineSeparator ()).append ("  ")
-			.append (entry.getKey ()).append (": ").append (entry.getValue ());
+		try {
+			String lastAddress = view.appendTo (sb, getFirstArg (args, located, OPTION_BALANCES_AFTER), limit);
+			if (lastAddress != null) {
+				sb.append (System.lineSeparator ()).append ("  more ").append (BALANCES_AFTER).append (" ").append (lastAddress);
+			}
+		} catch (IOException iox) {
+			// a string builder is not written to an output
 		}
 		
 		return (sb.toString ());
@@ -133,6 +181,54 @@ public class CommandProcessor implements LedgerConstants {
 		return ("processed " + transaction.toString ());
 	};
 	
+	/**
+	 * The instance of the command interface that reads a batch of transactions from
+	 * a file, one per line in the format of the process-transaction command arguments,
+	 * and processes them in one call to the ledger. Empty lines and lines beginning
+	 * with the '#' symbol are ignored. A line that cannot be parsed rejects the batch
+	 */
+	private final Command mProcessTransactionsCommand = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_TRANSACTIONS, "no ledger");
+		}
+		
+		if (args.length <= 0) {
+			throw new LedgerException (OP_TRANSACTIONS, "no file supplied for the transaction batch");
+		}
+		
+		List<Transaction> transactions = new ArrayList<> ();
+		try (CommandScanner scanner = new CommandScanner (Paths.get (args[0]))) {
+			while (scanner.next ()) {
+				if (scanner.isBlankOrComment ()) {
+					continue;
+				}
+				
+				try {
+					transactions.add (parseTransaction (scanner.getTokens ()));
+				} catch (LedgerException lx) {
+					throw new LedgerException (OP_TRANSACTIONS, "at line " + scanner.getLineNumber () + " of " + args[0] +
+							": " + lx.getMessage ());
+				}
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_TRANSACTIONS, "could not read transactions from file " + args[0]);
+		}
+		
+		List<TransactionResult> results = mLedger.processTransactions (transactions);
+		
+		StringBuilder sb = new StringBuilder ();
+		int accepted = 0;
+		for (TransactionResult result: results) {
+			if (result.isAccepted ()) {
+				accepted ++;
+			} else {
+				sb.append (System.lineSeparator ()).append ("  ").append (result);
+			}
+		}
+		
+		return ("processed " + accepted + " of " + results.size () + " transactions" + sb);
+	};
+	
 	/**
 	 * The instance of the command interface that tries to find a transaction 
 	 * with a given identifier in the linked blocks and, if found,
@@ -164,31 +260,138 @@ public class CommandProcessor implements LedgerConstants {
 	};
 	
 	/**
-	 * The instance of the command interface that traverses all
+	 * The instance of the command interface that finds the header of a block
+	 * with a given number and formats it for printing; the header is available
+	 * even if the body of the block has been discarded
+	 */
+	private Command mGetBlockHeaderCommand  = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_GET_BLOCK_HEADER, "no ledger");
+		}
+		
+		if (args.length <= 0) {
+			throw new LedgerException (OP_GET_BLOCK_HEADER, "no number supplied for block header inquiry");
+		}
+		
+		return (mLedger.getBlockHeader (Integer.valueOf (args[0])).toString ());
+	};
+	
+	/**
+	 * The instance of the command interface that builds the proof that a transaction
+	 * is included in its committed block, or of the balance of an account in the last
+	 * committed block, and formats it for printing
+	 */
+	private Command mGetProofCommand  = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_GET_PROOF, "no ledger");
+		}
+		
+		if (args.length <= 1) {
+			throw new LedgerException (OP_GET_PROOF, "no transaction identifier or account address supplied for proof inquiry");
+		}
+		
+		if (PROOF_TRANSACTION.equalsIgnoreCase (args[0])) {
+			return ("proof for transaction " + args[1] + ": " + mLedger.getTransactionProof (args[1]));
+		} else if (PROOF_BALANCE.equalsIgnoreCase (args[0])) {
+			return ("proof for the balance of " + args[1] + ": " + mLedger.getBalanceProof (args[1]));
+		}
+		throw new LedgerException (OP_GET_PROOF, "the proof must be of a " + PROOF_TRANSACTION + " or a " + PROOF_BALANCE);
+	};
+	
+	/**
+	 * The instance of the command interface that traverses the
 	 * blocks in the chain and checks that their hashes have been
-	 * cached correctly. 
+	 * cached correctly. Only the blocks committed since the last validation
+	 * are checked, unless the "full" option is given. 
 	 */
 	private Command mValidateCommand = (args) -> {
 		if (mLedger == null) {
 			throw new LedgerException (OP_VALIDATE, "no ledger");
 		}
 		
-		mLedger.validate ();
+		boolean full = args.length > 0 && VALIDATE_FULL.equalsIgnoreCase (args[0]);
+		mLedger.validate (full);
 		return ("committed blocks validated successfully.");
 	};
 
+	/**
+	 * The instance of the command interface that writes all committed blocks
+	 * to a file in the wire format (@see WireFormat)
+	 */
+	private Command mExportChainCommand = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_EXPORT, "no ledger");
+		}
+		
+		if (args.length <= 0) {
+			throw new LedgerException (OP_EXPORT, "no file supplied for the export");
+		}
+		
+		int blocks;
+		try (OutputStream out = Files.newOutputStream (Paths.get (args[0]))) {
+			blocks = mLedger.exportChain (out);
+		} catch (IOException iox) {
+			throw new LedgerException (OP_EXPORT, "could not write the chain to file " + args[0]);
+		}
+		return ("exported " + blocks + " blocks to " + args[0]);
+	};
+	
+	/**
+	 * The instance of the command interface that rebuilds the chain exported
+	 * to a file in the ledger, which must be new
+	 */
+	private Command mImportChainCommand = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_IMPORT, "no ledger");
+		}
+		
+		if (args.length <= 0) {
+			throw new LedgerException (OP_IMPORT, "no file supplied for the import");
+		}
+		
+		int blocks;
+		try (InputStream in = Files.newInputStream (Paths.get (args[0]))) {
+			blocks = mLedger.importChain (in);
+		} catch (IOException iox) {
+			throw new LedgerException (OP_IMPORT, "could not read the chain from file " + args[0]);
+		}
+		return ("imported " + blocks + " blocks from " + args[0]);
+	};
+
+	/**
+	 * The instance of the command interface that formats the metrics of the
+	 * ledger for printing, as sampled at the moment
+	 */
+	private Command mLedgerStatsCommand = (args) -> {
+		if (mLedger == null) {
+			throw new LedgerException (OP_STATS, "no ledger");
+		}
+		
+		LedgerMetrics metrics = mLedger.getMetrics ();
+		if (metrics == null) {
+			throw new LedgerException (OP_STATS, "the metrics are not enabled");
+		}
+		return (metrics.toString ());
+	};
+
 	/**
 	 * The map of all valid commands, keyed by their string identifiers
 	 */
-	private final Map<String, Command> mCommands = Map.of (
-			OP_CREATE_LEDGER, mCreateLedgerCommand,
-			OP_CREATE_ACCOUNT, mCreateAccountCommand,
-			OP_GET_BALANCE, mGetAccountBalanceCommand,
-			OP_GET_ALL_BALANCES, mGetAccountBalancesCommand,
-			OP_TRANSACTION, mProcessTransactionCommand,
-			OP_GET_TRANSACTION, mGetTransactionCommand,
-			OP_GET_BLOCK, mGetBlockCommand,
-			OP_VALIDATE, mValidateCommand
+	private final Map<String, Command> mCommands = Map.ofEntries (
+			Map.entry (OP_CREATE_LEDGER, mCreateLedgerCommand),
+			Map.entry (OP_CREATE_ACCOUNT, mCreateAccountCommand),
+			Map.entry (OP_GET_BALANCE, mGetAccountBalanceCommand),
+			Map.entry (OP_GET_ALL_BALANCES, mGetAccountBalancesCommand),
+			Map.entry (OP_TRANSACTION, mProcessTransactionCommand),
+			Map.entry (OP_TRANSACTIONS, mProcessTransactionsCommand),
+			Map.entry (OP_GET_TRANSACTION, mGetTransactionCommand),
+			Map.entry (OP_GET_BLOCK, mGetBlockCommand),
+			Map.entry (OP_GET_BLOCK_HEADER, mGetBlockHeaderCommand),
+			Map.entry (OP_GET_PROOF, mGetProofCommand),
+			Map.entry (OP_VALIDATE, mValidateCommand),
+			Map.entry (OP_EXPORT, mExportChainCommand),
+			Map.entry (OP_IMPORT, mImportChainCommand),
+			Map.entry (OP_STATS, mLedgerStatsCommand)
 			);
 
 	/**
@@ -218,6 +421,80 @@ public class CommandProcessor implements LedgerConstants {
 		return (parsed);
 	}
 
+	/**
+	 * The option words of a transaction command, and the positions of those with values
+	 * in the list, as located by {@link #locateArgs(String[], int, String[])}
+	 */
+	private static final String[] TRANSACTION_OPTIONS = {
+			TRANSACTION_ID,
+			TRANSACTION_PAYER,
+			TRANSACTION_RECEIVER,
+			TRANSACTION_AMOUNT,
+			TRANSACTION_FEE,
+			TRANSACTION_NOTE
+	};
+	
+	private static final int OPTION_PAYER = 1;
+	private static final int OPTION_RECEIVER = 2;
+	private static final int OPTION_AMOUNT = 3;
+	private static final int OPTION_FEE = 4;
+	private static final int OPTION_NOTE = 5;
+	
+	/**
+	 * The option words of an inquiry of all balances, and the positions of their values
+	 */
+	private static final String[] BALANCES_OPTIONS = {
+			BALANCES_PREFIX,
+			BALANCES_AFTER,
+			BALANCES_LIMIT
+	};
+	
+	private static final int OPTION_BALANCES_PREFIX = 0;
+	private static final int OPTION_BALANCES_AFTER = 1;
+	private static final int OPTION_BALANCES_LIMIT = 2;
+	
+	/**
+	 * Locates the tokens following each option word, like {@link #parseArgs(String[], int, Set)},
+	 * but without collecting them: the tokens following an option word are consecutive,
+	 * so they are located by the position of the first one and their number. Used for
+	 * the transaction commands, which are the bulk of the command files
+	 * @param args the list of command tokens
+	 * @param fromArg the index of the argument in the list to start processing from
+	 * @param options the option words
+	 * @return for the option word at each position in the list, the position of its first
+	 * token in the argument list at twice that position, and the number of its tokens
+	 * right after; 0 tokens if the option word is not present
+	 */
+	private static int[] locateArgs (String [] args, int fromArg, String[] options) {
+		int[] located = new int [options.length * 2];
+		
+		int curOpt = -1;
+		for (int iArg = fromArg; iArg < args.length; iArg ++) {
+			int iOpt = options.length - 1;
+			while (iOpt >= 0 && !options[iOpt].equals (args[iArg])) {
+				iOpt --;
+			}
+			
+			if (iOpt >= 0) {
+				curOpt = iOpt;
+				located[iOpt * 2] = iArg + 1;
+				located[iOpt * 2 + 1] = 0;
+			} else if (curOpt >= 0) {
+				located[curOpt * 2 + 1] ++;
+			}
+		}
+		
+		return (located);
+	}
+	
+	/**
+	 * @return the first token following the option word at the given position in the
+	 * list of option words; null if the option word is not present, or has no tokens
+	 */
+	private static String getFirstArg (String[] args, int[] located, int option) {
+		return ((located[option * 2 + 1] > 0) ? args[located[option * 2]] : null);
+	}
+	
 	/**
 	 * A helper method that parses a ledger command
 	 */
@@ -231,7 +508,18 @@ public class CommandProcessor implements LedgerConstants {
 		// The list of recognized option words
 		Set<String> options = Set.of (
 				LEDGER_SEED,
-				LEDGER_DESCRIPTION
+				LEDGER_DESCRIPTION,
+				LEDGER_MAX_TRANSACTIONS,
+				LEDGER_MAX_BYTES,
+				LEDGER_MAX_MILLIS,
+				LEDGER_READ_YOUR_WRITES,
+				LEDGER_CONCURRENT,
+				LEDGER_PIPELINE,
+				LEDGER_RETAIN,
+				LEDGER_LOG,
+				LEDGER_LOG_SYNC,
+				LEDGER_SNAPSHOTS,
+				LEDGER_METRICS
 		);
 		
 		// parse the parameters of the incoming command
@@ -246,14 +534,133 @@ public class CommandProcessor implements LedgerConstants {
 		
 		// create new ledger object from name and seed
 		Ledger	ret = new Ledger (name, seed);
+		try {
+			configureLedger (ret, parsed);
+		} catch (LedgerException | RuntimeException x) {
+			// stops the threads and releases the files the ledger acquired so far
+			try {
+				ret.close ();
+			} catch (LedgerException lx) {
+				x.addSuppressed (lx);
+			}
+			throw x;
+		}
 		
+		return (ret);
+	}
+	
+	/**
+	 * A helper method that configures a new ledger from the parsed options of a ledger command
+	 */
+	private static void configureLedger (Ledger ret, Map<String, ArrayList<String>> parsed) throws LedgerException {
 		// set description, if present in the command line
 		ArrayList<String> descrArr = parsed.get (LEDGER_DESCRIPTION);
 		if (descrArr != null && descrArr.size () > 0) {
 			ret.withDescription (String.join (" ", descrArr));
 		}
 		
-		return (ret);
+		// set the sealing policy, if any of its limits is present in the command line
+		SealingPolicy policy = new SealingPolicy ();
+		boolean hasPolicy = false;
+		try {
+			ArrayList<String> countArr = parsed.get (LEDGER_MAX_TRANSACTIONS);
+			if (countArr != null && countArr.size () == 1) {
+				policy.withMaxTransactions (Integer.parseUnsignedInt (countArr.get (0)));
+				hasPolicy = true;
+			}
+			ArrayList<String> bytesArr = parsed.get (LEDGER_MAX_BYTES);
+			if (bytesArr != null && bytesArr.size () == 1) {
+				policy.withMaxBytes (Long.parseUnsignedLong (bytesArr.get (0)));
+				hasPolicy = true;
+			}
+			ArrayList<String> millisArr = parsed.get (LEDGER_MAX_MILLIS);
+			if (millisArr != null && millisArr.size () == 1) {
+				policy.withMaxOpenMillis (Long.parseUnsignedLong (millisArr.get (0)));
+				hasPolicy = true;
+			}
+		} catch (NumberFormatException nfx) { // could not parse one of the limits
+			throw new LedgerException (OP_CREATE_LEDGER, "the sealing policy limit is not valid.");
+		}
+		if (hasPolicy) {
+			ret.withSealingPolicy (policy);
+		}
+		
+		// the read-your-writes mode is a flag with no value
+		if (parsed.containsKey (LEDGER_READ_YOUR_WRITES)) {
+			ret.withReadYourWrites (true);
+		}
+		
+		// the concurrent mode may specify the number of account locks
+		ArrayList<String> concurrentArr = parsed.get (LEDGER_CONCURRENT);
+		if (concurrentArr != null) {
+			try {
+				ret.withConcurrency (concurrentArr.isEmpty () ? ACCOUNT_LOCK_STRIPES :
+					Integer.parseUnsignedInt (concurrentArr.get (0)));
+			} catch (NumberFormatException nfx) { // could not parse the number of locks
+				throw new LedgerException (OP_CREATE_LEDGER, "the number of account locks is not valid.");
+			}
+		}
+		
+		// the pipelined sealing may specify the number of blocks in flight
+		ArrayList<String> pipelineArr = parsed.get (LEDGER_PIPELINE);
+		if (pipelineArr != null) {
+			try {
+				ret.withPipelinedSealing (pipelineArr.isEmpty () ? SEAL_PIPELINE_DEPTH :
+					Integer.parseUnsignedInt (pipelineArr.get (0)));
+			} catch (NumberFormatException nfx) { // could not parse the number of blocks
+				throw new LedgerException (OP_CREATE_LEDGER, "the number of blocks in flight is not valid.");
+			}
+		}
+		
+		// the retention limit takes the number of blocks retained
+		ArrayList<String> retainArr = parsed.get (LEDGER_RETAIN);
+		if (retainArr != null && retainArr.size () == 1) {
+			try {
+				ret.withRetention (Integer.parseUnsignedInt (retainArr.get (0)));
+			} catch (NumberFormatException nfx) { // could not parse the number of blocks
+				throw new LedgerException (OP_CREATE_LEDGER, "the number of retained blocks is not valid.");
+			}
+		}
+		
+		// the metrics may be exported through JMX
+		ArrayList<String> metricsArr = parsed.get (LEDGER_METRICS);
+		if (metricsArr != null) {
+			ret.withMetrics (metricsArr.contains (LEDGER_METRICS_JMX));
+		}
+		
+		// enable the snapshots before attaching the log, so that they speed up its restoration
+		ArrayList<String> snapshotArr = parsed.get (LEDGER_SNAPSHOTS);
+		if (snapshotArr != null && snapshotArr.size () == 2) {
+			try {
+				ret.withSnapshots (new SnapshotStore (Paths.get (snapshotArr.get (0))),
+						Integer.parseUnsignedInt (snapshotArr.get (1)));
+			} catch (NumberFormatException nfx) { // could not parse the interval
+				throw new LedgerException (OP_CREATE_LEDGER, "the snapshot interval is not valid.");
+			}
+		}
+		
+		// attach the block log, restoring the chain from it, if its directory is present
+		ArrayList<String> logArr = parsed.get (LEDGER_LOG);
+		if (logArr != null && logArr.size () == 1) {
+			BlockLog log = new BlockLog (Paths.get (logArr.get (0)));
+			ArrayList<String> syncArr = parsed.get (LEDGER_LOG_SYNC);
+			if (syncArr != null && syncArr.size () > 0) {
+				try {
+					log.withSyncPolicy (
+							BlockLog.SyncPolicy.valueOf (syncArr.get (0).toUpperCase ().replace ('-', '_')),
+							(syncArr.size () > 1) ? Long.parseUnsignedLong (syncArr.get (1)) : 0);
+				} catch (IllegalArgumentException iax) { // unknown policy or unparsable parameter
+					log.close ();
+					throw new LedgerException (OP_CREATE_LEDGER, "the block log sync policy is not valid.");
+				}
+			}
+			try {
+				ret.withBlockLog (log);
+			} catch (LedgerException lx) {
+				log.close ();
+				throw lx;
+			}
+		}
 	}
 	
 	/**
@@ -268,48 +675,38 @@ public class CommandProcessor implements LedgerConstants {
 		
 		String id = args[0];
 		
-		// the list of recognized option words
-		Set<String> options = Set.of (
-				TRANSACTION_ID,
-				TRANSACTION_PAYER,
-				TRANSACTION_RECEIVER,
-				TRANSACTION_AMOUNT,
-				TRANSACTION_FEE,
-				TRANSACTION_NOTE
-		);
-		
-		// parse the parameters of the incoming command
-		Map<String, ArrayList<String>>	parsed = parseArgs (args, 1, options);
+		// locate the parameters of the incoming command
+		int[] located = locateArgs (args, 1, TRANSACTION_OPTIONS);
+		String payer = getFirstArg (args, located, OPTION_PAYER);
+		String receiver = getFirstArg (args, located, OPTION_RECEIVER);
+		String amount = getFirstArg (args, located, OPTION_AMOUNT);
+		if (payer == null || receiver == null || amount == null) { // one of the required options was not present
+			throw new LedgerException (OP_TRANSACTION, "one of the required transaction fields is missing.");
+		}
 		
 		Transaction ret = null;
 		
 		// create the transaction from the mandatory keywords
 		try {
-			ret = new Transaction (id, 
-					parsed.get (TRANSACTION_PAYER).get (0), 
-					parsed.get (TRANSACTION_RECEIVER).get (0),
-					Integer.parseUnsignedInt (parsed.get (TRANSACTION_AMOUNT).get (0))
-					);
-		} catch (NullPointerException npx) { // one of the required options was not present
-			throw new LedgerException (OP_TRANSACTION, "one of the required transaction fields is missing.");
+			ret = new Transaction (id, payer, receiver, Integer.parseUnsignedInt (amount));
 		} catch (NumberFormatException nfx) { // could not parse the amount
 			throw new LedgerException (OP_TRANSACTION, "the amount is not valid.");
 		}
 		
 		// set the fee, if present in the command line
-		ArrayList<String> feeArr = parsed.get (TRANSACTION_FEE);
-		if (feeArr != null && feeArr.size () == 1) {
+		if (located[OPTION_FEE * 2 + 1] == 1) {
 			try {
-				ret.withFee (Integer.parseUnsignedInt (feeArr.get (0)));
+				ret.withFee (Integer.parseUnsignedInt (args[located[OPTION_FEE * 2]]));
 			} catch (NumberFormatException nfx) { // could not parse the fee
 				throw new LedgerException (OP_TRANSACTION, "the fee is not valid.");
 			}
 		}
 				
 		// set the note, if present in the command line
-		ArrayList<String> notesArr = parsed.getOrDefault (TRANSACTION_NOTE, null);
-		if (notesArr != null && notesArr.size () > 0) { 
-			ret.withPayload (String.join (" ", notesArr));
+		int noteStart = located[OPTION_NOTE * 2];
+		int noteCount = located[OPTION_NOTE * 2 + 1];
+		if (noteCount > 0) { 
+			ret.withPayload (String.join (" ", Arrays.asList (args).subList (noteStart, noteStart + noteCount)));
 		}
 				
 		return (ret);
@@ -346,14 +743,14 @@ public class CommandProcessor implements LedgerConstants {
 	 * Processes commands collected in a text file one by one. Empty lines and lines beginning
 	 * with the '#' symbol are ignored. If processing one of the commands causes an
 	 * exception, it is logged to the print stream and the processing continues
-	 * @param fileName the name of the file with the 
+	 * @param fileName the name of the file with the commands
 	 */
 	public final void processCommandFile (String fileName) {
 		int lineNumber = 0;
 		try (BufferedReader rd = new BufferedReader (new FileReader (new File (fileName), Charset.forName ("UTF-8")))) {
 			for (String line = rd.readLine (); line != null; line = rd.readLine ()) {
 				lineNumber ++;
-				line.trim ();
+				line = line.trim ();
 				
 				if (line.isEmpty () || line.charAt (0) == '#') { // comment or blank line
 					mPrintStream.println (line);
@@ -368,16 +765,57 @@ public class CommandProcessor implements LedgerConstants {
 				}
 
 				// call the single command processor
-				try {
-					String result = processCommand (argsArr.toArray (String[]::new));
-					mPrintStream.println ("At line " + lineNumber + " " + result);
-				} catch (LedgerException lx) {
-					mPrintStream.println ("At line " + lineNumber + " " + lx);
-				}
+				mPrintStream.println (processLine (lineNumber, argsArr.toArray (String[]::new)));
 			}
 		} catch (IOException iox) {
 			mPrintStream.println ("Could not read commands from file " + fileName);
 		}
 	}
+	
+	/**
+	 * Processes commands collected in a text file, like {@link #processCommandFile(String)},
+	 * in the streaming mode meant for replaying large files: the file is memory-mapped
+	 * and each line is tokenized in place (@see CommandScanner), and the messages are
+	 * collected in a large buffer before they are written to the print stream, rather
+	 * than flushed line by line
+	 * @param fileName the name of the file with the commands
+	 */
+	public final void replayCommandFile (String fileName) {
+		// the print stream encodes the buffered messages in its own character set
+		StringBuilder out = new StringBuilder (OUTPUT_BUFFER_SIZE + 1024);
+		try (CommandScanner scanner = new CommandScanner (Paths.get (fileName))) {
+			while (scanner.next ()) {
+				if (scanner.isBlankOrComment ()) { // comment or blank line
+					out.append (scanner.getTrimmedLine ());
+				} else {
+					out.append (processLine (scanner.getLineNumber (), scanner.getTokens ()));
+				}
+				out.append (System.lineSeparator ());
+				
+				if (out.length () >= OUTPUT_BUFFER_SIZE) {
+					mPrintStream.append (out);
+					out.setLength (0);
+				}
+			}
+		} catch (IOException iox) {
+			out.append ("Could not read commands from file ").append (fileName).append (System.lineSeparator ());
+		}
+		mPrintStream.append (out);
+		mPrintStream.flush ();
+	}
+	
+	/**
+	 * Processes one command of a command file
+	 * @param lineNumber the line number of the command in the file
+	 * @param cmd command tokens
+	 * @return the message reporting the result or the error
+	 */
+	private String processLine (int lineNumber, String... cmd) {
+		try {
+			return ("At line " + lineNumber + " " + processCommand (cmd));
+		} catch (LedgerException lx) {
+			return ("At line " + lineNumber + " " + lx);
+		}
+	}
 
 }
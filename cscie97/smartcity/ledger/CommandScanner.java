@@ -0,0 +1,200 @@
+package cscie97.smartcity.ledger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a command file line by line through a memory mapping of the file, and splits
+ * each line into its whitespace-separated tokens, as {@link java.util.StringTokenizer}
+ * does. The file is mapped in windows of fixed size, so files larger than the address
+ * range of one mapping are read as well. Each line is tokenized in one pass over its
+ * bytes, into a line buffer and the token bounds the scanner reuses for all lines; only
+ * the tokens themselves are created as strings, in an array the scanner also reuses for
+ * all lines with the same number of tokens. The scanner is used by one thread at a time.
+ * <p>
+ * The file is expected in UTF-8; as the whitespace characters are single bytes that
+ * never occur within the encoding of another character, the bytes are split before
+ * they are decoded.
+ */
+final class CommandScanner implements Closeable {
+
+	/**
+	 * The size of the mapped windows of the file
+	 */
+	private static final long WINDOW_SIZE = 1L << 26;
+
+	private final FileChannel mChannel;
+
+	private final long mFileSize;
+
+	private MappedByteBuffer mWindow = null;
+
+	/**
+	 * The position of the current window in the file
+	 */
+	private long mWindowStart = 0;
+
+	/**
+	 * The bytes of the current line, and their number
+	 */
+	private byte[] mLine = new byte [256];
+
+	private int mLineLength = 0;
+
+	/**
+	 * The start and the end of each token of the current line, in the line buffer
+	 */
+	private int[] mBounds = new int [32];
+
+	private int mTokenCount = 0;
+
+	/**
+	 * The token arrays, indexed by their length; reused for the lines with the same number of tokens
+	 */
+	private String[][] mTokenArrays = new String [16][];
+
+	private int mLineNumber = 0;
+
+	/**
+	 * @param file The command file
+	 * @throws IOException if the file cannot be opened
+	 */
+	CommandScanner (Path file) throws IOException {
+		mChannel = FileChannel.open (file, StandardOpenOption.READ);
+		mFileSize = mChannel.size ();
+	}
+
+	/**
+	 * Maps the window of the file following the current one
+	 * @return false at the end of the file
+	 */
+	private boolean nextWindow () throws IOException {
+		long start = (mWindow == null) ? 0 : mWindowStart + mWindow.limit ();
+		if (start >= mFileSize) {
+			return (false);
+		}
+
+		mWindowStart = start;
+		mWindow = mChannel.map (FileChannel.MapMode.READ_ONLY, start, Math.min (WINDOW_SIZE, mFileSize - start));
+		return (true);
+	}
+
+	/**
+	 * Advances to the next line, and tokenizes it
+	 * @return false at the end of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	boolean next () throws IOException {
+		mLineLength = 0;
+		mTokenCount = 0;
+		boolean inToken = false;
+		boolean atEnd = true;
+		for (;;) {
+			if (mWindow == null || !mWindow.hasRemaining ()) {
+				if (!nextWindow ()) {
+					break;
+				}
+			}
+			byte b = mWindow.get ();
+			atEnd = false;
+			if (b == '\n') {
+				break;
+			}
+
+			if (mLineLength == mLine.length) {
+				byte[] line = new byte [mLineLength * 2];
+				System.arraycopy (mLine, 0, line, 0, mLineLength);
+				mLine = line;
+			}
+			boolean space = (b == ' ' || b == '\t' || b == '\r' || b == '\f');
+			if (!space && !inToken) {
+				if (mTokenCount * 2 == mBounds.length) {
+					int[] bounds = new int [mBounds.length * 2];
+					System.arraycopy (mBounds, 0, bounds, 0, mBounds.length);
+					mBounds = bounds;
+				}
+				mBounds[mTokenCount * 2] = mLineLength;
+				mTokenCount ++;
+			} else if (space && inToken) {
+				mBounds[mTokenCount * 2 - 1] = mLineLength;
+			}
+			inToken = !space;
+			mLine[mLineLength ++] = b;
+		}
+		if (inToken) {
+			mBounds[mTokenCount * 2 - 1] = mLineLength;
+		}
+
+		if (atEnd) {
+			return (false);
+		}
+		mLineNumber ++;
+		return (true);
+	}
+
+	/**
+	 * @return the number of the current line (1-based)
+	 */
+	int getLineNumber () {
+		return (mLineNumber);
+	}
+
+	/**
+	 * @return the number of tokens of the current line
+	 */
+	int getTokenCount () {
+		return (mTokenCount);
+	}
+
+	/**
+	 * @return true if the current line holds no tokens, or its first token begins with the '#' symbol
+	 */
+	boolean isBlankOrComment () {
+		return (mTokenCount == 0 || mLine[mBounds[0]] == '#');
+	}
+
+	/**
+	 * @return the tokens of the current line; the array is reused, so it is only
+	 * valid until the scanner advances
+	 */
+	String[] getTokens () {
+		if (mTokenCount >= mTokenArrays.length) {
+			String[][] arrays = new String [mTokenCount + 1][];
+			System.arraycopy (mTokenArrays, 0, arrays, 0, mTokenArrays.length);
+			mTokenArrays = arrays;
+		}
+		String[] ret = mTokenArrays[mTokenCount];
+		if (ret == null) {
+			ret = mTokenArrays[mTokenCount] = new String [mTokenCount];
+		}
+
+		for (int iT = 0; iT < mTokenCount; iT ++) {
+			int start = mBounds[iT * 2];
+			ret[iT] = new String (mLine, start, mBounds[iT * 2 + 1] - start, StandardCharsets.UTF_8);
+		}
+		return (ret);
+	}
+
+	/**
+	 * @return the current line, less the leading and the trailing whitespace
+	 */
+	String getTrimmedLine () {
+		if (mTokenCount == 0) {
+			return ("");
+		}
+
+		int start = mBounds[0];
+		return (new String (mLine, start, mBounds[mTokenCount * 2 - 1] - start, StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void close () throws IOException {
+		mWindow = null;
+		mChannel.close ();
+	}
+}
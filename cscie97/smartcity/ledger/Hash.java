@@ -2,83 +2,427 @@ package cscie97.smartcity.ledger;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
 
 /**
- * This class encapsulates the Merkle-tree hashing of collections of objects, where
- * the pairwise hash is a base64 encoding of the concatenation of the string representation
- * of each object (obtained through the toString method).
+ * This class encapsulates the Merkle-tree hashing of the ledger contents. All hashes
+ * are raw SHA-256 digests; they are base64-encoded only for display.
+ * <p>
+ * The hashing format is as follows:
+ * <ul>
+ * <li>A leaf hash is SHA-256 over the byte 0x00 followed by the canonical encoding
+ * of the object (see {@link Encoder}).</li>
+ * <li>An inner node hash is SHA-256 over the byte 0x01 followed by the left and the
+ * right child hashes.</li>
+ * <li>The root of a list of hashes is computed level by level: the hashes are
+ * combined pairwise, and if a level has an odd number of hashes, the last one is
+ * carried up to the next level as is. The root of a single hash is that hash;
+ * the root of an empty list is SHA-256 over no input.</li>
+ * </ul>
+ * The digest and encoder instances are kept per thread and reused.
+ * <p>
+ * The level-by-level rule produces the same tree as splitting a list of n &gt; 1
+ * hashes into the first k and the remaining n - k, where k is the largest power
+ * of two less than n, and combining the roots of the two parts. Large lists are
+ * hashed that way in parallel, on the common fork/join pool.
  */
 public class Hash {
 
-	private static final String hashOnePair (String s1, String s2) {
-    	MessageDigest digest = null; 
+	/**
+	 * The length of all hashes, in bytes
+	 */
+	public static final int HASH_LENGTH = 32;
+
+	private static final byte LEAF_PREFIX = 0;
+
+	private static final byte NODE_PREFIX = 1;
+	
+	/**
+	 * The number of leaves below which a tree is hashed sequentially
+	 */
+	public static final int PARALLEL_THRESHOLD = 2048;
 
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial (() -> {
 		try {
-			digest = MessageDigest.getInstance ("SHA-256");
-    	} catch (NoSuchAlgorithmException nsax) {
-    		throw new RuntimeException ("SHA-256 hash is not available; check your JVM configuration.");
-    	}
- 
-		digest.update (s1.getBytes ());
-		digest.update (s2.getBytes ());
-		return (Base64.getEncoder ().encodeToString (digest.digest ()));
+			return (MessageDigest.getInstance ("SHA-256"));
+		} catch (NoSuchAlgorithmException nsax) {
+			throw new RuntimeException ("SHA-256 hash is not available; check your JVM configuration.");
+		}
+	});
+
+	private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial (Encoder::new);
+
+	/**
+	 * The root of an empty list of hashes
+	 */
+	private static final byte[] EMPTY_ROOT = DIGEST.get ().digest ();
+
+	/**
+	 * Combines two child hashes into the hash of their parent node
+	 * @param left The left child hash
+	 * @param right The right child hash
+	 * @return the parent hash
+	 */
+	public static byte[] hashNode (byte[] left, byte[] right) {
+		MessageDigest digest = DIGEST.get ();
+		digest.update (NODE_PREFIX);
+		digest.update (left);
+		digest.update (right);
+		return (digest.digest ());
 	}
-	
-	private static final List<String> hashPairs (List<String> strings) {
-		if (strings.size () <= 1) {
-			return (strings); // nothing to do
+
+	/**
+	 * Combines the hashes of one level of the tree pairwise into the next level.
+	 * If the level has an odd number of hashes, the last one is carried up as is
+	 * @param hashes The hashes of the level
+	 * @param count The number of hashes of the level; the array is overwritten with the next level
+	 * @return the number of hashes in the next level
+	 */
+	private static int hashPairs (byte[][] hashes, int count) {
+		int numPairs = count / 2;
+		for (int iP = 0; iP < numPairs; iP ++) {
+			hashes[iP] = hashNode (hashes[2 * iP], hashes[2 * iP + 1]);
+		}
+
+		// if we had an odd number of hashes, carry the last one up as is
+		if (numPairs * 2 < count) {
+			hashes[numPairs] = hashes[count - 1];
+			return (numPairs + 1);
+		}
+
+		return (numPairs);
+	}
+
+	/**
+	 * Computes the Merkle root of the given hashes
+	 * @param hashes The hashes of the leaves (or of the subtrees), in order
+	 * @return the root hash
+	 */
+	public static byte[] root (byte[]... hashes) {
+		if (hashes.length == 0) {
+			return (EMPTY_ROOT.clone ());
+		}
+
+		byte[][] level = hashes.clone ();
+		int count = level.length;
+
+		// hash all elements pairwise, until there's only one left
+		while (count > 1) {
+			count = hashPairs (level, count);
+		}
+
+		// this single element is the final hash
+		return (level[0]);
+	}
+
+	/**
+	 * Collects the Merkle path of one hash within the root of a list of hashes: the
+	 * sibling hashes it is combined with on the way up, from the bottom level. Where the
+	 * hash (or its ancestor) is carried up as the last of an odd number, there is no sibling
+	 * @param hashes The hashes of the leaves (or of the subtrees), in order
+	 * @param index The position of the hash whose path is collected
+	 * @param siblings Receives the sibling hashes, from the bottom up
+	 * @param siblingOnLeft Receives, for each sibling hash, whether it is the left child
+	 */
+	static void collectPath (byte[][] hashes, int index, List<byte[]> siblings, List<Boolean> siblingOnLeft) {
+		byte[][] level = hashes.clone ();
+		int count = level.length;
+		int idx = index;
+		while (count > 1) {
+			int sibling = idx ^ 1;
+			if (sibling < count) {
+				siblings.add (level[sibling]);
+				siblingOnLeft.add (sibling < idx);
+			}
+			count = hashPairs (level, count);
+			idx >>= 1;
+		}
+	}
+
+	/**
+	 * Computes all levels of the Merkle tree over the leaf hashes of the given items,
+	 * so that the paths can later be read from them without rehashing. If there are
+	 * at least {@link #PARALLEL_THRESHOLD} items, each level is hashed in parallel
+	 * @param items The items to be hashed, in order
+	 * @param leafHash The function computing the leaf hash of an item
+	 * @return the levels, from the leaves up to the single root
+	 */
+	static <T> byte[][][] tree (List<T> items, Function<? super T, byte[]> leafHash) {
+		boolean parallel = items.size () >= PARALLEL_THRESHOLD;
+		byte[][] leaves = new byte [items.size ()][];
+		if (parallel) {
+			Arrays.parallelSetAll (leaves, (iL) -> leafHash.apply (items.get (iL)));
+		} else {
+			Arrays.setAll (leaves, (iL) -> leafHash.apply (items.get (iL)));
 		}
 		
-		List<String> ret = new ArrayList <> ();
+		// a level of n hashes is followed by one of (n + 1) / 2, down to the root
+		int depth = 1;
+		for (int count = leaves.length; count > 1; count = (count + 1) / 2) {
+			depth ++;
+		}
+		byte[][][] levels = new byte [depth][][];
+		levels[0] = leaves;
+		for (int iL = 1; iL < depth; iL ++) {
+			byte[][] below = levels[iL - 1];
+			byte[][] level = new byte [(below.length + 1) / 2][];
+			// if the level below has an odd number of hashes, the last one is carried up as is
+			if (parallel && below.length >= PARALLEL_THRESHOLD) {
+				Arrays.parallelSetAll (level, (iP) -> (2 * iP + 1 < below.length) ?
+						hashNode (below[2 * iP], below[2 * iP + 1]) : below[2 * iP]);
+			} else {
+				Arrays.setAll (level, (iP) -> (2 * iP + 1 < below.length) ?
+						hashNode (below[2 * iP], below[2 * iP + 1]) : below[2 * iP]);
+			}
+			levels[iL] = level;
+		}
 		
-		int numPairs = strings.size () / 2;
-		for (int iP = 0; iP < numPairs; iP ++) {
-			ret.add (hashOnePair (strings.get (2 * iP), strings.get (2 * iP + 1)));
+		return (levels);
+	}
+	
+	/**
+	 * @param levels The levels of a Merkle tree (@see #tree(List, Function))
+	 * @return the root hash of the tree
+	 */
+	static byte[] root (byte[][][] levels) {
+		return ((levels[0].length == 0) ? EMPTY_ROOT.clone () : levels[levels.length - 1][0]);
+	}
+	
+	/**
+	 * Collects the Merkle path of one leaf from the levels of a tree, like
+	 * {@link #collectPath(byte[][], int, List, List)}, but without rehashing
+	 * @param levels The levels of the tree (@see #tree(List, Function))
+	 * @param index The position of the leaf whose path is collected
+	 * @param siblings Receives the sibling hashes, from the bottom up
+	 * @param siblingOnLeft Receives, for each sibling hash, whether it is the left child
+	 */
+	static void collectPath (byte[][][] levels, int index, List<byte[]> siblings, List<Boolean> siblingOnLeft) {
+		int idx = index;
+		for (int iL = 0; iL < levels.length - 1; iL ++) {
+			int sibling = idx ^ 1;
+			if (sibling < levels[iL].length) {
+				siblings.add (levels[iL][sibling]);
+				siblingOnLeft.add (sibling < idx);
+			}
+			idx >>= 1;
+		}
+	}
+
+	/**
+	 * Computes the Merkle root of the given hashes
+	 * @param hashes The hashes of the leaves (or of the subtrees), in order
+	 * @return the root hash
+	 */
+	public static byte[] root (List<byte[]> hashes) {
+		return (root (hashes.toArray (new byte [0][])));
+	}
+
+	/**
+	 * Computes the Merkle root of the leaf hashes of the given items. If there are at
+	 * least {@link #PARALLEL_THRESHOLD} items, the leaves and the subtrees are hashed
+	 * in parallel; the result is the same either way
+	 * @param items The items to be hashed, in order
+	 * @param leafHash The function computing the leaf hash of an item
+	 * @return the root hash
+	 */
+	public static <T> byte[] root (List<T> items, Function<? super T, byte[]> leafHash) {
+		if (items.size () < PARALLEL_THRESHOLD) {
+			byte[][] leaves = new byte [items.size ()][];
+			for (int iL = 0; iL < leaves.length; iL ++) {
+				leaves[iL] = leafHash.apply (items.get (iL));
+			}
+			return (root (leaves));
 		}
 		
-		// if we had an odd number of strings to hash, add the last one to the list as is
-		if (numPairs * 2 < strings.size ()) {
-			ret.add (strings.get (strings.size () - 1));
+		return (ForkJoinPool.commonPool ().invoke (
+				new SubtreeTask<T> (items, leafHash, 0, items.size ())));
+	}
+	
+	/**
+	 * Computes the Merkle root of the given hashes on the common fork/join pool,
+	 * splitting the list into subtrees of at least {@link #PARALLEL_THRESHOLD} hashes
+	 * @param hashes The hashes of the leaves (or of the subtrees), in order
+	 * @return the root hash; identical to the one computed by {@link #root(byte[]...)}
+	 */
+	public static byte[] parallelRoot (byte[]... hashes) {
+		if (hashes.length == 0) {
+			return (EMPTY_ROOT.clone ());
 		}
 		
-		return (ret);
+		return (ForkJoinPool.commonPool ().invoke (
+				new SubtreeTask<byte[]> (Arrays.asList (hashes), Function.identity (), 0, hashes.length)));
 	}
 	
 	/**
-	 * Given an arbitrary number of objects, convert them to strings and
-	 * compute Merkle-tree hash of the entire list using base64 encoding
-	 * @param objs The collection of objects to be hashed
-	 * @return The base64 encoded hash
-	 */
-    public static final String hash (Object... objs) {
-    	if (objs == null || objs.length <= 0) {
-    		return ("");
-    	}
-    	
-    	// collect string representations of the objects
-		List<String> leftToHash = Arrays.asList (objs)
-				.stream ()
-				.map (Object::toString)
-				.collect (Collectors.toList ());
+	 * Computes the root of the subtree over the leaves in the range [from, to)
+	 */
+	private static final class SubtreeTask<T> extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
 		
-		// Edge case: there is only one string in the input
-		// Just encode it and return
-		if (leftToHash.size () == 1) {
-			return (hashOnePair (leftToHash.get (0), ""));
+		private final List<T> mItems;
+		
+		private final Function<? super T, byte[]> mLeafHash;
+		
+		private final int mFrom;
+		
+		private final int mTo;
+		
+		SubtreeTask (List<T> items, Function<? super T, byte[]> leafHash, int from, int to) {
+			mItems = items;
+			mLeafHash = leafHash;
+			mFrom = from;
+			mTo = to;
 		}
 		
-		// hash all elements pairwise, until there's only one left
-		while (leftToHash.size () > 1) {
-			leftToHash = hashPairs (leftToHash);
+		@Override
+		protected byte[] compute () {
+			int count = mTo - mFrom;
+			if (count < PARALLEL_THRESHOLD) {
+				byte[][] leaves = new byte [count][];
+				for (int iL = 0; iL < count; iL ++) {
+					leaves[iL] = mLeafHash.apply (mItems.get (mFrom + iL));
+				}
+				return (root (leaves));
+			}
+			
+			// the left subtree is the largest power of two less than the count
+			int split = mFrom + Integer.highestOneBit (count - 1);
+			SubtreeTask<T> left = new SubtreeTask<> (mItems, mLeafHash, mFrom, split);
+			SubtreeTask<T> right = new SubtreeTask<> (mItems, mLeafHash, split, mTo);
+			left.fork ();
+			byte[] rightHash = right.compute ();
+			return (hashNode (left.join (), rightHash));
 		}
+	}
 
-		// this single element is the final hash
-		return (leftToHash.get (0));
-    }
+	/**
+	 * Obtains the encoder of this thread, reset and ready to accept the fields of a leaf
+	 * @return the encoder
+	 */
+	public static Encoder leaf () {
+		return (ENCODER.get ().reset ());
+	}
+
+	/**
+	 * Converts a hash to its display form
+	 * @param hash The raw hash; may be null or empty
+	 * @return the base64 encoding of the hash; empty string for a missing hash
+	 */
+	public static String toBase64 (byte[] hash) {
+		return ((hash == null || hash.length == 0) ? "" : Base64.getEncoder ().encodeToString (hash));
+	}
+
+	/**
+	 * Converts a hash from its display form
+	 * @param base64 The base64 encoding of the hash; may be null or empty
+	 * @return the raw hash; empty array for a missing hash
+	 */
+	public static byte[] fromBase64 (String base64) {
+		return ((base64 == null || base64.isEmpty ()) ? new byte [0] : Base64.getDecoder ().decode (base64));
+	}
+
+	/**
+	 * Accumulates the canonical binary encoding of an object and hashes it as a leaf.
+	 * Integers are written as 4 bytes and longs as 8 bytes, big-endian. Strings are
+	 * written as the 4-byte length of their UTF-8 encoding followed by the UTF-8 bytes;
+	 * a null string is written as the length -1 with no bytes. Byte arrays are written
+	 * as their 4-byte length followed by the bytes.
+	 */
+	public static final class Encoder {
+		private byte[] mBuf = new byte [256];
+
+		private int mLen;
+
+		private Encoder () {
+		}
 
+		private Encoder reset () {
+			mLen = 0;
+			return (this);
+		}
+
+		private void ensure (int extra) {
+			if (mLen + extra > mBuf.length) {
+				mBuf = Arrays.copyOf (mBuf, Math.max (mBuf.length * 2, mLen + extra));
+			}
+		}
+
+		public Encoder putInt (int value) {
+			ensure (Integer.BYTES);
+			mBuf[mLen ++] = (byte) (value >>> 24);
+			mBuf[mLen ++] = (byte) (value >>> 16);
+			mBuf[mLen ++] = (byte) (value >>> 8);
+			mBuf[mLen ++] = (byte) value;
+			return (this);
+		}
+
+		public Encoder putLong (long value) {
+			putInt ((int) (value >>> 32));
+			return (putInt ((int) value));
+		}
+
+		public Encoder putBytes (byte[] value) {
+			putInt (value.length);
+			ensure (value.length);
+			System.arraycopy (value, 0, mBuf, mLen, value.length);
+			mLen += value.length;
+			return (this);
+		}
+
+		public Encoder putString (String value) {
+			if (value == null) {
+				return (putInt (-1));
+			}
+
+			// reserve the length, encode the characters in place, then fill the length in
+			int lenPos = mLen;
+			putInt (0);
+			ensure (value.length () * 3);
+			for (int iC = 0; iC < value.length (); iC ++) {
+				char c = value.charAt (iC);
+				if (c < 0x80) {
+					mBuf[mLen ++] = (byte) c;
+				} else if (c < 0x800) {
+					mBuf[mLen ++] = (byte) (0xC0 | (c >> 6));
+					mBuf[mLen ++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate (c) && iC + 1 < value.length () &&
+						Character.isLowSurrogate (value.charAt (iC + 1))) {
+					int cp = Character.toCodePoint (c, value.charAt (++ iC));
+					mBuf[mLen ++] = (byte) (0xF0 | (cp >> 18));
+					mBuf[mLen ++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					mBuf[mLen ++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					mBuf[mLen ++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate (c)) {
+					// an unpaired surrogate is replaced, as in the standard UTF-8 encoder
+					mBuf[mLen ++] = (byte) '?';
+				} else {
+					mBuf[mLen ++] = (byte) (0xE0 | (c >> 12));
+					mBuf[mLen ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					mBuf[mLen ++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+
+			int len = mLen - lenPos - Integer.BYTES;
+			mBuf[lenPos] = (byte) (len >>> 24);
+			mBuf[lenPos + 1] = (byte) (len >>> 16);
+			mBuf[lenPos + 2] = (byte) (len >>> 8);
+			mBuf[lenPos + 3] = (byte) len;
+			return (this);
+		}
+
+		/**
+		 * @return the leaf hash of the fields accumulated so far
+		 */
+		public byte[] hash () {
+			MessageDigest digest = DIGEST.get ();
+			digest.update (LEAF_PREFIX);
+			digest.update (mBuf, 0, mLen);
+			return (digest.digest ());
+		}
+	}
 }
@@ -0,0 +1,123 @@
+package cscie97.smartcity.ledger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, with buckets of logarithmic magnitude
+ * divided linearly, as in an HDR histogram: the latencies below 32 ns are counted
+ * exactly, and each higher power of two is divided into 32 buckets; so a percentile
+ * is reported within about 3% of the recorded latency, with a fixed number of
+ * buckets for the whole range. Recording is thread-safe and does not allocate.
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * The number of bits that select the bucket within a power of two
+	 */
+	private static final int SUB_BITS = 5;
+
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray ((64 - SUB_BITS + 1) * SUB_COUNT);
+
+	private final AtomicLong mCount = new AtomicLong ();
+
+	private final AtomicLong mTotal = new AtomicLong ();
+
+	private final AtomicLong mMax = new AtomicLong ();
+
+	LatencyHistogram () {
+	}
+
+	/**
+	 * @return the bucket counting the latency
+	 */
+	private static int bucketOf (long nanos) {
+		if (nanos < SUB_COUNT) {
+			return ((int) Math.max (0, nanos));
+		}
+
+		int magnitude = 63 - Long.numberOfLeadingZeros (nanos);
+		return ((magnitude - SUB_BITS + 1) * SUB_COUNT + (int) ((nanos >>> (magnitude - SUB_BITS)) & (SUB_COUNT - 1)));
+	}
+
+	/**
+	 * @return the middle of the range of latencies a bucket counts
+	 */
+	private static long valueOf (int bucket) {
+		if (bucket < SUB_COUNT) {
+			return (bucket);
+		}
+
+		int shift = bucket / SUB_COUNT - 1;
+		long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+		return (lower + ((1L << shift) >>> 1));
+	}
+
+	/**
+	 * Records a latency
+	 * @param nanos The latency, in nanoseconds
+	 */
+	void record (long nanos) {
+		mBuckets.incrementAndGet (bucketOf (nanos));
+		mCount.incrementAndGet ();
+		mTotal.addAndGet (nanos);
+		mMax.accumulateAndGet (nanos, Math::max);
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount () {
+		return (mCount.get ());
+	}
+
+	/**
+	 * @return the mean of the recorded latencies, in microseconds
+	 */
+	public double getMeanMicros () {
+		long count = mCount.get ();
+		return ((count > 0) ? mTotal.get () / 1e3 / count : 0);
+	}
+
+	/**
+	 * @return the longest recorded latency, in microseconds
+	 */
+	public double getMaxMicros () {
+		return (mMax.get () / 1e3);
+	}
+
+	/**
+	 * @param percentile The percentile, between 0 and 100
+	 * @return the latency below which the given percentage of the recorded latencies
+	 * falls, in microseconds; 0 if none has been recorded
+	 */
+	public double getPercentileMicros (double percentile) {
+		long count = 0;
+		for (int iB = 0; iB < mBuckets.length (); iB ++) {
+			count += mBuckets.get (iB);
+		}
+
+		long rank = Math.max (1, (long) Math.ceil (count * Math.min (100, percentile) / 100));
+		long seen = 0;
+		for (int iB = 0; iB < mBuckets.length () && count > 0; iB ++) {
+			seen += mBuckets.get (iB);
+			if (seen >= rank) {
+				return (Math.min (valueOf (iB), mMax.get ()) / 1e3);
+			}
+		}
+
+		return (0);
+	}
+
+	/**
+	 * The string representation of the histogram; contains the count, the mean,
+	 * the median, the 99th percentile and the maximum
+	 */
+	@Override
+	public String toString () {
+		return (String.format ("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", getCount (),
+				getMeanMicros (), getPercentileMicros (50), getPercentileMicros (99), getMaxMicros ()));
+	}
+}
@@ -1,8 +1,28 @@
 package cscie97.smartcity.ledger;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.stream.IntStream;
 
 /**
  * This class is the top-level repository of the information about the
@@ -30,19 +50,145 @@ public class Ledger implements LedgerConstants {
 	private String mDescription = "";
 	
 	/**
-	 * The list of all committed blocks.
+	 * The list of all committed blocks. The blocks restored from the block log
+	 * are not kept in memory: their entries are null, and they are read back from
+	 * the log on demand, except for the last one. Only the last block retains the state
+	 * of all accounts; the earlier ones only hold the accounts changed in them.
+	 * The blocks older than the retention limit are compacted: their entries are null,
+	 * and they are read back from the log, if there is one, or only their headers are kept.
 	 */
 	private final List<Block> mBlockMap;
 	
+	/**
+	 * The headers of the committed blocks whose bodies have been discarded, by block number;
+	 * the entries of the other blocks are null
+	 */
+	private final List<BlockHeader> mHeaders = new ArrayList<> ();
+	
+	/**
+	 * The number of the most recent committed blocks whose bodies are retained in memory
+	 */
+	private int mRetainedBlocks = Integer.MAX_VALUE;
+	
+	/**
+	 * The number of the last block compacted by the retention limit
+	 */
+	private int mCompactedUpTo = 0;
+	
 	/**
 	 * The "working" block to add transactions and account to.
-	 * Once the number of transactions reaches the threshold
-	 * ( @see LedgerConstants.TRANSACTIONS_IN_BLOCK ),
-	 * it is committed to the chain and a new block is cloned
-	 * from it, becoming the working copy.
+	 * Once the sealing policy decides it is full,
+	 * it is committed to the chain and a new block, sharing
+	 * its account state, becomes the working copy.
 	 */
 	private Block mCurrentBlock;
 	
+	/**
+	 * The rules for sealing the working block; by default, a block is sealed
+	 * once it holds {@link LedgerConstants#TRANSACTIONS_IN_BLOCK} transactions.
+	 * Holds a copy of the caller's policy; volatile, since it is read outside the monitor
+	 */
+	private volatile SealingPolicy mSealingPolicy = new SealingPolicy ();
+	
+	/**
+	 * If set, the balance inquiries are answered from the working block,
+	 * so they reflect transactions that have not been committed yet
+	 */
+	private boolean mReadYourWrites = false;
+	
+	/**
+	 * The background timer that seals blocks that have been open for
+	 * too long; only present if the sealing policy has a time limit
+	 */
+	private ScheduledExecutorService mSealTimer = null;
+	
+	/**
+	 * The number of the last block verified by {@link #validate()}; the blocks
+	 * up to and including this one are not re-checked unless a full validation
+	 * is requested
+	 */
+	private int mVerifiedUpTo = 0;
+	
+	/**
+	 * The durable log to which the committed blocks are appended; optional
+	 */
+	private BlockLog mBlockLog = null;
+	
+	/**
+	 * The store of the account state snapshots; optional
+	 */
+	private SnapshotStore mSnapshotStore = null;
+	
+	/**
+	 * The number of committed blocks between two snapshots
+	 */
+	private int mSnapshotInterval = 0;
+	
+	/**
+	 * The background thread writing the snapshots; only present if there is a snapshot store
+	 */
+	private ExecutorService mSnapshotWriter = null;
+	
+	/**
+	 * The index of identifiers of all transactions accepted into this ledger
+	 */
+	private final TransactionIndex mTransactionIndex;
+	
+	/**
+	 * The balance changes of all accounts over the committed blocks; only the last
+	 * committed block retains the state of all accounts
+	 */
+	private final BalanceHistory mBalanceHistory = new BalanceHistory ();
+	
+	/**
+	 * The locks of the accounts; only present in the concurrent mode, where the
+	 * transactions are not serialized by the ledger, but by the accounts they touch
+	 */
+	private volatile AccountLocks mAccountLocks = null;
+	
+	/**
+	 * Guards the working block in the concurrent mode: the transactions share it,
+	 * while sealing the block, and any other access to its contents, is exclusive
+	 */
+	private final ReentrantReadWriteLock mBlockLock = new ReentrantReadWriteLock ();
+	
+	/**
+	 * The pipeline that hashes the sealed blocks and writes them to the block log in the
+	 * background; only present if the pipelined sealing is enabled. The blocks in it are
+	 * sealed, but not yet committed
+	 */
+	private SealPipeline mSealPipeline = null;
+	
+	/**
+	 * The queue of submitted transactions that a background thread drains into the
+	 * blocks; only present if the mempool is enabled
+	 */
+	private volatile Mempool mMempool = null;
+	
+	/**
+	 * Set while the ledger replicates the chain of a leader (@see ReplicationFollower);
+	 * it then only commits the blocks received from the leader and serves queries
+	 */
+	private volatile boolean mReplica = false;
+	
+	/**
+	 * The server of the replicas of this ledger, and the client of the leader this
+	 * ledger replicates; null unless started
+	 */
+	private ReplicationLeader mReplicationLeader = null;
+	
+	private ReplicationFollower mReplicationFollower = null;
+	
+	/**
+	 * The metrics of the ledger; null unless enabled, so the operations only check for them
+	 */
+	private volatile LedgerMetrics mMetrics = null;
+	
+	/**
+	 * The estimated heap held by the bodies of the committed blocks retained in memory
+	 */
+	private volatile long mRetainedBodyBytes = 0;
+	
 	public Ledger (String name, String seed) throws LedgerException {
 		mName = name;
 		mSeed = seed;
@@ -50,9 +196,10 @@ public class Ledger implements LedgerConstants {
 
 		// This is the "genesis" block; it has no predecessor
 		mCurrentBlock = new Block (null, seed);
+		mTransactionIndex = mCurrentBlock.getTransactionIndex ();
 		
 		// Create all the currency in the world and put it into the master account
-		createAccount (MASTER_ACCOUNT).withBalance (Integer.MAX_VALUE);
+		mCurrentBlock.addAccount (new Account (MASTER_ACCOUNT).withBalance (Integer.MAX_VALUE));
 	}
 		
 	/**
@@ -64,6 +211,648 @@ public class Ledger implements LedgerConstants {
 		mDescription = description;
 		return (this);
 	}
+	
+	/**
+	 * Builder-pattern setter of the block sealing policy. If the policy has
+	 * a time limit, starts the background timer that enforces it
+	 * @param policy The sealing policy; later changes to it do not affect the ledger
+	 * @return The ledger
+	 */
+	public synchronized Ledger withSealingPolicy (SealingPolicy policy) {
+		policy = policy.copy ();
+		mSealingPolicy = policy;
+		
+		stopSealTimer ();
+		long maxOpen = policy.getMaxOpenMillis ();
+		if (maxOpen > 0) {
+			mSealTimer = Executors.newSingleThreadScheduledExecutor ((r) -> {
+				Thread t = new Thread (r, "ledger-" + mName + "-seal-timer");
+				t.setDaemon (true);
+				return (t);
+			});
+			// check often enough that no block stays open much longer than the limit
+			long period = Math.max (1, maxOpen / 4);
+			mSealTimer.scheduleAtFixedRate (this::sealIfExpired, period, period, TimeUnit.MILLISECONDS);
+		}
+		
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the read-your-writes mode. When set, balance inquiries
+	 * are answered from the working block instead of the last committed one
+	 * @param readYourWrites The mode flag
+	 * @return The ledger
+	 */
+	public synchronized Ledger withReadYourWrites (boolean readYourWrites) {
+		mReadYourWrites = readYourWrites;
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the concurrent mode. In this mode, transactions
+	 * and account creations do not lock the whole ledger: each one locks only the
+	 * accounts it touches, so those on disjoint accounts proceed in parallel.
+	 * Sealing, batches and reads of the working block still wait for all of them.
+	 * Must be set before the ledger is shared between threads
+	 * @param stripes The number of account locks; rounded up to a power of two
+	 * @return The ledger
+	 */
+	public synchronized Ledger withConcurrency (int stripes) {
+		mAccountLocks = new AccountLocks (stripes);
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the pipelined sealing. In this mode, a full block is not
+	 * hashed and written to the block log by the transaction that filled it; it is handed
+	 * over to a background stage, and the next block starts accepting transactions at once,
+	 * with the hash of its predecessor still pending. The sealed blocks are committed in
+	 * order as the stage completes them. Once the given number of blocks is in flight,
+	 * sealing another one waits for the oldest. The inquiries about committed blocks,
+	 * balances and transactions wait for the blocks in flight, so they see every block
+	 * sealed before them
+	 * @param depth The maximal number of sealed blocks in flight
+	 * @return The ledger
+	 * @throws LedgerException if blocks from an earlier pipeline could not be committed
+	 */
+	public synchronized Ledger withPipelinedSealing (int depth) throws LedgerException {
+		awaitSealed ();
+		if (mSealPipeline != null) {
+			mSealPipeline.shutdown ();
+		}
+		mSealPipeline = new SealPipeline ("ledger-" + mName + "-sealer", depth, this::completeSeal);
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the block retention limit. Only the bodies of the given
+	 * number of the most recent committed blocks are kept in memory; the older blocks are
+	 * compacted. If there is a block log, they are read back from it on demand; otherwise,
+	 * their bodies are discarded, and only their headers (@see BlockHeader) are kept, so
+	 * their transactions can no longer be retrieved, but the chain can still be validated
+	 * @param blocks The number of blocks retained; at least 1
+	 * @return The ledger
+	 * @throws LedgerException if blocks in flight could not be committed
+	 */
+	public synchronized Ledger withRetention (int blocks) throws LedgerException {
+		awaitSealed ();
+		mRetainedBlocks = Math.max (1, blocks);
+		compact ();
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the mempool. In this mode, the transactions passed to
+	 * {@link #submitTransaction(Transaction)} are admitted to a bounded queue, ordered by
+	 * fee and arrival, and a background thread drains them into the blocks in batches
+	 * (@see Mempool); the callers do not wait for the ledger. The transactions passed
+	 * to {@link #processTransaction(Transaction)} bypass the queue
+	 * @param capacity The maximal number of queued transactions
+	 * @return The ledger
+	 * @throws LedgerException if the mempool is already enabled
+	 */
+	public synchronized Ledger withMempool (int capacity) throws LedgerException {
+		if (mMempool != null) {
+			throw new LedgerException (OP_SUBMIT, "The mempool is already enabled.");
+		}
+		
+		mMempool = new Mempool ("ledger-" + mName + "-mempool", capacity, this::processTransactions);
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the metrics. Once enabled, the ledger counts the accepted
+	 * and rejected transactions and the sealed blocks, records the latencies of its
+	 * operations and samples the size of its chain (@see LedgerMetrics)
+	 * @param exportJmx if true, the metrics are also exported through JMX, as an MBean
+	 * named after the ledger
+	 * @return The ledger
+	 * @throws LedgerException if the metrics are already enabled, or cannot be exported
+	 */
+	public synchronized Ledger withMetrics (boolean exportJmx) throws LedgerException {
+		if (mMetrics != null) {
+			throw new LedgerException (OP_STATS, "The metrics are already enabled.");
+		}
+		
+		LedgerMetrics metrics = new LedgerMetrics ();
+		// the gauges are read from other threads, such as those of JMX
+		metrics.addGauge ("chainLength", () -> sampleGauge (() -> mBlockMap.size ()));
+		metrics.addGauge ("accountCount", () -> sampleGauge (() -> mCurrentBlock.getAccountCount ()));
+		metrics.addGauge ("workingBlockTransactions", () -> sampleGauge (() -> mCurrentBlock.getTransactionCount ()));
+		metrics.addGauge ("workingBlockBytes", () -> sampleGauge (() -> mCurrentBlock.getTransactionBytes ()));
+		metrics.addGauge ("retainedHeapBytes", () -> sampleGauge (this::estimateRetainedHeap));
+		if (exportJmx) {
+			metrics.registerMBean (mName);
+		}
+		
+		mMetrics = metrics;
+		return (this);
+	}
+	
+	/**
+	 * Accessor method for the metrics
+	 * @return the metrics; null if they are not enabled
+	 */
+	public LedgerMetrics getMetrics () {
+		return (mMetrics);
+	}
+	
+	/**
+	 * Samples a gauge of the metrics under the monitor, which guards the chain and the
+	 * working block it reads
+	 */
+	private synchronized long sampleGauge (LongSupplier gauge) {
+		return (gauge.getAsLong ());
+	}
+	
+	/**
+	 * Estimates the heap held by the chain: the retained block bodies, the account
+	 * state of the working block and the transaction index
+	 */
+	private long estimateRetainedHeap () {
+		return (mRetainedBodyBytes + mCurrentBlock.getAccountCount () * (long) Block.ACCOUNT_HEAP_OVERHEAD +
+				mTransactionIndex.size () * (long) TransactionIndex.ENTRY_HEAP_BYTES);
+	}
+	
+	/**
+	 * Starts serving the committed blocks of this ledger to its replicas, on a socket
+	 * of the loopback interface (@see ReplicationLeader). Each replica receives the blocks
+	 * it is missing, then every block as soon as it is committed
+	 * @param port The port; 0 to pick a free one
+	 * @return the server, which tells the port
+	 * @throws LedgerException if the server is already started, or the socket cannot be opened
+	 */
+	public synchronized ReplicationLeader serveReplicas (int port) throws LedgerException {
+		if (mReplicationLeader != null) {
+			throw new LedgerException (OP_REPLICATE, "The ledger already serves replicas.");
+		}
+		
+		mReplicationLeader = new ReplicationLeader (this, mName, port);
+		return (mReplicationLeader);
+	}
+	
+	/**
+	 * Turns this ledger into a read-only replica of the ledger served at the given port
+	 * (@see ReplicationFollower). The replica commits the blocks of the leader following
+	 * its own committed ones, verified hash by hash, and rejects all changes until
+	 * {@link #stopFollowing()} promotes it back to a writable ledger
+	 * @param host The host of the leader
+	 * @param port The port of the leader
+	 * @return the client of the leader, which tells the replication error, if any
+	 * @throws LedgerException if the ledger already follows a leader, or has uncommitted
+	 * changes, or the leader cannot be reached or has a different seed
+	 */
+	public ReplicationFollower followLeader (String host, int port) throws LedgerException {
+		synchronized (this) {
+			if (mReplicationFollower != null) {
+				throw new LedgerException (OP_REPLICATE, "The ledger already follows a leader.");
+			}
+			int from = startReplica ();
+			try {
+				mReplicationFollower = new ReplicationFollower (this, mName, host, port, from);
+			} catch (LedgerException lx) {
+				stopReplica ();
+				throw lx;
+			}
+			return (mReplicationFollower);
+		}
+	}
+	
+	/**
+	 * Stops following the leader, and promotes this replica to a writable ledger
+	 * that continues the replicated chain; does nothing unless the ledger follows a leader
+	 */
+	public void stopFollowing () {
+		ReplicationFollower follower;
+		synchronized (this) {
+			follower = mReplicationFollower;
+			mReplicationFollower = null;
+		}
+		// the follower commits the received blocks, so it is stopped without holding the ledger
+		if (follower != null) {
+			follower.shutdown ();
+			stopReplica ();
+		}
+	}
+	
+	/**
+	 * Compacts the committed blocks beyond the retention limit
+	 */
+	private void compact () {
+		for (int n = mCompactedUpTo + 1; n <= mBlockMap.size () - mRetainedBlocks; n ++) {
+			Block block = mBlockMap.get (n - 1);
+			if (block != null) {
+				if (mBlockLog == null) {
+					mHeaders.set (n - 1, block.getHeader ());
+				}
+				mBlockMap.set (n - 1, null);
+				mRetainedBodyBytes -= block.estimateHeapBytes ();
+			}
+			mCompactedUpTo = n;
+		}
+	}
+	
+	/**
+	 * Builder-pattern setter of the account state snapshots. Once every given number
+	 * of blocks, the account state of the last committed block is written to the store
+	 * in the background; the block never changes, so transactions keep being processed
+	 * meanwhile. To speed up restoring the chain, the snapshots must be set up before
+	 * the block log is attached
+	 * @param store The snapshot store
+	 * @param interval The number of committed blocks between two snapshots
+	 * @return The ledger
+	 */
+	public synchronized Ledger withSnapshots (SnapshotStore store, int interval) {
+		mSnapshotStore = store;
+		mSnapshotInterval = Math.max (1, interval);
+		
+		if (mSnapshotWriter == null) {
+			mSnapshotWriter = Executors.newSingleThreadExecutor ((r) -> {
+				Thread t = new Thread (r, "ledger-" + mName + "-snapshot-writer");
+				t.setDaemon (true);
+				return (t);
+			});
+		}
+		
+		return (this);
+	}
+	
+	/**
+	 * Builder-pattern setter of the block log. If the log already holds blocks, the
+	 * chain is restored from it. The account state is loaded from the most recent valid
+	 * snapshot, if there is one, and rebuilt from the changed accounts stored with each
+	 * later block; every block replayed that way is checked against its stored hashes and
+	 * the hash of its predecessor. The blocks covered by the snapshot are not replayed;
+	 * they are checked against their stored hashes, taking their stored account roots,
+	 * and against their predecessors. Only the last restored block is kept in memory.
+	 * The log must be attached before any accounts are created or transactions processed
+	 * @param log The block log
+	 * @return The ledger
+	 * @throws LedgerException if the ledger is already in use, or the log cannot be restored
+	 */
+	public synchronized Ledger withBlockLog (BlockLog log) throws LedgerException {
+		awaitSealed ();
+		if (!mBlockMap.isEmpty () || mCurrentBlock.getTransactionCount () > 0 ||
+				mCurrentBlock.getAccountCount () > 1) {
+			throw new LedgerException (OP_BLOCK_LOG, "the block log must be attached to a new ledger");
+		}
+		
+		int last = log.getLastBlockNumber ();
+		if (last > 0) {
+			mBlockLock.writeLock ().lock ();
+			try {
+				mCurrentBlock = new Block (restore (log, last), mSeed);
+			} finally {
+				mBlockLock.writeLock ().unlock ();
+			}
+			mVerifiedUpTo = last;
+		}
+		
+		mBlockLog = log;
+		return (this);
+	}
+	
+	/**
+	 * Rebuilds the chain from the block log
+	 * @return the last block, holding the account state of the chain
+	 */
+	private Block restore (BlockLog log, int last) throws LedgerException {
+		TransactionIndex index = mTransactionIndex;
+		SnapshotStore.Snapshot snapshot = findSnapshot (log, last);
+		AccountMap state = AccountMap.EMPTY;
+		byte[] prevHash = new byte [0];
+		Block block = null;
+		
+		for (int n = 1; n <= last; n ++) {
+			ByteBuffer record = log.readRecord (n);
+			if (snapshot != null && n < snapshot.getNumber ()) {
+				// the state of this block is superseded by the snapshot
+				block = BlockCodec.decode (record, mSeed, null, index);
+				if (!block.verifyRestored ()) {
+					throw new LedgerException (OP_BLOCK_LOG, "block " + n + " in the log does not match its stored hash");
+				}
+			} else {
+				if (snapshot != null && n == snapshot.getNumber ()) {
+					// the snapshot already holds the changes of this block,
+					// so applying them again does not alter it
+					state = snapshot.getAccounts ();
+				}
+				block = BlockCodec.decode (record, mSeed, state, index);
+				if (!block.verifyRestored ()) {
+					throw new LedgerException (OP_BLOCK_LOG, "block " + n + " in the log does not match its stored hash");
+				}
+				state = block.getAccountMap ();
+			}
+			if (!Arrays.equals (prevHash, block.getRawPreviousHash ())) {
+				throw new LedgerException (OP_BLOCK_LOG, "block " + n + " in the log does not follow its predecessor");
+			}
+			
+			for (Transaction transaction: block.getTransactions ()) {
+				if (!index.add (transaction.getId (), n)) {
+					throw new LedgerException (OP_BLOCK_LOG, "transaction " + transaction.getId () +
+							" in block " + n + " is a duplicate");
+				}
+			}
+			
+			// only the last block is kept; the earlier ones are read back on demand
+			if (n > 1) {
+				mBlockMap.set (n - 2, null);
+			}
+			mBlockMap.add (block);
+			mHeaders.add (null);
+			mBalanceHistory.record (block);
+			prevHash = block.getRawHash ();
+		}
+		
+		return (block);
+	}
+	
+	/**
+	 * Finds the most recent snapshot that can be loaded and matches a block in the log
+	 * @return the snapshot, or null if there is none
+	 */
+	private SnapshotStore.Snapshot findSnapshot (BlockLog log, int last) throws LedgerException {
+		if (mSnapshotStore == null) {
+			return (null);
+		}
+		
+		for (int number: mSnapshotStore.getSnapshotNumbers ()) {
+			if (number > last) {
+				continue;
+			}
+			
+			try {
+				SnapshotStore.Snapshot snapshot = mSnapshotStore.read (number);
+				if (Arrays.equals (snapshot.getBlockHash (),
+						log.read (number, mSeed, mTransactionIndex).getRawHash ())) {
+					return (snapshot);
+				}
+			} catch (LedgerException lx) {
+				// damaged; try an older one
+			}
+		}
+		
+		return (null);
+	}
+	
+	/**
+	 * Schedules the snapshot of a committed block, if one is due
+	 */
+	private void snapshotIfDue (Block block) {
+		if (mSnapshotStore == null || block.getNumber () % mSnapshotInterval != 0) {
+			return;
+		}
+		
+		SnapshotStore store = mSnapshotStore;
+		AccountMap accounts = block.getAccountMap ();
+		mSnapshotWriter.execute (() -> {
+			try {
+				store.write (block, accounts);
+			} catch (LedgerException lx) {
+				// the next snapshot will cover this state
+			}
+		});
+	}
+	
+	/**
+	 * Completes the sealing of a block on the background stage of the pipeline
+	 */
+	private void completeSeal (Block block) throws LedgerException {
+		updateHash (block);
+		BlockLog log = mBlockLog;
+		if (log != null) {
+			log.append (block);
+		}
+		block.commitHash ();
+	}
+	
+	/**
+	 * Attaches a block to the chain once its sealing is complete
+	 */
+	private void commitBlock (Block block) {
+		mBalanceHistory.record (block);
+		snapshotIfDue (block);
+		
+		// the state of the previous block is superseded; its balances stay in the history
+		Block last = mBlockMap.isEmpty () ? null : mBlockMap.get (mBlockMap.size () - 1);
+		if (last != null) {
+			last.releaseAccountState ();
+		}
+		mBlockMap.add (block);
+		mHeaders.add (null);
+		mRetainedBodyBytes += block.estimateHeapBytes ();
+		compact ();
+		notifyAll ();
+	}
+	
+	/**
+	 * Commits a block received from another ledger, once it is verified against its
+	 * stored hash and linked to the last committed block, and appends it to the block
+	 * log, if any; must be called under the monitor
+	 * @param block The block, rebuilt on top of the last committed account state
+	 * @param operation The operation name, for the error message
+	 * @throws LedgerException if the block fails the verification, or cannot be appended to the log
+	 */
+	private void commitReceived (Block block, String operation) throws LedgerException {
+		int n = mBlockMap.size () + 1;
+		byte[] prevHash = mBlockMap.isEmpty () ? new byte [0] : mBlockMap.get (n - 2).getRawHash ();
+		if (block.getNumber () != n || !Arrays.equals (prevHash, block.getRawPreviousHash ())) {
+			throw new LedgerException (operation, "block " + block.getNumber () + " does not follow block " + (n - 1));
+		} else if (!block.verifyRestored ()) {
+			throw new LedgerException (operation, "block " + n + " does not match its stored hash");
+		}
+		
+		// check all identifiers first, so a failed block leaves the index as it was
+		Set<String> ids = new HashSet<> ();
+		for (Transaction transaction: block.getTransactions ()) {
+			if (mTransactionIndex.contains (transaction.getId ()) || !ids.add (transaction.getId ())) {
+				throw new LedgerException (operation, "transaction " + transaction.getId () +
+						" in block " + n + " is a duplicate");
+			}
+		}
+		if (mBlockLog != null) {
+			mBlockLog.append (block);
+		}
+		for (String id: ids) {
+			mTransactionIndex.add (id, n);
+		}
+		
+		commitBlock (block);
+		mVerifiedUpTo = n;
+	}
+	
+	/**
+	 * Rejects the changes of a replica
+	 * @param operation The operation name, for the error message
+	 * @throws LedgerException if the ledger is a replica
+	 */
+	private void checkWritable (String operation) throws LedgerException {
+		if (mReplica) {
+			throw replicaError (operation);
+		}
+	}
+	
+	private static LedgerException replicaError (String operation) {
+		return (new LedgerException (operation, "The ledger is a replica; it only serves queries."));
+	}
+	
+	/**
+	 * Turns this ledger into a replica, which only commits the blocks it receives
+	 * from the leader (@see ReplicationFollower)
+	 * @return the number of the first block the replica expects
+	 * @throws LedgerException if the working block holds changes that were not committed
+	 */
+	private synchronized int startReplica () throws LedgerException {
+		awaitSealed ();
+		int committedAccounts = mBlockMap.isEmpty () ? 1 : getCommittedState ().size ();
+		if (mCurrentBlock.getTransactionCount () > 0 || mCurrentBlock.getAccountCount () > committedAccounts) {
+			throw new LedgerException (OP_REPLICATE, "the ledger has uncommitted changes and cannot become a replica");
+		}
+		
+		mReplica = true;
+		return (mBlockMap.size () + 1);
+	}
+	
+	/**
+	 * Commits a block received from the leader
+	 * @param block The block, rebuilt on top of {@link #getCommittedState()}
+	 * @throws LedgerException if the block fails the verification
+	 */
+	synchronized void applyReplicated (Block block) throws LedgerException {
+		commitReceived (block, OP_REPLICATE);
+	}
+	
+	/**
+	 * Ends the replication, so the ledger accepts changes again; the working block
+	 * continues the replicated chain
+	 */
+	private synchronized void stopReplica () {
+		if (mReplica && !mBlockMap.isEmpty ()) {
+			mBlockLock.writeLock ().lock ();
+			try {
+				mCurrentBlock = new Block (mBlockMap.get (mBlockMap.size () - 1), mSeed);
+			} finally {
+				mBlockLock.writeLock ().unlock ();
+			}
+		}
+		mReplica = false;
+	}
+	
+	/**
+	 * @return the seed of the ledger
+	 */
+	String getSeed () {
+		return ((mSeed != null) ? mSeed : "");
+	}
+	
+	/**
+	 * @return the index of the committed transactions
+	 */
+	TransactionIndex getTransactionIndex () {
+		return (mTransactionIndex);
+	}
+	
+	/**
+	 * @return the account state of the last committed block; empty if there is none
+	 */
+	synchronized AccountMap getCommittedState () {
+		return (mBlockMap.isEmpty () ? AccountMap.EMPTY : mBlockMap.get (mBlockMap.size () - 1).getAccountMap ());
+	}
+	
+	/**
+	 * Waits until all sealed blocks are committed; must be called under the monitor
+	 * @throws LedgerException if a block in flight could not be committed
+	 */
+	private void awaitSealed () throws LedgerException {
+		if (mSealPipeline != null) {
+			mSealPipeline.drain (0, this::commitBlock);
+		}
+	}
+	
+	/**
+	 * Obtains a committed block, reading it back from the block log if it is
+	 * not kept in memory
+	 * @param blocks The committed blocks
+	 * @param log The block log
+	 * @param number The block number
+	 * @param operation The operation name, for the error message
+	 * @throws LedgerException if the block cannot be read back, or its body has been discarded
+	 */
+	private Block resolveBlock (List<Block> blocks, BlockLog log, int number, String operation) throws LedgerException {
+		Block block = blocks.get (number - 1);
+		if (block != null) {
+			return (block);
+		} else if (log == null) {
+			throw new LedgerException (operation, "The body of block " + number + " has been discarded; only its header is retained.");
+		}
+		
+		return (log.read (number, mSeed, mTransactionIndex));
+	}
+	
+	/**
+	 * Obtains the raw hash of a committed block, from its header if its body has been discarded
+	 * @param blocks The committed blocks
+	 * @param headers The headers of the blocks whose bodies have been discarded
+	 * @param log The block log
+	 * @param number The block number
+	 */
+	private byte[] resolveHash (List<Block> blocks, List<BlockHeader> headers, BlockLog log, int number) throws LedgerException {
+		BlockHeader header = headers.get (number - 1);
+		return ((header != null) ? header.getRawHash () : resolveBlock (blocks, log, number, OP_VALIDATE).getRawHash ());
+	}
+	
+	private void stopSealTimer () {
+		if (mSealTimer != null) {
+			mSealTimer.shutdownNow ();
+			mSealTimer = null;
+		}
+	}
+	
+	/**
+	 * Invoked periodically by the seal timer
+	 */
+	private synchronized void sealIfExpired () {
+		if (mSealingPolicy.isExpired (mCurrentBlock, System.currentTimeMillis ())) {
+			try {
+				seal ();
+			} catch (LedgerException lx) {
+				// the block stays open; the next check will try to seal it again
+			}
+		}
+	}
+	
+	/**
+	 * Selects the lock held while reading the block against which the balance inquiries
+	 * are answered: the exclusive block lock for the working block, which is folded in
+	 * place, and the shared one for the last committed block, which never changes; so in
+	 * the concurrent mode, the inquiries do not stall the transactions
+	 * @return the lock
+	 */
+	private Lock getBalanceLock () {
+		return ((mReadYourWrites && !mReplica) ? mBlockLock.writeLock () : mBlockLock.readLock ());
+	}
+	
+	/**
+	 * Selects the block against which the balance inquiries are answered.
+	 * The working block may only be read while holding the exclusive block lock
+	 * @param operation The operation name, for the error message
+	 * @return the block
+	 * @throws LedgerException if there is no committed block and reads are not
+	 * served from the working block
+	 */
+	private Block getBalanceBlock (String operation) throws LedgerException {
+		if (mReadYourWrites && !mReplica) {
+			return (mCurrentBlock);
+		}
+		
+		int lastBlockIdx = mBlockMap.size () - 1;
+		if (lastBlockIdx < 0) {
+			throw new LedgerException (operation, "There are no committed blocks.");
+		}
+		
+		return (mBlockMap.get (lastBlockIdx));
+	}
 		
 	/*---------------------------------------------------*/
 	/* public API */
@@ -77,38 +866,101 @@ public class Ledger implements LedgerConstants {
 	 * @throws LedgerException if an account with such address already exists
 	 */
 	public Account createAccount (String address) throws LedgerException {
+		checkWritable (OP_CREATE_ACCOUNT);
 		Account acct = new Account (address);
-		mCurrentBlock.addAccount (acct);
+		AccountLocks locks = mAccountLocks;
+		if (locks == null) {
+			synchronized (this) {
+				mCurrentBlock.addAccount (acct);
+			}
+			return (acct);
+		}
+		
+		mBlockLock.readLock ().lock ();
+		try {
+			mCurrentBlock.addAccount (acct, locks);
+		} finally {
+			mBlockLock.readLock ().unlock ();
+		}
 		return (acct);	
 	}
 
 	/**
-	 * Inquires of the last committed balance of the account with the given address
+	 * Inquires of the last committed balance of the account with the given address,
+	 * or of its current balance in the read-your-writes mode
 	 * @param address The string address of the account
 	 * @return The balance on the account
 	 * @throws LedgerException if an account with such address does not exist,
 	 * or had been created, but never committed, or there are no committed blocks
 	 */
-	public int getAccountBalance (String address) throws LedgerException {
-		int lastBlockIdx = mBlockMap.size () - 1;
-		if (lastBlockIdx >= 0) {
-			return (mBlockMap.get (lastBlockIdx).getAccountBalance (address));
-		} else {
-			throw new LedgerException (OP_GET_BALANCE, "There are no committed blocks.");
+	public synchronized int getAccountBalance (String address) throws LedgerException {
+		if (!mReadYourWrites) {
+			awaitSealed ();
+		}
+		Lock lock = getBalanceLock ();
+		lock.lock ();
+		try {
+			return (getBalanceBlock (OP_GET_BALANCE).getAccountBalance (address));
+		} finally {
+			lock.unlock ();
 		}
 	}
 	
 	/**
-	 * Inquires of the last committed balance of all accounts
+	 * Inquires of the balance of the account with the given address as of a committed
+	 * block, through the balance history of the ledger
+	 * @param address The string address of the account
+	 * @param blockNumber The block number (1-based)
+	 * @return The balance on the account after the block was committed
+	 * @throws LedgerException if the block has not been committed, or the account
+	 * did not exist as of that block
+	 */
+	public synchronized int getAccountBalance (String address, int blockNumber) throws LedgerException {
+		awaitSealed ();
+		if (blockNumber <= 0 || blockNumber > mBlockMap.size ()) {
+			throw new LedgerException (OP_GET_BALANCE, "Block " + blockNumber + " has not been committed.");
+		}
+		
+		return (mBalanceHistory.getBalance (address, blockNumber));
+	}
+	
+	/**
+	 * Inquires of the last committed balance of all accounts,
+	 * or of their current balances in the read-your-writes mode
 	 * @return The map of pairs of account address and the corresponding balance
 	 * @throws LedgerException if no accounts had been committed
 	 */
-	public Map<String, Integer> getAccountBalances () throws LedgerException {
-		int lastBlockIdx = mBlockMap.size () - 1;
-		if (lastBlockIdx >= 0) {
-			return (mBlockMap.get (lastBlockIdx).getAccountBalances ());
-		} else {
-			throw new LedgerException (OP_GET_ALL_BALANCES, "There are no committed blocks.");
+	public synchronized Map<String, Integer> getAccountBalances () throws LedgerException {
+		if (!mReadYourWrites) {
+			awaitSealed ();
+		}
+		Lock lock = getBalanceLock ();
+		lock.lock ();
+		try {
+			return (getBalanceBlock (OP_GET_ALL_BALANCES).getAccountBalances ());
+		} finally {
+			lock.unlock ();
+		}
+	}
+	
+	/**
+	 * Obtains a read-only view of the last committed balances of all accounts, or of
+	 * their current balances in the read-your-writes mode (@see BalanceView). Unlike
+	 * {@link #getAccountBalances()}, the balances are not collected: the view shares
+	 * the immutable account state of the block, and stays unchanged as the ledger moves on
+	 * @return The view of the balances
+	 * @throws LedgerException if no accounts had been committed
+	 */
+	public synchronized BalanceView getBalanceView () throws LedgerException {
+		if (!mReadYourWrites) {
+			awaitSealed ();
+		}
+		Lock lock = getBalanceLock ();
+		lock.lock ();
+		try {
+			return (getBalanceBlock (OP_GET_ALL_BALANCES).getBalanceView ());
+		} finally {
+			lock.unlock ();
 		}
 	}
 
@@ -117,74 +969,656 @@ public class Ledger implements LedgerConstants {
 	 * successful, the funds are moved according to the instructions
 	 * within the transaction.
 	 * The transaction is added to the uncommitted working block.
-	 * If this transaction brings their number in the block to the threshold
-	 * ( @see LedgerConstants.TRANSACTIONS_IN_BLOCK ),
-	 * the block is committed to the chain and a new block is cloned
-	 * from it, becoming the working copy.
+	 * If this transaction makes the block full according to the sealing policy,
+	 * the block is committed to the chain and a new block, sharing its
+	 * account state, becomes the working copy.
+	 * In the concurrent mode, the transaction locks only its payer and receiver.
 	 * @param The transaction to be executed
-	 * @throws LedgerException if the transaction fails verification
+	 * @throws LedgerException if the transaction fails verification, or the block it
+	 * filled up could not be written to the block log; in the latter case, the transaction
+	 * is accepted, and the block will be sealed again with the next transaction
 	 */
 	public void processTransaction (Transaction t) throws LedgerException {
-		boolean fitInCurrent = mCurrentBlock.processTransaction (t);
+		checkWritable (OP_TRANSACTION);
+		LedgerMetrics metrics = mMetrics;
+		if (metrics == null) {
+			applyTransaction (t, null);
+			return;
+		}
+		
+		long start = System.nanoTime ();
+		try {
+			applyTransaction (t, metrics);
+		} catch (LedgerException lx) {
+			metrics.count (LedgerMetrics.Counter.TRANSACTIONS_REJECTED, 1);
+			throw lx;
+		}
+		metrics.record (LedgerMetrics.Timer.PROCESS_TRANSACTION, start);
+		metrics.count (LedgerMetrics.Counter.TRANSACTIONS_ACCEPTED, 1);
+	}
+	
+	private void applyTransaction (Transaction t, LedgerMetrics metrics) throws LedgerException {
+		AccountLocks locks = mAccountLocks;
+		if (locks == null) {
+			synchronized (this) {
+				mCurrentBlock.processTransaction (t, metrics);
+				
+				// see if it was the last transaction that could fit into this block
+				if (mSealingPolicy.isFull (mCurrentBlock)) {
+					seal ();
+				}
+			}
+			return;
+		}
+		
+		while (true) {
+			Block block;
+			boolean accepted;
+			mBlockLock.readLock ().lock ();
+			try {
+				block = mCurrentBlock;
+				accepted = block.processTransaction (t, locks, mSealingPolicy, metrics);
+			} finally {
+				mBlockLock.readLock ().unlock ();
+			}
+			
+			// seal the block if this transaction filled it, or if it was full already
+			if (!accepted || mSealingPolicy.isFull (block)) {
+				sealIfFull (block);
+			}
+			if (accepted) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Submits a transaction to the mempool, to be processed in the background
+	 * @param t The transaction to be executed
+	 * @return the result of the transaction; completes once it has been processed,
+	 * or as rejected if a transaction with a higher fee sheds it from the full mempool
+	 * @throws LedgerException if the mempool is not enabled or is full
+	 */
+	public CompletableFuture<TransactionResult> submitTransaction (Transaction t) throws LedgerException {
+		checkWritable (OP_SUBMIT);
+		Mempool mempool = mMempool;
+		if (mempool == null) {
+			throw new LedgerException (OP_SUBMIT, "The mempool is not enabled.");
+		}
 		
-		// see if it was the last transaction that could fit into this block
-		// (this is indicated by the flag returned from the call in the previous line)
-		if (!fitInCurrent) {
-			// attach the current map to the chain
-			mBlockMap.add (mCurrentBlock);
+		return (mempool.submit (t));
+	}
+	
+	/**
+	 * Accessor method for the mempool, and so for its metrics
+	 * @return the mempool; null if it is not enabled
+	 */
+	public Mempool getMempool () {
+		return (mMempool);
+	}
+	
+	/**
+	 * Seals the given block, unless another thread has sealed it already
+	 */
+	private synchronized void sealIfFull (Block block) throws LedgerException {
+		if (mCurrentBlock == block && mSealingPolicy.isFull (block)) {
+			seal ();
+		}
+	}
+	
+	/**
+	 * Verifies, performs and records a batch of transactions in one pass, holding the
+	 * ledger for the whole batch. Each transaction is validated against the working
+	 * block as left by the ones before it, so a batch may spend the funds it receives
+	 * and may not repeat an identifier. The accepted transactions are packed into
+	 * blocks according to the sealing policy; a rejected one does not stop the batch.
+	 * If a filled block cannot be written to the block log, the rest of the batch is
+	 * rejected with that error.
+	 * Large batches are executed optimistically in parallel (@see ParallelExecutor),
+	 * with the same results as executing them in order.
+	 * @param transactions The transactions to be executed, in order
+	 * @return the results of the transactions, in the same order
+	 */
+	public synchronized List<TransactionResult> processTransactions (List<Transaction> transactions) {
+		if (mReplica) {
+			List<TransactionResult> ret = new ArrayList<> (transactions.size ());
+			for (Transaction transaction: transactions) {
+				ret.add (new TransactionResult (transaction, 0, replicaError (OP_TRANSACTIONS)));
+			}
+			return (ret);
+		}
+		
+		LedgerMetrics metrics = mMetrics;
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		List<TransactionResult> ret;
+		mBlockLock.writeLock ().lock ();
+		try {
+			ret = processBatch (transactions, metrics);
+		} finally {
+			mBlockLock.writeLock ().unlock ();
+		}
+		
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.PROCESS_TRANSACTIONS, start);
+			long accepted = ret.stream ().filter (TransactionResult::isAccepted).count ();
+			metrics.count (LedgerMetrics.Counter.TRANSACTIONS_ACCEPTED, accepted);
+			metrics.count (LedgerMetrics.Counter.TRANSACTIONS_REJECTED, ret.size () - accepted);
+		}
+		return (ret);
+	}
+	
+	private List<TransactionResult> processBatch (List<Transaction> transactions, LedgerMetrics metrics) {
+		List<TransactionResult> ret = new ArrayList<> (transactions.size ());
+		LedgerException sealFailure = null;
+		
+		// large batches are executed in parallel first, then applied in order
+		ParallelExecutor executor = ParallelExecutor.isWorthwhile (transactions.size ()) ?
+				mCurrentBlock.executeBatch (transactions) : null;
+		Map<String, Integer> balances = new HashMap<> ();
+		
+		for (int iT = 0; iT < transactions.size (); iT ++) {
+			Transaction t = transactions.get (iT);
+			if (sealFailure != null) {
+				ret.add (new TransactionResult (t, 0, sealFailure));
+				continue;
+			}
 			
-			// Compute and store the hash for this block
-			mCurrentBlock.updateHash ();
+			int blockNumber = mCurrentBlock.getNumber ();
+			if (executor == null) {
+				try {
+					mCurrentBlock.processTransaction (t, metrics);
+				} catch (LedgerException lx) {
+					ret.add (new TransactionResult (t, 0, lx));
+					continue;
+				}
+			} else if (executor.getError (iT) != null) {
+				ret.add (new TransactionResult (t, 0, executor.getError (iT)));
+				continue;
+			} else {
+				balances.clear ();
+				int fee = executor.getWrites (iT, balances);
+				mCurrentBlock.applyExecuted (t, balances, fee);
+			}
+			ret.add (new TransactionResult (t, blockNumber, null));
 			
-			// clone the accounts and set as the current block
-			mCurrentBlock = new Block (mCurrentBlock, mSeed);
+			if (mSealingPolicy.isFull (mCurrentBlock)) {
+				try {
+					seal ();
+				} catch (LedgerException lx) {
+					sealFailure = lx;
+				}
+			}
 		}
+		
+		return (ret);
 	}
 	
 	/**
-	 * Checks all committed blocks for a transaction with this identifier
+	 * Commits the working block to the chain, regardless of the sealing policy.
+	 * Does nothing if the working block holds no transactions.
+	 * If there is a block log, the block is appended to it before it joins the chain.
+	 * With the pipelined sealing, the block is only handed over to the background stage,
+	 * after waiting for room in the pipeline.
+	 * @throws LedgerException if the block could not be written to the block log;
+	 * the block then stays open. With the pipelined sealing, if an earlier block could
+	 * not be written; the earlier block is written again by the stage, and the working
+	 * block stays open
+	 */
+	public synchronized void seal () throws LedgerException {
+		checkWritable (OP_SEAL);
+		mBlockLock.writeLock ().lock ();
+		try {
+			sealWorkingBlock ();
+		} finally {
+			mBlockLock.writeLock ().unlock ();
+		}
+	}
+	
+	private void sealWorkingBlock () throws LedgerException {
+		if (mCurrentBlock.getTransactionCount () <= 0) {
+			return;
+		}
+		
+		LedgerMetrics metrics = mMetrics;
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		sealBlock ();
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.SEAL, start);
+			metrics.count (LedgerMetrics.Counter.BLOCKS_SEALED, 1);
+		}
+	}
+	
+	/**
+	 * Hashes and commits the working block, or hands it over to the pipeline,
+	 * and starts the next working block on top of it
+	 */
+	private void sealBlock () throws LedgerException {
+		if (mSealPipeline != null) {
+			// make room for the block, committing the ones the stage has completed
+			mSealPipeline.drain (mSealPipeline.getDepth () - 1, this::commitBlock);
+			
+			// the new block shares the account state of the sealed one, and waits
+			// for its hash; the sealed block does not change any more
+			Block sealed = mCurrentBlock;
+			mCurrentBlock = new Block (sealed, mSeed);
+			mSealPipeline.submit (sealed);
+			// the threads awaiting commits commit it, once the stage completes it
+			notifyAll ();
+			return;
+		}
+		
+		// Compute and store the hash for this block
+		updateHash (mCurrentBlock);
+		
+		if (mBlockLog != null) {
+			mBlockLog.append (mCurrentBlock);
+		}
+		
+		// attach the current map to the chain
+		mCurrentBlock.commitHash ();
+		commitBlock (mCurrentBlock);
+		
+		// start the new current block on top of the committed account state
+		mCurrentBlock = new Block (mCurrentBlock, mSeed);
+	}
+	
+	/**
+	 * Computes and stores the hash of a sealed block, recording the latency
+	 */
+	private void updateHash (Block block) {
+		LedgerMetrics metrics = mMetrics;
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		block.updateHash ();
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.COMPUTE_HASH, start);
+		}
+	}
+	
+	/**
+	 * Finds the committed block holding the transaction with this identifier
+	 * through the ledger-wide transaction index
 	 * @param Transaction id
 	 * @return The found transaction
 	 * @throws LedgerException if no such transaction exists
 	 */
-	public Transaction getTransaction (String id) throws LedgerException {
-		Transaction ret = null;
-		for (int iB = 0; iB < mBlockMap.size () && ret == null; iB ++) {
-			ret = mBlockMap.get (iB).getTransaction (id); 
-		}
+	public synchronized Transaction getTransaction (String id) throws LedgerException {
+		LedgerMetrics metrics = mMetrics;
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		awaitSealed ();
+		int blockNumber = mTransactionIndex.getBlock (id);
 		
-		if (ret == null) {
+		// the transaction may still be in the working block, which is not committed
+		if (blockNumber <= 0 || blockNumber > mBlockMap.size ()) {
 			throw new LedgerException (OP_GET_TRANSACTION, "Transaction " + id + " does not exist in any of the committed blocks.");
 		}
 		
+		Transaction ret = resolveBlock (mBlockMap, mBlockLog, blockNumber, OP_GET_TRANSACTION).getTransaction (id);
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.GET_TRANSACTION, start);
+		}
 		return (ret);
 	}
 	
+	/**
+	 * Waits until the given number of blocks has been committed
+	 * @param count The number of blocks
+	 * @param timeoutMillis The longest time to wait, in milliseconds
+	 * @return the number of committed blocks; less than the given one if the time ran out
+	 * @throws LedgerException if a sealed block could not be committed
+	 */
+	public synchronized int awaitCommitted (int count, long timeoutMillis) throws LedgerException {
+		long deadline = System.currentTimeMillis () + timeoutMillis;
+		awaitSealed ();
+		for (long left = timeoutMillis; mBlockMap.size () < count && left > 0; left = deadline - System.currentTimeMillis ()) {
+			try {
+				wait (left);
+			} catch (InterruptedException ix) {
+				Thread.currentThread ().interrupt ();
+				break;
+			}
+			awaitSealed ();
+		}
+		
+		return (mBlockMap.size ());
+	}
+	
+	/**
+	 * @return true if the ledger is a replica of another, which only serves queries
+	 */
+	public boolean isReplica () {
+		return (mReplica);
+	}
+	
 	/**
 	 * Looks for the block with this number among the committed blocks
 	 * @param Block number (1-based)
-	 * @return The found committed block
+	 * @return The found committed block; unless it is the last one, it holds only
+	 * the accounts changed in it (@see #getAccountBalance(String, int))
 	 * @throws LedgerException if the block with this number has not been committed
 	 */
-	public Block getBlock (int id) throws LedgerException {
+	public synchronized Block getBlock (int id) throws LedgerException {
+		awaitSealed ();
 		if (id <= 0 || id > mBlockMap.size ()) {
 			throw new LedgerException (OP_GET_BLOCK, "Block " + id + " has not been committed.");			
 		}
 		
-		Block ret = mBlockMap.get (id - 1);
+		Block ret = resolveBlock (mBlockMap, mBlockLog, id, OP_GET_BLOCK);
 		
 		return (ret);
 	}
 	
 	/**
-	 * Traverse committed blocks and recompute hashes
+	 * Looks for the header of the block with this number among the committed blocks;
+	 * available even if the body of the block has been discarded
+	 * @param Block number (1-based)
+	 * @return The header of the committed block
+	 * @throws LedgerException if the block with this number has not been committed
+	 */
+	public synchronized BlockHeader getBlockHeader (int id) throws LedgerException {
+		awaitSealed ();
+		if (id <= 0 || id > mBlockMap.size ()) {
+			throw new LedgerException (OP_GET_BLOCK_HEADER, "Block " + id + " has not been committed.");
+		}
+		
+		BlockHeader header = mHeaders.get (id - 1);
+		return ((header != null) ? header : resolveBlock (mBlockMap, mBlockLog, id, OP_GET_BLOCK_HEADER).getHeader ());
+	}
+	
+	/**
+	 * Builds the proof that a transaction is included in the committed block holding it,
+	 * which can be verified against the block hash (@see MerkleProof#verifyTransaction)
+	 * @param id The transaction identifier
+	 * @return the inclusion proof
+	 * @throws LedgerException if no such transaction has been committed, or the body
+	 * of its block has been discarded
+	 */
+	public synchronized MerkleProof getTransactionProof (String id) throws LedgerException {
+		awaitSealed ();
+		int blockNumber = mTransactionIndex.getBlock (id);
+		if (blockNumber <= 0 || blockNumber > mBlockMap.size ()) {
+			throw new LedgerException (OP_GET_PROOF, "Transaction " + id + " does not exist in any of the committed blocks.");
+		}
+		
+		return (resolveBlock (mBlockMap, mBlockLog, blockNumber, OP_GET_PROOF).proveTransaction (id));
+	}
+	
+	/**
+	 * Builds the proof of the balance of an account in the last committed block, which
+	 * can be verified against the block hash (@see MerkleProof#verifyBalance); only the
+	 * last committed block retains the state of all accounts
+	 * @param address The string address of the account
+	 * @return the inclusion proof
+	 * @throws LedgerException if there are no committed blocks, or the account does
+	 * not exist in the last one
+	 */
+	public synchronized MerkleProof getBalanceProof (String address) throws LedgerException {
+		awaitSealed ();
+		if (mBlockMap.isEmpty ()) {
+			throw new LedgerException (OP_GET_PROOF, "There are no committed blocks.");
+		}
+		
+		return (mBlockMap.get (mBlockMap.size () - 1).proveAccount (address));
+	}
+
+	/**
+	 * Writes all committed blocks to a stream in the wire format (@see WireFormat),
+	 * from which {@link #importChain(InputStream)} rebuilds the chain in another ledger
+	 * @param out The stream; it is flushed, but not closed
+	 * @return the number of blocks written
+	 * @throws LedgerException if the stream cannot be written, or the body of a block
+	 * has been discarded and there is no block log to read it back from
+	 */
+	public synchronized int exportChain (OutputStream out) throws LedgerException {
+		awaitSealed ();
+		try {
+			WireFormat.Writer writer = new WireFormat.Writer (out, (mSeed != null) ? mSeed : "");
+			for (int n = 1; n <= mBlockMap.size (); n ++) {
+				writer.writeBlock (resolveBlock (mBlockMap, mBlockLog, n, OP_EXPORT));
+			}
+			writer.finish ();
+		} catch (IOException iox) {
+			throw new LedgerException (OP_EXPORT, "could not write the chain: " + iox.getMessage ());
+		}
+		
+		return (mBlockMap.size ());
+	}
+	
+	/**
+	 * Rebuilds a chain exported by {@link #exportChain(OutputStream)} in this ledger, which
+	 * must be new and have the same seed. The blocks are read one at a time; each one
+	 * is verified against its stored hash and linked to its predecessor before it is
+	 * committed, and appended to the block log, if any. If a block fails, the blocks
+	 * before it stay committed, and the working block follows the last of them
+	 * @param in The stream; it is not closed
+	 * @return the number of blocks imported
+	 * @throws LedgerException if the ledger is not new, the stream cannot be read or is
+	 * malformed, or a block does not match its hash or does not follow its predecessor
+	 */
+	public synchronized int importChain (InputStream in) throws LedgerException {
+		awaitSealed ();
+		if (!mBlockMap.isEmpty () || mCurrentBlock.getTransactionCount () > 0 ||
+				mCurrentBlock.getAccountCount () > 1) {
+			throw new LedgerException (OP_IMPORT, "the chain must be imported into a new ledger");
+		}
+		
+		Block last = null;
+		mBlockLock.writeLock ().lock ();
+		try {
+			WireFormat.Reader reader = new WireFormat.Reader (in);
+			if (!Objects.equals ((mSeed != null) ? mSeed : "", reader.getSeed ())) {
+				throw new LedgerException (OP_IMPORT, "the chain was exported from a ledger with a different seed");
+			}
+			
+			for (Block block; (block = reader.readBlock (getCommittedState (), mTransactionIndex)) != null; ) {
+				commitReceived (block, OP_IMPORT);
+				last = block;
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_IMPORT, "could not read the chain: " + iox.getMessage ());
+		} finally {
+			if (last != null) {
+				mCurrentBlock = new Block (last, mSeed);
+			}
+			mBlockLock.writeLock ().unlock ();
+		}
+		
+		return (mBlockMap.size ());
+	}
+	
+	/**
+	 * Traverse the blocks committed since the last validation and recompute hashes
 	 * Throws an exception if any computation result is different
 	 * from the hash stored in the block
 	 * @throws LedgerException if a verification error is encountered
 	 */
 	public void validate () throws LedgerException {
-		for (Block block: mBlockMap) {
-			block.validate ();
+		validate (false);
+	}
+	
+	/**
+	 * Traverse committed blocks and recompute hashes, checking each block against
+	 * its stored hash and the previous hash stored in its successor. The blocks are
+	 * checked in parallel, without holding up the processing of transactions.
+	 * For a block whose body has been discarded, only its header is checked: its hash
+	 * against the roots it holds, and its link to the previous block.
+	 * The full validation then also recomputes the account root of each block, replaying
+	 * the accounts changed in the blocks in order, as the blocks only hold their stored
+	 * roots; the replay ends at the first block whose body has been discarded.
+	 * Throws an exception if any computation result is different
+	 * from the hash stored in the block; if there are several, reports the earliest block
+	 * @param full if true, all blocks are verified, including their account roots;
+	 * otherwise only those committed since the last successful validation
+	 * @throws LedgerException if a verification error is encountered
+	 */
+	public void validate (boolean full) throws LedgerException {
+		LedgerMetrics metrics = mMetrics;
+		long start = (metrics != null) ? System.nanoTime () : 0;
+		int from;
+		List<Block> blocks;
+		List<BlockHeader> headers;
+		BlockLog log;
+		synchronized (this) {
+			awaitSealed ();
+			from = full ? 1 : mVerifiedUpTo + 1;
+			// include the last verified block, to check the link to it
+			blocks = new ArrayList<> (mBlockMap.subList (Math.max (0, from - 2), mBlockMap.size ()));
+			headers = new ArrayList<> (mHeaders.subList (Math.max (0, from - 2), mHeaders.size ()));
+			log = mBlockLog;
+		}
+		
+		// the number of the first block in the copied list
+		int offset = Math.max (1, from - 1);
+		int to = offset + blocks.size () - 1;
+		
+		// the blocks that are not kept in memory are read back from the log
+		List<Block> chain = new ArrayList<> (Collections.nCopies (offset - 1, (Block) null));
+		chain.addAll (blocks);
+		List<BlockHeader> headerChain = new ArrayList<> (Collections.nCopies (offset - 1, (BlockHeader) null));
+		headerChain.addAll (headers);
+		
+		LedgerException failure = IntStream.rangeClosed (from, to)
+				.parallel ()
+				.mapToObj ((n) -> validateBlock (chain, headerChain, log, n))
+				.filter (Objects::nonNull)
+				.findFirst ()
+				.orElse (null);
+		
+		if (failure != null) {
+			throw failure;
+		}
+		if (full) {
+			replayAccountRoots (chain, headerChain, log, to);
+		}
+		
+		synchronized (this) {
+			mVerifiedUpTo = Math.max (mVerifiedUpTo, to);
+		}
+		if (metrics != null) {
+			metrics.record (LedgerMetrics.Timer.VALIDATE, start);
+		}
+	}
+	
+	/**
+	 * Verifies one committed block: its contents against its stored hash, and
+	 * its stored previous hash against the hash of the preceding block
+	 * @param blocks The committed blocks, starting with block 1; null for the ones
+	 * to be read back from the log, or whose bodies have been discarded
+	 * @param headers The headers of the blocks whose bodies have been discarded, starting
+	 * with block 1; null for the other ones
+	 * @param log The block log
+	 * @param number The number of the block to verify
+	 * @return the verification failure, or null if the block is valid
+	 */
+	private LedgerException validateBlock (List<Block> blocks, List<BlockHeader> headers, BlockLog log, int number) {
+		byte[] prevHash;
+		byte[] expectedPrev;
+		try {
+			BlockHeader header = headers.get (number - 1);
+			if (header != null) {
+				header.verify (mSeed);
+				prevHash = header.getRawPreviousHash ();
+			} else {
+				Block block = resolveBlock (blocks, log, number, OP_VALIDATE);
+				block.validate ();
+				prevHash = block.getRawPreviousHash ();
+			}
+			expectedPrev = (number > 1) ? resolveHash (blocks, headers, log, number - 1) : new byte [0];
+		} catch (LedgerException lx) {
+			return (lx);
+		}
+		
+		if (!Arrays.equals (expectedPrev, prevHash)) {
+			return (new LedgerException (OP_VALIDATE, "Verification of block " + number +
+					" failed: its previous hash " + Hash.toBase64 (prevHash) +
+					" does not match the hash of block " + (number - 1)));
+		}
+		
+		return (null);
+	}
+	
+	/**
+	 * Recomputes the account roots of the committed blocks from scratch: starting from
+	 * no accounts, applies the accounts changed in each block in turn, and checks the
+	 * root of the resulting state against the one stored in the block
+	 * @param blocks The committed blocks, starting with block 1; null for the ones
+	 * to be read back from the log, or whose bodies have been discarded
+	 * @param headers The headers of the blocks whose bodies have been discarded, starting
+	 * with block 1; null for the other ones
+	 * @param log The block log
+	 * @param to The number of the last block to verify
+	 * @throws LedgerException if the account root of a block does not match its state
+	 */
+	private void replayAccountRoots (List<Block> blocks, List<BlockHeader> headers, BlockLog log, int to)
+		throws LedgerException
+	{
+		AccountMap state = AccountMap.EMPTY;
+		for (int n = 1; n <= to && headers.get (n - 1) == null; n ++) {
+			Block block = resolveBlock (blocks, log, n, OP_VALIDATE);
+			// the copies do not carry the cached leaf hashes of the committed accounts
+			for (Account acct: block.getChangedAccounts ()) {
+				state = state.with (acct.clone ());
+			}
+			byte[] accountRoot = state.getRootHash ();
+			if (!MessageDigest.isEqual (block.getAccountRoot (), accountRoot)) {
+				throw new LedgerException (OP_VALIDATE, "Verification of block " + n +
+						" failed: expected account root " + Hash.toBase64 (block.getAccountRoot ()) +
+						", but computed " + Hash.toBase64 (accountRoot));
+			}
+		}
+	}
+	
+	/**
+	 * Stops the background activity of the ledger, waiting for the mempool to be drained,
+	 * the replication to stop, the sealed blocks to be committed and the snapshot being
+	 * written, and closes the block log, if any. The working block is not sealed; call
+	 * {@link #seal()} first to commit it.
+	 * @throws LedgerException if the block log could not be closed, or a sealed
+	 * block could not be written to it
+	 */
+	public void close () throws LedgerException {
+		// the mempool drains into the ledger, and the replication threads read and commit
+		// blocks, so they are stopped without holding the ledger
+		Mempool mempool = mMempool;
+		if (mempool != null) {
+			mempool.shutdown ();
+		}
+		stopFollowing ();
+		ReplicationLeader leader;
+		synchronized (this) {
+			leader = mReplicationLeader;
+			mReplicationLeader = null;
+		}
+		if (leader != null) {
+			leader.shutdown ();
+		}
+		LedgerMetrics metrics = mMetrics;
+		if (metrics != null) {
+			metrics.unregisterMBean ();
+		}
+		
+		synchronized (this) {
+			closeServices ();
+		}
+	}
+	
+	private void closeServices () throws LedgerException {
+		stopSealTimer ();
+		if (mSealPipeline != null) {
+			awaitSealed ();
+			mSealPipeline.shutdown ();
+			mSealPipeline = null;
+		}
+		if (mSnapshotWriter != null) {
+			mSnapshotWriter.shutdown ();
+			try {
+				mSnapshotWriter.awaitTermination (Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ix) {
+				Thread.currentThread ().interrupt ();
+			}
+			mSnapshotWriter = null;
+		}
+		if (mBlockLog != null) {
+			mBlockLog.close ();
 		}
 	}
 	
@@ -6,8 +6,9 @@ package cscie97.smartcity.ledger;
  */
 public interface LedgerConstants {
 	
-	// The threshold for the number of transactions in a block; when reached,
-	// the block is committed to the chain and a new block is cloned from it
+	// The default threshold for the number of transactions in a block; when reached,
+	// the block is committed to the chain and a new block is started on top of it
+	// (@see SealingPolicy)
 	public final int	TRANSACTIONS_IN_BLOCK = 1;
 	
 	// The minimum fee (in whole units) for a transaction payable to the
@@ -20,18 +21,49 @@ public interface LedgerConstants {
 	public final int INITIAL_DEVICE_BALANCE = 100;
 	public final int INITIAL_CITY_BALANCE = 1000;
 	
+	// The default number of account locks of a ledger in the concurrent mode
+	public final int	ACCOUNT_LOCK_STRIPES = 64;
+	
+	// The default number of sealed blocks that may be in flight with the pipelined sealing
+	public final int	SEAL_PIPELINE_DEPTH = 4;
+	
+	// The maximal number of transactions the mempool hands over to the ledger in one batch
+	public final int	MEMPOOL_BATCH = 1024;
+	
+	// The longest time, in milliseconds, a replication leader waits for a new block before
+	// it checks whether it has been closed
+	public final long	REPLICATION_POLL_MILLIS = 200;
+	
 	// The name of the master account
 	public final String	MASTER_ACCOUNT = "master";
 	
+	// The name of the account of each shard of a sharded ledger that holds the funds
+	// of the cross-shard transfers in progress
+	public final String	ESCROW_ACCOUNT = "escrow";
+	
 	// The valid command keywords
 	public final String OP_CREATE_LEDGER = "create-ledger";
 	public final String OP_CREATE_ACCOUNT = "create-account";
 	public final String OP_GET_ALL_BALANCES = "get-account-balances";
 	public final String OP_GET_BALANCE = "get-account-balance";
 	public final String OP_TRANSACTION = "process-transaction";
+	public final String OP_TRANSACTIONS = "process-transactions";
 	public final String OP_GET_BLOCK = "get-block";
+	public final String OP_GET_BLOCK_HEADER = "get-block-header";
+	public final String OP_GET_PROOF = "get-proof";
 	public final String OP_GET_TRANSACTION = "get-transaction";
 	public final String OP_VALIDATE = "validate";
+	public final String OP_EXPORT = "export-chain";
+	public final String OP_IMPORT = "import-chain";
+	public final String OP_STATS = "ledger-stats";
+	
+	// The names of the block log, snapshot, sealing and mempool operations, for error reporting
+	public final String OP_BLOCK_LOG = "block-log";
+	public final String OP_SNAPSHOT = "snapshot";
+	public final String OP_SEAL = "seal";
+	public final String OP_SUBMIT = "submit-transaction";
+	public final String OP_REPLICATE = "replicate";
+	public final String OP_CHECKPOINT = "checkpoint";
 	
 	// The valid option words for a transaction command
 	public final String TRANSACTION_ID = "id";
@@ -41,7 +73,56 @@ public interface LedgerConstants {
 	public final String TRANSACTION_FEE = "fee";
 	public final String TRANSACTION_NOTE = "note";
 	
+	// The option word for a balance inquiry as of a committed block
+	public final String BALANCE_BLOCK = "block";
+	
+	// The option words for an inquiry of all balances: the prefix of the addresses,
+	// the address of the account a page of balances starts after, and the size of a page
+	public final String BALANCES_PREFIX = "prefix";
+	public final String BALANCES_AFTER = "after";
+	public final String BALANCES_LIMIT = "limit";
+	
+	// The option words for a proof inquiry: the inclusion of a transaction, or the
+	// balance of an account in the last committed block
+	public final String PROOF_TRANSACTION = "transaction";
+	public final String PROOF_BALANCE = "balance";
+	
+	// The option word for a full (rather than incremental) validation
+	public final String VALIDATE_FULL = "full";
+	
 	// The valid option words for a ledger creation command
 	public final String LEDGER_SEED = "seed";
 	public final String LEDGER_DESCRIPTION = "description";
+	
+	// The option words for a ledger creation command that set the sealing policy
+	public final String LEDGER_MAX_TRANSACTIONS = "max-transactions";
+	public final String LEDGER_MAX_BYTES = "max-bytes";
+	public final String LEDGER_MAX_MILLIS = "max-millis";
+	public final String LEDGER_READ_YOUR_WRITES = "read-your-writes";
+	
+	// The option word for a ledger creation command that enables the concurrent mode,
+	// optionally followed by the number of account locks
+	public final String LEDGER_CONCURRENT = "concurrent";
+	
+	// The option word for a ledger creation command that enables the pipelined sealing,
+	// optionally followed by the maximal number of blocks in flight
+	public final String LEDGER_PIPELINE = "pipeline";
+	
+	// The option word for a ledger creation command that sets the number of the most
+	// recent blocks whose bodies are retained in memory
+	public final String LEDGER_RETAIN = "retain";
+	
+	// The option words for a ledger creation command that attach the block log:
+	// its directory, and its sync policy (per-block, grouped <blocks> or periodic <millis>)
+	public final String LEDGER_LOG = "log";
+	public final String LEDGER_LOG_SYNC = "log-sync";
+	
+	// The option word for a ledger creation command that enables the snapshots
+	// of the account state: their directory and the number of blocks between them
+	public final String LEDGER_SNAPSHOTS = "snapshots";
+	
+	// The option word for a ledger creation command that enables the metrics,
+	// optionally followed by the word that exports them through JMX
+	public final String LEDGER_METRICS = "metrics";
+	public final String LEDGER_METRICS_JMX = "jmx";
 }
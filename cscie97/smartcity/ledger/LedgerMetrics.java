@@ -0,0 +1,317 @@
+package cscie97.smartcity.ledger;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * The metrics of a ledger (@see Ledger#withMetrics): counters of events, histograms of
+ * the latencies of its operations (@see LatencyHistogram) and gauges of the size of its
+ * chain, sampled when read. The ledger only keeps the metrics once they are enabled;
+ * until then, the operations pay for no more than checking that they are not.
+ * <p>
+ * The registry can be polled through {@link #toString()}, as the ledger-stats command
+ * does, and exported through JMX as a dynamic MBean, whose attributes are the counters,
+ * the gauges and, for each histogram, its count, mean, median, 99th percentile and maximum.
+ */
+public final class LedgerMetrics implements DynamicMBean, LedgerConstants {
+
+	/**
+	 * The events counted
+	 */
+	public enum Counter {
+		TRANSACTIONS_ACCEPTED ("transactionsAccepted"),
+		TRANSACTIONS_REJECTED ("transactionsRejected"),
+		BLOCKS_SEALED ("blocksSealed");
+
+		private final String mName;
+
+		Counter (String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return the name of the counter, as exported
+		 */
+		public String getName () {
+			return (mName);
+		}
+	}
+
+	/**
+	 * The operations whose latencies are recorded
+	 */
+	public enum Timer {
+		PROCESS_TRANSACTION ("processTransaction"),
+		VALIDATE_TRANSACTION ("validateTransaction"),
+		TRANSFER ("transfer"),
+		PROCESS_TRANSACTIONS ("processTransactions"),
+		SEAL ("seal"),
+		COMPUTE_HASH ("computeHash"),
+		VALIDATE ("validate"),
+		GET_TRANSACTION ("getTransaction");
+
+		private final String mName;
+
+		Timer (String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return the name of the histogram, as exported
+		 */
+		public String getName () {
+			return (mName);
+		}
+	}
+
+	private final Map<Counter, LongAdder> mCounters = new EnumMap<> (Counter.class);
+
+	private final Map<Timer, LatencyHistogram> mTimers = new EnumMap<> (Timer.class);
+
+	/**
+	 * The gauges, in the order of their registration
+	 */
+	private final Map<String, LongSupplier> mGauges = new LinkedHashMap<> ();
+
+	private ObjectName mObjectName = null;
+
+	LedgerMetrics () {
+		for (Counter counter: Counter.values ()) {
+			mCounters.put (counter, new LongAdder ());
+		}
+		for (Timer timer: Timer.values ()) {
+			mTimers.put (timer, new LatencyHistogram ());
+		}
+	}
+
+	/**
+	 * Registers a gauge, sampled each time it is read
+	 * @param name The name of the gauge, as exported
+	 * @param gauge Samples the gauge
+	 */
+	synchronized void addGauge (String name, LongSupplier gauge) {
+		mGauges.put (name, gauge);
+	}
+
+	/**
+	 * Counts events
+	 */
+	void count (Counter counter, long events) {
+		mCounters.get (counter).add (events);
+	}
+
+	/**
+	 * Records the latency of an operation that started at the given time
+	 * @param timer The operation
+	 * @param startNanos The start time of the operation, from {@link System#nanoTime()}
+	 */
+	void record (Timer timer, long startNanos) {
+		mTimers.get (timer).record (System.nanoTime () - startNanos);
+	}
+
+	/**
+	 * @return the number of events counted so far
+	 */
+	public long getCount (Counter counter) {
+		return (mCounters.get (counter).sum ());
+	}
+
+	/**
+	 * @return the histogram of the latencies of the operation
+	 */
+	public LatencyHistogram getHistogram (Timer timer) {
+		return (mTimers.get (timer));
+	}
+
+	/**
+	 * @return the current values of the gauges, in the order of their registration
+	 */
+	public synchronized Map<String, Long> getGauges () {
+		Map<String, Long> ret = new LinkedHashMap<> ();
+		for (Map.Entry<String, LongSupplier> entry: mGauges.entrySet ()) {
+			ret.put (entry.getKey (), entry.getValue ().getAsLong ());
+		}
+
+		return (ret);
+	}
+
+	/*---------------------------------------------------*/
+	/* JMX */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Registers the metrics with the platform MBean server
+	 * @param ledgerName The name of the ledger, which names the MBean
+	 * @throws LedgerException if the MBean cannot be registered, as when the name is taken
+	 */
+	synchronized void registerMBean (String ledgerName) throws LedgerException {
+		try {
+			ObjectName name = new ObjectName ("cscie97.smartcity.ledger:type=LedgerMetrics,name=" + ObjectName.quote (ledgerName));
+			ManagementFactory.getPlatformMBeanServer ().registerMBean (this, name);
+			mObjectName = name;
+		} catch (JMException jx) {
+			throw new LedgerException (OP_STATS, "could not export the metrics through JMX: " + jx.getMessage ());
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if registered
+	 */
+	synchronized void unregisterMBean () {
+		if (mObjectName != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer ();
+			try {
+				server.unregisterMBean (mObjectName);
+			} catch (JMException jx) {
+				// already removed
+			}
+			mObjectName = null;
+		}
+	}
+
+	/**
+	 * @return the value of an exported attribute; null if there is no such attribute
+	 */
+	private Object readAttribute (String attribute) {
+		for (Counter counter: Counter.values ()) {
+			if (counter.getName ().equals (attribute)) {
+				return (getCount (counter));
+			}
+		}
+
+		int dot = attribute.lastIndexOf ('.');
+		if (dot > 0) {
+			for (Timer timer: Timer.values ()) {
+				if (timer.getName ().equals (attribute.substring (0, dot))) {
+					LatencyHistogram histogram = getHistogram (timer);
+					switch (attribute.substring (dot + 1)) {
+					case "count":
+						return (histogram.getCount ());
+					case "meanMicros":
+						return (histogram.getMeanMicros ());
+					case "p50Micros":
+						return (histogram.getPercentileMicros (50));
+					case "p99Micros":
+						return (histogram.getPercentileMicros (99));
+					case "maxMicros":
+						return (histogram.getMaxMicros ());
+					default:
+						return (null);
+					}
+				}
+			}
+		}
+
+		LongSupplier gauge;
+		synchronized (this) {
+			gauge = mGauges.get (attribute);
+		}
+		return ((gauge != null) ? gauge.getAsLong () : null);
+	}
+
+	@Override
+	public Object getAttribute (String attribute) throws AttributeNotFoundException {
+		Object ret = readAttribute (attribute);
+		if (ret == null) {
+			throw new AttributeNotFoundException (attribute);
+		}
+
+		return (ret);
+	}
+
+	@Override
+	public AttributeList getAttributes (String[] attributes) {
+		AttributeList ret = new AttributeList ();
+		for (String attribute: attributes) {
+			Object value = readAttribute (attribute);
+			if (value != null) {
+				ret.add (new Attribute (attribute, value));
+			}
+		}
+
+		return (ret);
+	}
+
+	/**
+	 * The metrics are read-only
+	 */
+	@Override
+	public void setAttribute (Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException ("read-only attribute " + attribute.getName ());
+	}
+
+	@Override
+	public AttributeList setAttributes (AttributeList attributes) {
+		return (new AttributeList ());
+	}
+
+	/**
+	 * The metrics have no operations
+	 */
+	@Override
+	public Object invoke (String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException (new NoSuchMethodException (actionName));
+	}
+
+	@Override
+	public synchronized MBeanInfo getMBeanInfo () {
+		List<MBeanAttributeInfo> attributes = new ArrayList<> ();
+		for (Counter counter: Counter.values ()) {
+			attributes.add (new MBeanAttributeInfo (counter.getName (), "long", "events counted", true, false, false));
+		}
+		for (Timer timer: Timer.values ()) {
+			String name = timer.getName ();
+			attributes.add (new MBeanAttributeInfo (name + ".count", "long", "latencies recorded", true, false, false));
+			for (String stat: new String[] { "meanMicros", "p50Micros", "p99Micros", "maxMicros" }) {
+				attributes.add (new MBeanAttributeInfo (name + "." + stat, "double", "latency, in microseconds", true, false, false));
+			}
+		}
+		for (String gauge: mGauges.keySet ()) {
+			attributes.add (new MBeanAttributeInfo (gauge, "long", "sampled when read", true, false, false));
+		}
+
+		return (new MBeanInfo (getClass ().getName (), "The metrics of a ledger",
+				attributes.toArray (new MBeanAttributeInfo [0]), null, null, null));
+	}
+
+	/**
+	 * The string representation of the metrics; contains the gauges, the counters and
+	 * the histograms of the operations that have been recorded, one per line
+	 */
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("ledger metrics:");
+		for (Map.Entry<String, Long> entry: getGauges ().entrySet ()) {
+			sb.append (System.lineSeparator ()).append ("  ").append (entry.getKey ()).append (": ").append (entry.getValue ());
+		}
+		for (Counter counter: Counter.values ()) {
+			sb.append (System.lineSeparator ()).append ("  ").append (counter.getName ()).append (": ").append (getCount (counter));
+		}
+		for (Timer timer: Timer.values ()) {
+			LatencyHistogram histogram = getHistogram (timer);
+			if (histogram.getCount () > 0) {
+				sb.append (System.lineSeparator ()).append ("  ").append (timer.getName ()).append (": ").append (histogram);
+			}
+		}
+
+		return (sb.toString ());
+	}
+}
@@ -0,0 +1,306 @@
+package cscie97.smartcity.ledger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * The bounded queue of transactions submitted to a ledger, but not yet processed
+ * (@see Ledger#withMempool). Submitting a transaction only admits it to the queue;
+ * a dedicated thread drains the queue into the blocks of the ledger in batches,
+ * the transactions with the highest fee first and, among equal fees, in the order
+ * of arrival. So a burst of submissions does not block the callers on the ledger.
+ * <p>
+ * The queue holds at most the given number of transactions. Once it is full, a
+ * transaction with a higher fee than the lowest queued one sheds that one, which is
+ * completed as rejected; any other transaction is rejected at submission.
+ * <p>
+ * The mempool keeps the metrics of its queue: the current and the peak depth, the
+ * numbers of admitted, rejected, shed and drained transactions, and the time the
+ * drained transactions waited in the queue.
+ */
+public final class Mempool implements LedgerConstants {
+
+	/**
+	 * A queued transaction, with the completion of its processing
+	 */
+	private static final class Entry {
+		final Transaction mTransaction;
+
+		/**
+		 * The order of arrival
+		 */
+		final long mSequence;
+
+		/**
+		 * The time of admission, in nanoseconds
+		 */
+		final long mAdmittedAt = System.nanoTime ();
+
+		final CompletableFuture<TransactionResult> mResult = new CompletableFuture<> ();
+
+		Entry (Transaction transaction, long sequence) {
+			mTransaction = transaction;
+			mSequence = sequence;
+		}
+	}
+
+	/**
+	 * Orders the entries by priority: the highest fee first, then the earliest arrival
+	 */
+	private static final Comparator<Entry> PRIORITY = (e1, e2) -> {
+		int fee1 = e1.mTransaction.getFee ();
+		int fee2 = e2.mTransaction.getFee ();
+		return ((fee1 != fee2) ? Integer.compare (fee2, fee1) : Long.compare (e1.mSequence, e2.mSequence));
+	};
+
+	/**
+	 * Processes a batch of transactions, in order, into the ledger
+	 */
+	private final Function<List<Transaction>, List<TransactionResult>> mLedger;
+
+	private final int mCapacity;
+
+	/**
+	 * The queued entries, the highest priority first
+	 */
+	private final TreeSet<Entry> mQueue = new TreeSet<> (PRIORITY);
+
+	private final Thread mDrainThread;
+
+	private long mNextSequence = 0;
+
+	private boolean mClosed = false;
+
+	private int mPeakDepth = 0;
+
+	private long mAdmitted = 0;
+
+	private long mRejected = 0;
+
+	private long mShed = 0;
+
+	private long mDrained = 0;
+
+	/**
+	 * The total and the longest time the drained transactions waited, in nanoseconds
+	 */
+	private long mTotalWait = 0;
+
+	private long mMaxWait = 0;
+
+	/**
+	 * @param name The name of the drain thread
+	 * @param capacity The maximal number of queued transactions; at least 1
+	 * @param ledger Processes a batch of transactions into the ledger
+	 */
+	Mempool (String name, int capacity, Function<List<Transaction>, List<TransactionResult>> ledger) {
+		mCapacity = Math.max (1, capacity);
+		mLedger = ledger;
+		mDrainThread = new Thread (this::drain, name);
+		mDrainThread.setDaemon (true);
+		mDrainThread.start ();
+	}
+
+	/**
+	 * Admits a transaction to the queue
+	 * @param transaction The transaction
+	 * @return the result of processing the transaction; completes once it is drained
+	 * into a block, or as rejected if it is shed from the queue
+	 * @throws LedgerException if the queue is full of transactions with the same or
+	 * a higher fee, or the mempool has been closed
+	 */
+	public CompletableFuture<TransactionResult> submit (Transaction transaction) throws LedgerException {
+		Entry entry;
+		Entry shed = null;
+		synchronized (this) {
+			if (mClosed) {
+				throw new LedgerException (OP_SUBMIT, "Transaction " + transaction.getId () +
+						" rejected: the mempool has been closed.");
+			}
+
+			entry = new Entry (transaction, mNextSequence ++);
+			if (mQueue.size () >= mCapacity) {
+				if (PRIORITY.compare (entry, mQueue.last ()) > 0) {
+					mRejected ++;
+					throw new LedgerException (OP_SUBMIT, "Transaction " + transaction.getId () +
+							" rejected: the mempool is full.");
+				}
+				shed = mQueue.pollLast ();
+				mShed ++;
+			}
+
+			mQueue.add (entry);
+			mAdmitted ++;
+			mPeakDepth = Math.max (mPeakDepth, mQueue.size ());
+			notifyAll ();
+		}
+
+		if (shed != null) {
+			shed.mResult.complete (new TransactionResult (shed.mTransaction, 0, new LedgerException (OP_SUBMIT,
+					"Transaction " + shed.mTransaction.getId () + " shed from the full mempool by a higher fee.")));
+		}
+		return (entry.mResult);
+	}
+
+	/**
+	 * The loop of the drain thread: hands the queued transactions over to the ledger
+	 * in batches, until the mempool is closed and empty. If the thread is interrupted,
+	 * closes the mempool and completes the queued transactions as rejected
+	 */
+	private void drain () {
+		List<Entry> batch;
+		while ((batch = take ()) != null) {
+			List<Transaction> transactions = new ArrayList<> (batch.size ());
+			for (Entry entry: batch) {
+				transactions.add (entry.mTransaction);
+			}
+
+			try {
+				List<TransactionResult> results = mLedger.apply (transactions);
+				for (int iE = 0; iE < batch.size (); iE ++) {
+					batch.get (iE).mResult.complete (results.get (iE));
+				}
+			} catch (RuntimeException rx) {
+				for (Entry entry: batch) {
+					entry.mResult.completeExceptionally (rx);
+				}
+			}
+		}
+
+		// left behind only if the drain thread was interrupted
+		List<Entry> abandoned;
+		synchronized (this) {
+			abandoned = new ArrayList<> (mQueue);
+			mQueue.clear ();
+			mRejected += abandoned.size ();
+		}
+		for (Entry entry: abandoned) {
+			entry.mResult.complete (new TransactionResult (entry.mTransaction, 0, new LedgerException (OP_SUBMIT,
+					"Transaction " + entry.mTransaction.getId () + " rejected: the mempool has been closed.")));
+		}
+	}
+
+	/**
+	 * Waits for queued transactions and removes a batch of them, the highest priority first
+	 * @return the batch; null once the mempool is closed and empty
+	 */
+	private synchronized List<Entry> take () {
+		while (mQueue.isEmpty () && !mClosed) {
+			try {
+				wait ();
+			} catch (InterruptedException ix) {
+				// stops admitting transactions, so that none is left without a result
+				mClosed = true;
+				notifyAll ();
+				Thread.currentThread ().interrupt ();
+				return (null);
+			}
+		}
+
+		long now = System.nanoTime ();
+		List<Entry> batch = new ArrayList<> (Math.min (mQueue.size (), MEMPOOL_BATCH));
+		while (batch.size () < MEMPOOL_BATCH && !mQueue.isEmpty ()) {
+			Entry entry = mQueue.pollFirst ();
+			long wait = now - entry.mAdmittedAt;
+			mTotalWait += wait;
+			mMaxWait = Math.max (mMaxWait, wait);
+			batch.add (entry);
+		}
+		mDrained += batch.size ();
+
+		return (batch.isEmpty () ? null : batch);
+	}
+
+	/**
+	 * Stops admitting transactions and waits for the queued ones to be drained
+	 */
+	void shutdown () {
+		synchronized (this) {
+			mClosed = true;
+			notifyAll ();
+		}
+
+		try {
+			mDrainThread.join ();
+		} catch (InterruptedException ix) {
+			Thread.currentThread ().interrupt ();
+		}
+	}
+
+	/**
+	 * @return the maximal number of queued transactions
+	 */
+	public int getCapacity () {
+		return (mCapacity);
+	}
+
+	/**
+	 * @return the number of queued transactions
+	 */
+	public synchronized int getDepth () {
+		return (mQueue.size ());
+	}
+
+	/**
+	 * @return the largest number of transactions queued at once
+	 */
+	public synchronized int getPeakDepth () {
+		return (mPeakDepth);
+	}
+
+	/**
+	 * @return the number of transactions admitted to the queue
+	 */
+	public synchronized long getAdmittedCount () {
+		return (mAdmitted);
+	}
+
+	/**
+	 * @return the number of transactions rejected at submission because the queue was full
+	 */
+	public synchronized long getRejectedCount () {
+		return (mRejected);
+	}
+
+	/**
+	 * @return the number of queued transactions shed by ones with a higher fee
+	 */
+	public synchronized long getShedCount () {
+		return (mShed);
+	}
+
+	/**
+	 * @return the number of transactions drained into the ledger
+	 */
+	public synchronized long getDrainedCount () {
+		return (mDrained);
+	}
+
+	/**
+	 * @return the average time the drained transactions waited in the queue, in milliseconds
+	 */
+	public synchronized double getAverageWaitMillis () {
+		return ((mDrained > 0) ? mTotalWait / 1e6 / mDrained : 0);
+	}
+
+	/**
+	 * @return the longest time a drained transaction waited in the queue, in milliseconds
+	 */
+	public synchronized double getMaxWaitMillis () {
+		return (mMaxWait / 1e6);
+	}
+
+	/**
+	 * The string representation of the mempool; contains its metrics
+	 */
+	@Override
+	public synchronized String toString () {
+		return (String.format ("Mempool: depth %d of %d (peak %d), admitted %d, rejected %d, shed %d, drained %d, " +
+				"wait %.3f ms average, %.3f ms max", mQueue.size (), mCapacity, mPeakDepth, mAdmitted, mRejected,
+				mShed, mDrained, getAverageWaitMillis (), getMaxWaitMillis ()));
+	}
+}
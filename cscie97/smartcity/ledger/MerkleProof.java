@@ -0,0 +1,124 @@
+package cscie97.smartcity.ledger;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The proof that a transaction or an account balance is included in a committed block.
+ * It holds the sibling hashes along the path from the leaf of the transaction or the
+ * account up to the block hash (@see Hash); combining the leaf with them in turn
+ * yields the block hash. So the inclusion can be verified against the block hash
+ * alone, without the contents of the block.
+ * <p>
+ * The block hash is the root over the leaf of the ledger seed, the leaf of the
+ * block number and the previous hash, the transaction root and the account root;
+ * the last two steps of the path tell which of the roots the leaf belongs to.
+ */
+public final class MerkleProof {
+
+	private final int mBlockNumber;
+
+	/**
+	 * The sibling hashes, from the leaf up
+	 */
+	private final List<byte[]> mSiblings;
+
+	/**
+	 * For each sibling hash, whether it is the left child
+	 */
+	private final List<Boolean> mSiblingOnLeft;
+
+	MerkleProof (int blockNumber, List<byte[]> siblings, List<Boolean> siblingOnLeft) {
+		mBlockNumber = blockNumber;
+		mSiblings = Collections.unmodifiableList (new ArrayList<> (siblings));
+		mSiblingOnLeft = Collections.unmodifiableList (new ArrayList<> (siblingOnLeft));
+	}
+
+	/**
+	 * @return the number of the block the proof refers to
+	 */
+	public int getBlockNumber () {
+		return (mBlockNumber);
+	}
+
+	/**
+	 * @return the sibling hashes, from the leaf up
+	 */
+	public List<byte[]> getSiblings () {
+		return (mSiblings);
+	}
+
+	/**
+	 * @return for each sibling hash, whether it is the left child
+	 */
+	public List<Boolean> getSiblingOnLeft () {
+		return (mSiblingOnLeft);
+	}
+
+	/**
+	 * Combines a leaf hash with the sibling hashes of the proof
+	 * @param leaf The leaf hash
+	 * @return the root hash obtained
+	 */
+	public byte[] computeRoot (byte[] leaf) {
+		byte[] ret = leaf;
+		for (int iS = 0; iS < mSiblings.size (); iS ++) {
+			ret = mSiblingOnLeft.get (iS) ? Hash.hashNode (mSiblings.get (iS), ret) : Hash.hashNode (ret, mSiblings.get (iS));
+		}
+
+		return (ret);
+	}
+
+	/**
+	 * Checks that the path ends by entering the block hash from the given root:
+	 * the transaction root is the left child of its pair, the account root the right one,
+	 * and the pair is the right child of the block hash
+	 */
+	private boolean endsAt (boolean accountRoot) {
+		int size = mSiblings.size ();
+		return (size >= 2 && mSiblingOnLeft.get (size - 2) == accountRoot && mSiblingOnLeft.get (size - 1));
+	}
+
+	/**
+	 * Verifies that a transaction is included in a block
+	 * @param transaction The transaction
+	 * @param proof The inclusion proof
+	 * @param blockHash The raw hash of the block
+	 * @return true if the proof leads from the transaction to the block hash
+	 */
+	public static boolean verifyTransaction (Transaction transaction, MerkleProof proof, byte[] blockHash) {
+		return (proof.endsAt (false) &&
+				MessageDigest.isEqual (blockHash, proof.computeRoot (transaction.computeLeafHash ())));
+	}
+
+	/**
+	 * Verifies that an account had a given balance in a block
+	 * @param address The account address
+	 * @param balance The balance
+	 * @param proof The inclusion proof
+	 * @param blockHash The raw hash of the block
+	 * @return true if the proof leads from the account balance to the block hash
+	 */
+	public static boolean verifyBalance (String address, int balance, MerkleProof proof, byte[] blockHash) {
+		return (proof.endsAt (true) &&
+				MessageDigest.isEqual (blockHash, proof.computeRoot (new Account (address).withBalance (balance).computeLeafHash ())));
+	}
+
+	/**
+	 * The string representation of the proof; contains the block number and the
+	 * sibling hashes, each marked with its side
+	 */
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append ("Proof in block ").append (mBlockNumber);
+		for (int iS = 0; iS < mSiblings.size (); iS ++) {
+			sb.append (System.lineSeparator ()).append ("  ").append (mSiblingOnLeft.get (iS) ? "L " : "R ")
+				.append (Hash.toBase64 (mSiblings.get (iS)));
+		}
+
+		return (sb.toString ());
+	}
+}
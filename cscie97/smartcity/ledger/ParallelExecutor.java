@@ -0,0 +1,368 @@
+package cscie97.smartcity.ledger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Executes a batch of transactions optimistically in parallel, with the same outcome
+ * as executing them one by one in the order of submission.
+ * <p>
+ * Every transaction is first executed speculatively, reading each account balance
+ * as written by the latest transaction before it that has been executed and accepted,
+ * or from the initial state if there is none; the executions of all transactions form
+ * a multi-version store of the balances. Each execution records the values it has read
+ * (its read set) and the balances it writes (its write set, the payer and the receiver).
+ * A transaction is valid if everything it has read still has the same value; invalid
+ * transactions are executed again. After a few parallel rounds of validation and
+ * re-execution, a final pass in the order of submission validates every transaction,
+ * re-executing the few that still conflict; as each transaction is then validated against
+ * the final results of all of its predecessors, the outcome is that of serial execution.
+ * <p>
+ * The fees credited to the master account by the other transactions are not written
+ * as balances; they are kept per transaction and added to the master balance whenever
+ * it is read. So the transactions that do not involve the master account do not
+ * conflict over it.
+ */
+final class ParallelExecutor implements LedgerConstants {
+
+	/**
+	 * The number of transactions in a batch below which it is executed serially
+	 */
+	private static final int PARALLEL_THRESHOLD = 256;
+
+	/**
+	 * The number of parallel rounds of validation and re-execution before the final pass
+	 */
+	private static final int PARALLEL_ROUNDS = 3;
+
+	/**
+	 * Checks whether a batch is worth executing in parallel: it must be large enough,
+	 * and there must be more than one processor to execute it on
+	 * @param size The number of transactions in the batch
+	 */
+	static boolean isWorthwhile (int size) {
+		return (size >= PARALLEL_THRESHOLD && Runtime.getRuntime ().availableProcessors () > 1);
+	}
+
+	/**
+	 * The outcome of one execution of a transaction
+	 */
+	private static final class Execution {
+		/**
+		 * The position of the earlier transaction with the same identifier that was
+		 * accepted; -1 if there is none
+		 */
+		int mTakenBy = -1;
+
+		/**
+		 * The balances read; only meaningful if they were read
+		 */
+		int mPayerRead;
+
+		int mReceiverRead;
+
+		boolean mBalancesRead;
+
+		/**
+		 * The balances written; the receiver balance is the final one if the
+		 * payer and the receiver coincide
+		 */
+		int mPayerWritten;
+
+		int mReceiverWritten;
+
+		/**
+		 * The reason for the rejection; null if the transaction was accepted
+		 */
+		String mError;
+	}
+
+	private final Transaction[] mTransactions;
+
+	/**
+	 * Finds the accounts in the state the batch starts from
+	 */
+	private final Function<String, Account> mAccounts;
+
+	/**
+	 * For each account, the positions of the transactions that may write its balance,
+	 * that is, have it as the payer or the receiver, in ascending order
+	 */
+	private final Map<String, int[]> mWriters = new HashMap<> ();
+
+	/**
+	 * The rank of each transaction among the writers of its payer and its receiver
+	 */
+	private final int[] mPayerRank;
+
+	private final int[] mReceiverRank;
+
+	/**
+	 * For each transaction, the position of the previous transaction in the batch with
+	 * the same identifier; -1 if there is none, -2 if the identifier was taken before the batch
+	 */
+	private final int[] mPrevSameId;
+
+	/**
+	 * The fee credited to the master account by each transaction, apart from
+	 * the transactions that write the master balance themselves
+	 */
+	private final AtomicLongArray mFees;
+
+	/**
+	 * The Fenwick tree over the fees, for summing the fees of a range of transactions
+	 * in logarithmic time
+	 */
+	private final AtomicLongArray mFeeSums;
+
+	/**
+	 * The latest execution of each transaction
+	 */
+	private final AtomicReferenceArray<Execution> mExecutions;
+
+	/**
+	 * @param transactions The batch, in the order of submission
+	 * @param accounts The lookup of accounts in the state the batch starts from;
+	 * the state must not change while the batch is executed
+	 * @param index The identifiers taken before the batch
+	 */
+	ParallelExecutor (Transaction[] transactions, Function<String, Account> accounts, TransactionIndex index) {
+		int count = transactions.length;
+		mTransactions = transactions;
+		mAccounts = accounts;
+		mPayerRank = new int [count];
+		mReceiverRank = new int [count];
+		mPrevSameId = new int [count];
+		mFees = new AtomicLongArray (count);
+		mFeeSums = new AtomicLongArray (count + 1);
+		mExecutions = new AtomicReferenceArray<> (count);
+
+		// the read and write sets of a transfer are known in advance;
+		// collect the writers of each account and the repeated identifiers
+		Map<String, Integer> writerCounts = new HashMap<> ();
+		Map<String, Integer> lastWithId = new HashMap<> ();
+		for (int i = 0; i < count; i ++) {
+			Transaction t = transactions[i];
+			mPayerRank[i] = writerCounts.merge (t.getPayer (), 1, Integer::sum) - 1;
+			mReceiverRank[i] = t.getReceiver ().equals (t.getPayer ()) ? mPayerRank[i] :
+				writerCounts.merge (t.getReceiver (), 1, Integer::sum) - 1;
+			Integer prev = lastWithId.put (t.getId (), i);
+			mPrevSameId[i] = (prev != null) ? prev : (index.contains (t.getId ()) ? -2 : -1);
+		}
+		for (Map.Entry<String, Integer> entry: writerCounts.entrySet ()) {
+			mWriters.put (entry.getKey (), new int [entry.getValue ()]);
+		}
+		for (int i = 0; i < count; i ++) {
+			Transaction t = transactions[i];
+			mWriters.get (t.getPayer ())[mPayerRank[i]] = i;
+			mWriters.get (t.getReceiver ())[mReceiverRank[i]] = i;
+		}
+	}
+
+	/**
+	 * Executes the batch
+	 * @return this executor, holding the outcome of each transaction
+	 */
+	ParallelExecutor run () {
+		int count = mTransactions.length;
+		IntStream.range (0, count).parallel ().forEach (this::execute);
+
+		for (int iR = 0; iR < PARALLEL_ROUNDS; iR ++) {
+			long reexecuted = IntStream.range (0, count).parallel ()
+					.filter ((i) -> !isValid (i))
+					.map ((i) -> {
+						execute (i);
+						return (i);
+					})
+					.count ();
+			if (reexecuted == 0) {
+				return (this);
+			} else if (reexecuted > count / 2) {
+				// most transactions depend on each other; more rounds would not converge
+				break;
+			}
+		}
+
+		// the final pass; each transaction sees the final results of all of its predecessors
+		for (int i = 0; i < count; i ++) {
+			if (!isValid (i)) {
+				execute (i);
+			}
+		}
+
+		return (this);
+	}
+
+	/**
+	 * @return the reason for the rejection of the transaction; null if it was accepted
+	 */
+	LedgerException getError (int position) {
+		String error = mExecutions.get (position).mError;
+		return ((error != null) ? new LedgerException (OP_TRANSACTION, error) : null);
+	}
+
+	/**
+	 * Collects the balances written by an accepted transaction
+	 * @param position The position of the transaction in the batch
+	 * @param balances Filled with the new balances keyed by account address; the fee
+	 * credited to the master account is not included, unless the master account is
+	 * the payer or the receiver
+	 * @return the fee credited to the master account separately
+	 */
+	int getWrites (int position, Map<String, Integer> balances) {
+		Transaction t = mTransactions[position];
+		Execution execution = mExecutions.get (position);
+		balances.put (t.getPayer (), execution.mPayerWritten);
+		balances.put (t.getReceiver (), execution.mReceiverWritten);
+		return ((int) mFees.get (position));
+	}
+
+	/*---------------------------------------------------*/
+	/* multi-version store */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Reads a balance as seen by a transaction: the balance written by the latest
+	 * accepted writer before it, plus the fees credited since then for the master account;
+	 * the arithmetic wraps around as that of the serial transfer does
+	 * @param address The account address
+	 * @param rank The rank of the reading transaction among the writers of the account
+	 * @param position The position of the reading transaction
+	 */
+	private int read (String address, int rank, int position) {
+		boolean master = MASTER_ACCOUNT.equals (address);
+		int[] writers = mWriters.get (address);
+		for (int iW = rank - 1; iW >= 0; iW --) {
+			int writer = writers[iW];
+			Execution execution = mExecutions.get (writer);
+			if (execution != null && execution.mError == null) {
+				Transaction t = mTransactions[writer];
+				int balance = t.getReceiver ().equals (address) ? execution.mReceiverWritten : execution.mPayerWritten;
+				return (master ? (int) (balance + sumFees (position) - sumFees (writer + 1)) : balance);
+			}
+		}
+
+		int balance = mAccounts.apply (address).getBalance ();
+		return (master ? (int) (balance + sumFees (position)) : balance);
+	}
+
+	/**
+	 * @return the position of the earlier accepted transaction with the same identifier,
+	 * as seen by the transaction at the given position; -1 if there is none
+	 */
+	private int findTakenBy (int position) {
+		for (int prev = mPrevSameId[position]; prev >= 0; prev = mPrevSameId[prev]) {
+			Execution execution = mExecutions.get (prev);
+			if (execution != null && execution.mError == null) {
+				return (prev);
+			}
+		}
+
+		return (-1);
+	}
+
+	/**
+	 * @return the total fee credited by the transactions before the given position
+	 */
+	private long sumFees (int position) {
+		long ret = 0;
+		for (int i = position; i > 0; i -= i & -i) {
+			ret += mFeeSums.get (i);
+		}
+
+		return (ret);
+	}
+
+	private void setFee (int position, long fee) {
+		long delta = fee - mFees.getAndSet (position, fee);
+		if (delta != 0) {
+			for (int i = position + 1; i < mFeeSums.length (); i += i & -i) {
+				mFeeSums.addAndGet (i, delta);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether everything the latest execution of a transaction has read is unchanged
+	 */
+	private boolean isValid (int position) {
+		Execution execution = mExecutions.get (position);
+		if (mPrevSameId[position] >= 0 && findTakenBy (position) != execution.mTakenBy) {
+			return (false);
+		}
+		if (!execution.mBalancesRead) {
+			return (true);
+		}
+
+		Transaction t = mTransactions[position];
+		return (read (t.getPayer (), mPayerRank[position], position) == execution.mPayerRead &&
+				read (t.getReceiver (), mReceiverRank[position], position) == execution.mReceiverRead);
+	}
+
+	/**
+	 * Executes a transaction, replacing the results of its previous execution
+	 */
+	private void execute (int position) {
+		Transaction transaction = mTransactions[position];
+		Execution execution = new Execution ();
+		execution.mError = speculate (transaction, position, execution);
+
+		boolean masterInvolved = MASTER_ACCOUNT.equals (transaction.getPayer ()) ||
+				MASTER_ACCOUNT.equals (transaction.getReceiver ());
+		setFee (position, (execution.mError == null && !masterInvolved) ? transaction.getFee () : 0);
+		mExecutions.set (position, execution);
+	}
+
+	/**
+	 * Validates a transaction and computes its changes, as the serial transfer does,
+	 * except that the fee is kept apart unless the master account is involved anyway
+	 * @return the reason for the rejection; null if the transaction is accepted
+	 */
+	private String speculate (Transaction transaction, int position, Execution execution) {
+		if (mPrevSameId[position] == -2) {
+			return (Block.duplicateIdentifier (transaction));
+		} else if (mPrevSameId[position] >= 0) {
+			execution.mTakenBy = findTakenBy (position);
+			if (execution.mTakenBy >= 0) {
+				return (Block.duplicateIdentifier (transaction));
+			}
+		}
+
+		String from = transaction.getPayer ();
+		String to = transaction.getReceiver ();
+		String error = Block.checkAccounts (transaction, mAccounts.apply (from) != null, mAccounts.apply (to) != null);
+		if (error != null) {
+			return (error);
+		}
+
+		int payerBalance = read (from, mPayerRank[position], position);
+		int receiverBalance = to.equals (from) ? payerBalance : read (to, mReceiverRank[position], position);
+		execution.mPayerRead = payerBalance;
+		execution.mReceiverRead = receiverBalance;
+		execution.mBalancesRead = true;
+		error = Block.checkAmounts (transaction, payerBalance, receiverBalance,
+				MASTER_ACCOUNT.equals (from), MASTER_ACCOUNT.equals (to));
+		if (error != null) {
+			return (error);
+		}
+
+		int amount = transaction.getAmount ();
+		int fee = transaction.getFee ();
+		execution.mPayerWritten = payerBalance - amount - fee;
+		execution.mReceiverWritten = (to.equals (from) ? execution.mPayerWritten : receiverBalance) + amount;
+		if (to.equals (from)) {
+			execution.mPayerWritten = execution.mReceiverWritten;
+		}
+		if (MASTER_ACCOUNT.equals (from)) {
+			execution.mPayerWritten += fee;
+		}
+		if (MASTER_ACCOUNT.equals (to)) {
+			execution.mReceiverWritten += fee;
+		}
+		return (null);
+	}
+}
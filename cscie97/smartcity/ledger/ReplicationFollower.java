@@ -0,0 +1,142 @@
+package cscie97.smartcity.ledger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Objects;
+
+/**
+ * The client through which a replica receives the committed blocks of its leader
+ * (@see Ledger#followLeader, ReplicationLeader). It asks the leader for the blocks
+ * following the last one the replica has committed, and a dedicated thread commits
+ * each received block, once it is verified against its hash and linked to the
+ * previous one, exactly as an imported block; so the replica holds the same chain
+ * as the leader, and can answer the same queries.
+ * <p>
+ * The replication stops at the first error, such as a block that fails the
+ * verification or a lost connection; the blocks committed so far stay in the replica,
+ * which can follow the leader again to catch up from there.
+ */
+public final class ReplicationFollower implements LedgerConstants {
+
+	private final Ledger mLedger;
+
+	private final Socket mSocket;
+
+	private final WireFormat.Reader mReader;
+
+	private final Thread mReceiveThread;
+
+	private volatile LedgerException mError = null;
+
+	private volatile boolean mEnded = false;
+
+	private volatile boolean mClosed = false;
+
+	/**
+	 * Connects to the leader, and checks that it holds a chain of the same seed
+	 * @param ledger The replica
+	 * @param name The name of the replica, for the thread name
+	 * @param host The host of the leader
+	 * @param port The port of the leader
+	 * @param from The number of the first block the replica is missing
+	 * @throws LedgerException if the leader cannot be reached, or has a different seed
+	 */
+	ReplicationFollower (Ledger ledger, String name, String host, int port, int from) throws LedgerException {
+		mLedger = ledger;
+		try {
+			mSocket = new Socket (host, port);
+		} catch (IOException iox) {
+			throw new LedgerException (OP_REPLICATE, "Cannot reach the leader at " + host + ":" + port + ": " + iox.getMessage ());
+		}
+
+		try {
+			mSocket.setTcpNoDelay (true);
+			OutputStream out = mSocket.getOutputStream ();
+			WireFormat.writeVarInt (out, from);
+			out.flush ();
+
+			InputStream in = mSocket.getInputStream ();
+			mReader = new WireFormat.Reader (in);
+			if (!Objects.equals (ledger.getSeed (), Objects.toString (mReader.getSeed (), ""))) {
+				throw new LedgerException (OP_REPLICATE, "the leader at " + host + ":" + port +
+						" holds the chain of another seed");
+			}
+		} catch (IOException | LedgerException x) {
+			closeSocket ();
+			throw (x instanceof LedgerException) ? (LedgerException) x :
+					new LedgerException (OP_REPLICATE, "Cannot reach the leader at " + host + ":" + port + ": " + x.getMessage ());
+		}
+
+		mReceiveThread = new Thread (this::receive, "ledger-" + name + "-follower");
+		mReceiveThread.setDaemon (true);
+		mReceiveThread.start ();
+	}
+
+	/**
+	 * The loop of the receive thread: commits the received blocks, until the leader
+	 * ends the stream, the replication fails or the follower is closed
+	 */
+	private void receive () {
+		try {
+			for (Block block; (block = mReader.readBlock (mLedger.getCommittedState (), mLedger.getTransactionIndex ())) != null; ) {
+				mLedger.applyReplicated (block);
+			}
+			mEnded = true;
+		} catch (IOException iox) {
+			if (!mClosed) {
+				mError = new LedgerException (OP_REPLICATE, "The connection to the leader was lost: " + iox.getMessage ());
+			}
+		} catch (LedgerException lx) {
+			if (!mClosed) {
+				mError = lx;
+			}
+		} finally {
+			closeSocket ();
+		}
+	}
+
+	private void closeSocket () {
+		try {
+			mSocket.close ();
+		} catch (IOException iox) {
+			// already closed
+		}
+	}
+
+	/**
+	 * @return true while the replica receives the blocks of the leader
+	 */
+	public boolean isActive () {
+		return (mReceiveThread.isAlive ());
+	}
+
+	/**
+	 * @return true if the leader ended the stream, as it does when it is closed
+	 */
+	public boolean isEnded () {
+		return (mEnded);
+	}
+
+	/**
+	 * @return the error that stopped the replication; null if there was none
+	 */
+	public LedgerException getError () {
+		return (mError);
+	}
+
+	/**
+	 * Disconnects from the leader and waits for the receive thread to stop; a block
+	 * being committed is committed in full
+	 */
+	void shutdown () {
+		mClosed = true;
+		closeSocket ();
+		try {
+			mReceiveThread.join ();
+		} catch (InterruptedException ix) {
+			Thread.currentThread ().interrupt ();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package cscie97.smartcity.ledger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The server that streams the committed blocks of a ledger to its replicas
+ * (@see Ledger#serveReplicas, ReplicationFollower). It listens on the loopback
+ * interface; each replica connects, sends the number of the first block it is
+ * missing, as a varint, and receives a stream in the wire format of the exported
+ * chains (@see WireFormat): the missing blocks, then every block as soon as it is
+ * committed. A replica that falls behind catches up from the same stream, as the
+ * blocks are read back from the ledger by number.
+ * <p>
+ * Each replica is served by its own thread; a replica that disconnects only ends
+ * its own stream. Closing the server ends all streams.
+ */
+public final class ReplicationLeader implements LedgerConstants {
+
+	private final Ledger mLedger;
+
+	private final ServerSocket mServer;
+
+	private final Thread mAcceptThread;
+
+	/**
+	 * The sockets and the threads of the connected replicas; each sender removes its
+	 * own entries once its stream ends
+	 */
+	private final List<Socket> mSockets = new ArrayList<> ();
+
+	private final List<Thread> mSenders = new ArrayList<> ();
+
+	/**
+	 * The number of replicas that connected so far, for the thread names
+	 */
+	private int mConnected = 0;
+
+	private volatile boolean mClosed = false;
+
+	/**
+	 * @param ledger The ledger whose blocks are served
+	 * @param name The name of the ledger, for the thread names
+	 * @param port The port; 0 to pick a free one
+	 * @throws LedgerException if the socket cannot be opened
+	 */
+	ReplicationLeader (Ledger ledger, String name, int port) throws LedgerException {
+		mLedger = ledger;
+		try {
+			mServer = new ServerSocket (port, 0, InetAddress.getLoopbackAddress ());
+		} catch (IOException iox) {
+			throw new LedgerException (OP_REPLICATE, "Cannot open the replication port " + port + ": " + iox.getMessage ());
+		}
+
+		mAcceptThread = new Thread (() -> accept (name), "ledger-" + name + "-replication");
+		mAcceptThread.setDaemon (true);
+		mAcceptThread.start ();
+	}
+
+	/**
+	 * The loop of the accept thread: starts a sender for each replica that connects
+	 */
+	private void accept (String name) {
+		while (!mClosed) {
+			try {
+				Socket socket = mServer.accept ();
+				synchronized (this) {
+					if (mClosed) {
+						socket.close ();
+						break;
+					}
+					Thread sender = new Thread (() -> send (socket), "ledger-" + name + "-replica-" + mConnected ++);
+					sender.setDaemon (true);
+					mSockets.add (socket);
+					mSenders.add (sender);
+					sender.start ();
+				}
+			} catch (IOException iox) {
+				// the server socket is closed, or the connection failed before it was accepted
+			}
+		}
+	}
+
+	/**
+	 * The loop of a sender thread: streams the blocks from the one the replica asks for,
+	 * until the server is closed or the replica disconnects
+	 */
+	private void send (Socket socket) {
+		try (Socket s = socket) {
+			s.setTcpNoDelay (true);
+			InputStream in = s.getInputStream ();
+			OutputStream out = s.getOutputStream ();
+			int next = (int) Math.min (Integer.MAX_VALUE, Math.max (1, WireFormat.readVarInt (in)));
+
+			WireFormat.Writer writer = new WireFormat.Writer (out, mLedger.getSeed ());
+			writer.flush ();
+			// once closed, the blocks committed so far are sent before the final mark
+			boolean closed;
+			do {
+				closed = mClosed;
+				int committed = mLedger.awaitCommitted (next, closed ? 0 : REPLICATION_POLL_MILLIS);
+				for (; next <= committed; next ++) {
+					writer.writeBlock (mLedger.getBlock (next));
+				}
+				writer.flush ();
+			} while (!closed);
+			writer.finish ();
+		} catch (IOException | LedgerException x) {
+			// the replica disconnected, or the block could not be read back; the replica
+			// sees the stream end without its final mark, and may connect again
+		} finally {
+			synchronized (this) {
+				mSockets.remove (socket);
+				mSenders.remove (Thread.currentThread ());
+			}
+		}
+	}
+
+	/**
+	 * @return the port the server listens on
+	 */
+	public int getPort () {
+		return (mServer.getLocalPort ());
+	}
+
+	/**
+	 * @return the number of replicas currently connected
+	 */
+	public synchronized int getReplicaCount () {
+		return (mSenders.size ());
+	}
+
+	/**
+	 * Stops accepting replicas and ends the streams of the connected ones, sending them
+	 * the final mark once they have received the blocks committed so far
+	 */
+	void shutdown () {
+		List<Thread> threads;
+		synchronized (this) {
+			mClosed = true;
+			threads = new ArrayList<> (mSenders);
+		}
+		try {
+			mServer.close ();
+		} catch (IOException iox) {
+			// nothing else to release
+		}
+
+		try {
+			mAcceptThread.join ();
+			for (Thread sender: threads) {
+				sender.join (2 * REPLICATION_POLL_MILLIS);
+			}
+		} catch (InterruptedException ix) {
+			Thread.currentThread ().interrupt ();
+		}
+
+		// a replica that does not read any more leaves its sender blocked in a write
+		synchronized (this) {
+			for (Socket socket: mSockets) {
+				try {
+					socket.close ();
+				} catch (IOException iox) {
+					// already closed
+				}
+			}
+		}
+	}
+
+	/**
+	 * The string representation of the server; contains its port and the number of replicas
+	 */
+	@Override
+	public String toString () {
+		return ("Replication leader on port " + getPort () + ", " + getReplicaCount () + " replicas connected");
+	}
+}
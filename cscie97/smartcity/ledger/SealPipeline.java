@@ -0,0 +1,166 @@
+package cscie97.smartcity.ledger;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The pipeline that completes the sealing of blocks in the background. A sealed block
+ * is handed over to the sealing stage, which hashes it and writes it to the block log,
+ * while the next block already accepts transactions. The stage works on one block at
+ * a time, in the order of sealing, and a block only enters it once its predecessor
+ * has completed, so the blocks are committed in order.
+ * <p>
+ * The number of blocks in flight is bounded: sealing one more block first waits for
+ * the oldest one to complete. If the stage fails on a block, that block and the ones
+ * after it stay in flight; the failure is reported to the ledger, and they are
+ * submitted to the stage again.
+ * <p>
+ * The pipeline itself is not thread-safe; the ledger only uses it under its monitor.
+ */
+class SealPipeline implements LedgerConstants {
+
+	/**
+	 * The work done on a sealed block by the sealing stage
+	 */
+	interface Stage {
+		void complete (Block block) throws LedgerException;
+	}
+
+	/**
+	 * A block in flight, with the completion of its stage
+	 */
+	private static final class Seal {
+		final Block mBlock;
+
+		CompletableFuture<Void> mDone;
+
+		Seal (Block block) {
+			mBlock = block;
+		}
+	}
+
+	private final ExecutorService mStageThread;
+
+	private final Stage mStage;
+
+	/**
+	 * The maximal number of blocks in flight
+	 */
+	private final int mDepth;
+
+	/**
+	 * The blocks in flight, the oldest first
+	 */
+	private final ArrayDeque<Seal> mInFlight = new ArrayDeque<> ();
+
+	/**
+	 * @param name The name of the stage thread
+	 * @param depth The maximal number of blocks in flight; at least 1
+	 * @param stage The work done on each sealed block
+	 */
+	SealPipeline (String name, int depth, Stage stage) {
+		mDepth = Math.max (1, depth);
+		mStage = stage;
+		mStageThread = Executors.newSingleThreadExecutor ((r) -> {
+			Thread t = new Thread (r, name);
+			t.setDaemon (true);
+			return (t);
+		});
+	}
+
+	/**
+	 * @return the maximal number of blocks in flight
+	 */
+	int getDepth () {
+		return (mDepth);
+	}
+
+	/**
+	 * @return the number of blocks in flight
+	 */
+	int size () {
+		return (mInFlight.size ());
+	}
+
+	/**
+	 * Hands a sealed block over to the sealing stage. The caller must have made room
+	 * for it with {@link #drain(int, Consumer)}, and must not change the block any more
+	 * @param block The sealed block
+	 */
+	void submit (Block block) {
+		Seal seal = new Seal (block);
+		schedule (seal, mInFlight.isEmpty () ? null : mInFlight.peekLast ().mDone);
+		mInFlight.add (seal);
+	}
+
+	private void schedule (Seal seal, CompletableFuture<Void> previous) {
+		Runnable work = () -> {
+			try {
+				mStage.complete (seal.mBlock);
+			} catch (LedgerException lx) {
+				throw new CompletionException (lx);
+			}
+		};
+		// a block whose predecessor failed fails as well, without being worked on
+		seal.mDone = (previous != null) ? previous.thenRunAsync (work, mStageThread) :
+			CompletableFuture.runAsync (work, mStageThread);
+	}
+
+	/**
+	 * Removes the blocks that have completed from the pipeline, in order, and waits for
+	 * the oldest blocks until no more than the given number remain in flight
+	 * @param limit The number of blocks that may remain in flight
+	 * @param commit Receives the completed blocks, in order
+	 * @throws LedgerException if the stage has failed on a block; the remaining
+	 * blocks are then submitted to the stage again
+	 */
+	void drain (int limit, Consumer<Block> commit) throws LedgerException {
+		while (!mInFlight.isEmpty ()) {
+			Seal oldest = mInFlight.peek ();
+			if (mInFlight.size () <= limit && !oldest.mDone.isDone ()) {
+				return;
+			}
+
+			try {
+				oldest.mDone.join ();
+			} catch (CompletionException cx) {
+				retry ();
+				if (cx.getCause () instanceof LedgerException) {
+					throw (LedgerException) cx.getCause ();
+				}
+				throw new LedgerException (OP_SEAL, "could not seal block " + oldest.mBlock.getNumber () +
+						": " + cx.getCause ());
+			}
+			mInFlight.poll ();
+			commit.accept (oldest.mBlock);
+		}
+	}
+
+	/**
+	 * Submits all blocks in flight to the stage again, in order
+	 */
+	private void retry () {
+		CompletableFuture<Void> previous = null;
+		for (Seal seal: mInFlight) {
+			schedule (seal, previous);
+			previous = seal.mDone;
+		}
+	}
+
+	/**
+	 * Stops the stage thread once it has worked on all blocks in flight
+	 */
+	void shutdown () {
+		mStageThread.shutdown ();
+		try {
+			mStageThread.awaitTermination (Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ix) {
+			Thread.currentThread ().interrupt ();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * Decides when the working block of a ledger is sealed, that is, hashed and
+ * committed to the chain. A block is sealed as soon as it reaches any of the
+ * configured limits: the number of transactions, the estimated serialized size
+ * of its transactions, or the time it has been open since its first transaction.
+ * A zero size or time limit means that the limit does not apply.
+ */
+public class SealingPolicy implements LedgerConstants {
+
+	/**
+	 * The maximum number of transactions in a block
+	 */
+	private int mMaxTransactions = TRANSACTIONS_IN_BLOCK;
+
+	/**
+	 * The maximum total serialized size of the transactions in a block, in bytes
+	 */
+	private long mMaxBytes = 0;
+
+	/**
+	 * The maximum time a block with at least one transaction stays open, in milliseconds
+	 */
+	private long mMaxOpenMillis = 0;
+
+	/**
+	 * Builder-pattern setter of the transaction count limit
+	 * @param maxTransactions The maximum number of transactions in a block (at least 1)
+	 * @return The policy
+	 */
+	public SealingPolicy withMaxTransactions (int maxTransactions) {
+		mMaxTransactions = Math.max (1, maxTransactions);
+		return (this);
+	}
+
+	/**
+	 * Builder-pattern setter of the size limit
+	 * @param maxBytes The maximum serialized size of transactions in a block; 0 for no limit
+	 * @return The policy
+	 */
+	public SealingPolicy withMaxBytes (long maxBytes) {
+		mMaxBytes = Math.max (0, maxBytes);
+		return (this);
+	}
+
+	/**
+	 * Builder-pattern setter of the time limit
+	 * @param maxOpenMillis The maximum time a non-empty block stays open; 0 for no limit
+	 * @return The policy
+	 */
+	public SealingPolicy withMaxOpenMillis (long maxOpenMillis) {
+		mMaxOpenMillis = Math.max (0, maxOpenMillis);
+		return (this);
+	}
+
+	public int getMaxTransactions () {
+		return (mMaxTransactions);
+	}
+
+	public long getMaxBytes () {
+		return (mMaxBytes);
+	}
+
+	public long getMaxOpenMillis () {
+		return (mMaxOpenMillis);
+	}
+
+	/**
+	 * Checks the block against the count and size limits
+	 * @param block The working block
+	 * @return true if the block must be sealed
+	 */
+	public boolean isFull (Block block) {
+		return (block.getTransactionCount () >= mMaxTransactions ||
+				(mMaxBytes > 0 && block.getTransactionBytes () >= mMaxBytes));
+	}
+
+	/**
+	 * Checks the block against the time limit
+	 * @param block The working block
+	 * @param now The current time, in milliseconds
+	 * @return true if the block holds transactions and has been open for too long
+	 */
+	public boolean isExpired (Block block, long now) {
+		return (mMaxOpenMillis > 0 && block.getTransactionCount () > 0 &&
+				now - block.getOpenedAt () >= mMaxOpenMillis);
+	}
+
+	/**
+	 * Copies the policy, so that later changes of either one do not affect the other
+	 * @return The copy
+	 */
+	public SealingPolicy copy () {
+		return (new SealingPolicy ().withMaxTransactions (mMaxTransactions)
+				.withMaxBytes (mMaxBytes).withMaxOpenMillis (mMaxOpenMillis));
+	}
+
+	/**
+	 * The string representation of the policy; lists the limits that apply
+	 */
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ("sealing at ");
+		sb.append (mMaxTransactions).append (" transactions");
+		if (mMaxBytes > 0) sb.append (" or ").append (mMaxBytes).append (" bytes");
+		if (mMaxOpenMillis > 0) sb.append (" or ").append (mMaxOpenMillis).append (" ms");
+
+		return (sb.toString ());
+	}
+}
@@ -0,0 +1,724 @@
+package cscie97.smartcity.ledger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+/**
+ * A ledger divided into independent shards, each a {@link Ledger} with its own chain,
+ * its own master account and its own sealing; an account lives in exactly one shard,
+ * chosen by the router from its address (by default, from the hash of the address).
+ * Transfers within a shard are processed by the shard alone, so the shards process
+ * transactions and seal blocks in parallel.
+ * <p>
+ * A transfer between accounts of different shards is processed in two phases, through
+ * the escrow account of the payer's shard:
+ * <ol>
+ * <li>prepare: the payer's shard moves the amount from the payer to the escrow account,
+ * with the fee of the transfer; the transfer keeps its identifier here</li>
+ * <li>commit: the receiver's shard credits the amount to the receiver from its master
+ * account, under the identifier followed by "/credit"; then the payer's shard releases
+ * the escrowed amount to its master account, under the identifier followed by "/settle".
+ * If the credit is rejected, the payer's shard instead refunds the amount and the fee
+ * to the payer, under the identifier followed by "/refund"</li>
+ * </ol>
+ * So the funds are always held by exactly one side, and the master accounts of the
+ * shards settle the balance of the funds that moved between them. The fees of the legs
+ * are paid by the master accounts: a master pays its own fees back to itself, and tops
+ * up the escrow account with the fees of the releases, under an identifier ending with
+ * "/fees"; so the payer of a cross-shard transfer pays what it would pay within a shard,
+ * and nothing for a rejected one. The identifiers ending with the suffixes of the legs
+ * are reserved. Transfers from and to the master account are processed by the shard
+ * of the other account.
+ * <p>
+ * A release that fails, which only an error of a shard itself causes, is kept and
+ * retried on the next {@link #seal()} (@see #retryReleases()); the transfer is reported
+ * by the outcome of its credit all the same.
+ * <p>
+ * A periodic global checkpoint commits the last block of every shard to a chain of
+ * checkpoints (@see Checkpoint). Transaction identifiers are unique within a shard.
+ */
+public class ShardedLedger implements LedgerConstants {
+
+	private static final String CREDIT_SUFFIX = "/credit";
+
+	private static final String SETTLE_SUFFIX = "/settle";
+
+	private static final String REFUND_SUFFIX = "/refund";
+
+	private static final String FEES_SUFFIX = "/fees";
+
+	/**
+	 * The suffixes of the identifiers of the legs of the cross-shard transfers
+	 */
+	private static final String[] RESERVED_SUFFIXES = { CREDIT_SUFFIX, SETTLE_SUFFIX, REFUND_SUFFIX, FEES_SUFFIX };
+
+	private final String mName;
+
+	private final String mSeed;
+
+	private final Ledger[] mShards;
+
+	/**
+	 * Maps an account address to its shard index; applied modulo the number of shards
+	 */
+	private volatile ToIntFunction<String> mRouter = String::hashCode;
+
+	private volatile boolean mHasAccounts = false;
+
+	private final List<Checkpoint> mCheckpoints = new ArrayList<> ();
+
+	private ScheduledExecutorService mCheckpointTimer = null;
+
+	/**
+	 * The numbers of cross-shard transfers committed and aborted
+	 */
+	private final AtomicLong mCrossShardCommitted = new AtomicLong ();
+
+	private final AtomicLong mCrossShardAborted = new AtomicLong ();
+
+	/**
+	 * The number of releases that have failed so far, retried or not
+	 */
+	private final AtomicLong mFailedReleases = new AtomicLong ();
+
+	/**
+	 * The releases that failed and are still to be retried
+	 */
+	private final List<Release> mPendingReleases = new ArrayList<> ();
+
+	/**
+	 * Numbers the top-ups of the escrow accounts
+	 */
+	private final AtomicLong mNextTopUp = new AtomicLong ();
+
+	/**
+	 * Creates the shards, each with its own master and escrow accounts. The seed of
+	 * each shard is derived from the given one, so no block fits the chain of another shard
+	 * @param name The name of the ledger; the shards are named after it
+	 * @param seed The seed of the ledger
+	 * @param shards The number of shards; at least 1
+	 * @throws LedgerException if the number of shards is not valid
+	 */
+	public ShardedLedger (String name, String seed, int shards) throws LedgerException {
+		if (shards < 1) {
+			throw new LedgerException (OP_CREATE_LEDGER, "A sharded ledger needs at least one shard.");
+		}
+
+		mName = name;
+		mSeed = (seed != null) ? seed : "";
+		mShards = new Ledger [shards];
+		for (int iS = 0; iS < shards; iS ++) {
+			mShards[iS] = new Ledger (name + "-" + iS, mSeed + "/shard-" + iS);
+			mShards[iS].createAccount (ESCROW_ACCOUNT);
+		}
+	}
+
+	/**
+	 * Builder-pattern setter of the router, such as one that groups the accounts of a
+	 * city in one shard. The router must map an address to the same shard every time
+	 * @param router Maps an account address to its shard index; applied modulo the number of shards
+	 * @return The ledger
+	 * @throws LedgerException if accounts have already been routed
+	 */
+	public synchronized ShardedLedger withRouter (ToIntFunction<String> router) throws LedgerException {
+		if (mHasAccounts) {
+			throw new LedgerException (OP_CREATE_LEDGER, "The router cannot change once accounts have been created.");
+		}
+
+		mRouter = router;
+		return (this);
+	}
+
+	/**
+	 * Builder-pattern setter of the global checkpoints. Starts the background timer
+	 * that takes a checkpoint at the given interval
+	 * @param intervalMillis The interval, in milliseconds; 0 to stop taking checkpoints
+	 * @return The ledger
+	 */
+	public synchronized ShardedLedger withCheckpoints (long intervalMillis) {
+		stopCheckpointTimer ();
+		if (intervalMillis > 0) {
+			mCheckpointTimer = Executors.newSingleThreadScheduledExecutor ((r) -> {
+				Thread t = new Thread (r, "ledger-" + mName + "-checkpoint-timer");
+				t.setDaemon (true);
+				return (t);
+			});
+			mCheckpointTimer.scheduleAtFixedRate (this::checkpointQuietly, intervalMillis, intervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+
+		return (this);
+	}
+
+	private void stopCheckpointTimer () {
+		if (mCheckpointTimer != null) {
+			mCheckpointTimer.shutdownNow ();
+			mCheckpointTimer = null;
+		}
+	}
+
+	/**
+	 * Invoked periodically by the checkpoint timer
+	 */
+	private void checkpointQuietly () {
+		try {
+			checkpoint ();
+		} catch (LedgerException lx) {
+			// a shard failed to commit a block; the next checkpoint will try again
+		}
+	}
+
+	/**
+	 * @return the shards, in the order of their indices; each can be configured
+	 * through its builder-pattern setters
+	 */
+	public List<Ledger> getShards () {
+		return (Collections.unmodifiableList (Arrays.asList (mShards)));
+	}
+
+	/**
+	 * @param address The account address
+	 * @return the index of the shard holding the account
+	 */
+	public int getShardIndex (String address) {
+		return (Math.floorMod (mRouter.applyAsInt (address), mShards.length));
+	}
+
+	/**
+	 * @return true if the account exists in every shard
+	 */
+	private static boolean isShardAccount (String address) {
+		return (MASTER_ACCOUNT.equals (address) || ESCROW_ACCOUNT.equals (address));
+	}
+
+	/**
+	 * Creates an account in its shard
+	 * @param address The account address
+	 * @return the account
+	 * @throws LedgerException if the account already exists, or the address is reserved
+	 */
+	public Account createAccount (String address) throws LedgerException {
+		if (address == null || isShardAccount (address)) {
+			throw new LedgerException (OP_CREATE_ACCOUNT, "The account address " + address + " is reserved.");
+		}
+
+		mHasAccounts = true;
+		return (mShards[getShardIndex (address)].createAccount (address));
+	}
+
+	/**
+	 * Obtains the balance of an account from its shard (@see Ledger#getAccountBalance(String))
+	 * @param address The account address
+	 * @throws LedgerException if the account does not exist, or exists in every shard,
+	 * as the master and the escrow accounts do; query those on the shards
+	 */
+	public int getAccountBalance (String address) throws LedgerException {
+		if (isShardAccount (address)) {
+			throw new LedgerException (OP_GET_BALANCE, "Account " + address + " exists in every shard; query it on a shard.");
+		}
+
+		return (mShards[getShardIndex (address)].getAccountBalance (address));
+	}
+
+	/**
+	 * Obtains the balances of the accounts of all shards, except for the master
+	 * and the escrow accounts of the shards
+	 * @throws LedgerException if a shard cannot answer balance inquiries
+	 */
+	public Map<String, Integer> getAccountBalances () throws LedgerException {
+		Map<String, Integer> ret = new HashMap<> ();
+		for (Ledger shard: mShards) {
+			ret.putAll (shard.getAccountBalances ());
+		}
+		ret.remove (MASTER_ACCOUNT);
+		ret.remove (ESCROW_ACCOUNT);
+
+		return (ret);
+	}
+
+	/**
+	 * Finds a committed transaction in the shards; the phases of a cross-shard
+	 * transfer are found under their own identifiers
+	 * @param id The transaction identifier
+	 * @throws LedgerException if no shard holds such a transaction
+	 */
+	public Transaction getTransaction (String id) throws LedgerException {
+		for (Ledger shard: mShards) {
+			try {
+				return (shard.getTransaction (id));
+			} catch (LedgerException lx) {
+				// not in this shard
+			}
+		}
+
+		throw new LedgerException (OP_GET_TRANSACTION, "Transaction " + id + " does not exist in any of the committed blocks.");
+	}
+
+	/**
+	 * @return the shard processing the transaction, or the payer's shard of a cross-shard transfer
+	 */
+	private int sourceShard (Transaction transaction) {
+		String payer = transaction.getPayer ();
+		return (getShardIndex (isShardAccount (payer) ? transaction.getReceiver () : payer));
+	}
+
+	/**
+	 * @return the shard of the receiver of a cross-shard transfer; the source shard otherwise
+	 */
+	private int targetShard (Transaction transaction) {
+		String receiver = transaction.getReceiver ();
+		return (isShardAccount (receiver) ? sourceShard (transaction) : getShardIndex (receiver));
+	}
+
+	/**
+	 * Processes a transaction in its shard, or as a cross-shard transfer
+	 * @param t The transaction
+	 * @throws LedgerException if the transaction is rejected; a rejected cross-shard
+	 * transfer has been refunded to the payer
+	 */
+	public void processTransaction (Transaction t) throws LedgerException {
+		LedgerException error = checkReserved (t);
+		if (error != null) {
+			throw error;
+		}
+
+		int source = sourceShard (t);
+		int target = targetShard (t);
+		if (source == target) {
+			mShards[source].processTransaction (t);
+			return;
+		}
+
+		mShards[source].processTransaction (prepareLeg (t));
+		try {
+			mShards[target].processTransaction (creditLeg (t));
+		} catch (LedgerException lx) {
+			mCrossShardAborted.incrementAndGet ();
+			LedgerException releaseError = release (new Release (source, t, refundLeg (t)));
+			if (releaseError != null) {
+				lx.addSuppressed (releaseError);
+			}
+			throw lx;
+		}
+		mCrossShardCommitted.incrementAndGet ();
+		release (new Release (source, t, settleLeg (t)));
+	}
+
+	/**
+	 * A release of the escrowed funds of a cross-shard transfer, in the payer's shard
+	 */
+	private static final class Release {
+		final int mShard;
+
+		final Transaction mLeg;
+
+		/**
+		 * The funds the release needs beyond the escrowed amount: its fee, and the fee of
+		 * the transfer a refund returns
+		 */
+		final int mTopUp;
+
+		Release (int shard, Transaction t, Transaction leg) {
+			mShard = shard;
+			mLeg = leg;
+			mTopUp = leg.getAmount () - t.getAmount () + leg.getFee ();
+		}
+	}
+
+	/**
+	 * Releases the escrowed funds of a cross-shard transfer, after topping up the escrow
+	 * account with the funds the release needs beyond the escrowed amount. If the release
+	 * fails, it is kept to be retried
+	 * @return the error of the release; null if it is accepted
+	 */
+	private LedgerException release (Release release) {
+		try {
+			mShards[release.mShard].processTransaction (topUpLeg (release.mTopUp));
+			mShards[release.mShard].processTransaction (release.mLeg);
+			return (null);
+		} catch (LedgerException lx) {
+			releaseFailed (release);
+			return (lx);
+		}
+	}
+
+	/**
+	 * Keeps a failed release to be retried, unless the shard has accepted it all the same,
+	 * as when the block it filled could not be written to the block log
+	 */
+	private void releaseFailed (Release release) {
+		if (mShards[release.mShard].getTransactionIndex ().contains (release.mLeg.getId ())) {
+			return;
+		}
+
+		mFailedReleases.incrementAndGet ();
+		synchronized (mPendingReleases) {
+			mPendingReleases.add (release);
+		}
+	}
+
+	/**
+	 * Retries the releases that have failed, each after topping up the escrow account anew;
+	 * so an escrow account may be left with more than it needs, but never with less
+	 * @return the number of releases still to be retried
+	 */
+	public int retryReleases () {
+		List<Release> releases;
+		synchronized (mPendingReleases) {
+			releases = new ArrayList<> (mPendingReleases);
+			mPendingReleases.clear ();
+		}
+
+		for (Release release: releases) {
+			try {
+				mShards[release.mShard].processTransaction (topUpLeg (release.mTopUp));
+				mShards[release.mShard].processTransaction (release.mLeg);
+			} catch (LedgerException lx) {
+				if (!mShards[release.mShard].getTransactionIndex ().contains (release.mLeg.getId ())) {
+					synchronized (mPendingReleases) {
+						mPendingReleases.add (release);
+					}
+				}
+			}
+		}
+
+		return (getPendingReleases ());
+	}
+
+	/**
+	 * Processes a batch of transactions (@see Ledger#processTransactions). The shards
+	 * process their parts of the batch in parallel, each in the order of the batch; the
+	 * prepare phases of the cross-shard transfers are processed in the payers' shards
+	 * along with the other transactions, then the remaining phases in further rounds
+	 * @param transactions The transactions
+	 * @return the result of each transaction, in order; an accepted cross-shard transfer
+	 * reports the block of the payer's shard that accepted its prepare phase
+	 */
+	public List<TransactionResult> processTransactions (List<Transaction> transactions) {
+		int count = transactions.size ();
+		TransactionResult[] results = new TransactionResult [count];
+		int[] sources = new int [count];
+		int[] targets = new int [count];
+		for (int iT = 0; iT < count; iT ++) {
+			sources[iT] = sourceShard (transactions.get (iT));
+			targets[iT] = targetShard (transactions.get (iT));
+		}
+
+		// the transactions of each shard, and the prepare phases of the cross-shard transfers
+		List<List<Integer>> round = newRound ();
+		for (int iT = 0; iT < count; iT ++) {
+			LedgerException error = checkReserved (transactions.get (iT));
+			if (error != null) {
+				results[iT] = new TransactionResult (transactions.get (iT), 0, error);
+			} else {
+				round.get (sources[iT]).add (iT);
+			}
+		}
+		TransactionResult[] prepared = runRound (round, count, (iT) -> (sources[iT] == targets[iT]) ?
+				transactions.get (iT) : prepareLeg (transactions.get (iT)), null);
+		for (int iT = 0; iT < count; iT ++) {
+			if (prepared[iT] != null) {
+				results[iT] = new TransactionResult (transactions.get (iT), prepared[iT].getBlockNumber (), prepared[iT].getError ());
+			}
+		}
+
+		// the credits of the prepared transfers, in the receivers' shards
+		round = newRound ();
+		for (int iT = 0; iT < count; iT ++) {
+			if (sources[iT] != targets[iT] && prepared[iT] != null && prepared[iT].isAccepted ()) {
+				round.get (targets[iT]).add (iT);
+			}
+		}
+		TransactionResult[] credited = runRound (round, count, (iT) -> creditLeg (transactions.get (iT)), null);
+
+		// the settlements of the credited transfers and the refunds of the others, after
+		// a top-up of each escrow account with the funds they need beyond the escrowed amounts
+		round = newRound ();
+		Release[] releases = new Release [count];
+		long[] topUps = new long [mShards.length];
+		for (int iT = 0; iT < count; iT ++) {
+			if (credited[iT] != null) {
+				round.get (sources[iT]).add (iT);
+				Transaction t = transactions.get (iT);
+				releases[iT] = new Release (sources[iT], t, credited[iT].isAccepted () ? settleLeg (t) : refundLeg (t));
+				topUps[sources[iT]] += releases[iT].mTopUp;
+			}
+		}
+		TransactionResult[] released = runRound (round, count, (iT) -> releases[iT].mLeg,
+				(iS) -> topUpLeg ((int) Math.min (topUps[iS], Integer.MAX_VALUE)));
+		for (int iT = 0; iT < count; iT ++) {
+			if (credited[iT] == null) {
+				continue;
+			} else if (credited[iT].isAccepted ()) {
+				mCrossShardCommitted.incrementAndGet ();
+			} else {
+				mCrossShardAborted.incrementAndGet ();
+				results[iT] = new TransactionResult (transactions.get (iT), 0, credited[iT].getError ());
+			}
+
+			// the transfer is reported by its credit; a failed release is retried later
+			if (!released[iT].isAccepted ()) {
+				releaseFailed (releases[iT]);
+			}
+		}
+
+		return (Arrays.asList (results));
+	}
+
+	private List<List<Integer>> newRound () {
+		List<List<Integer>> ret = new ArrayList<> (mShards.length);
+		for (int iS = 0; iS < mShards.length; iS ++) {
+			ret.add (new ArrayList<> ());
+		}
+
+		return (ret);
+	}
+
+	/**
+	 * Processes one round of a batch: the shards process their parts in parallel
+	 * @param round The positions of the transactions of each shard, in the batch
+	 * @param count The size of the batch
+	 * @param leg Builds the transaction a shard processes for a position
+	 * @param lead Builds the transaction a shard processes ahead of its part, by shard index;
+	 * null for none
+	 * @return the results, by position in the batch; null for the positions not in the round
+	 */
+	private TransactionResult[] runRound (List<List<Integer>> round, int count, IntFunction<Transaction> leg,
+			IntFunction<Transaction> lead)
+	{
+		TransactionResult[] ret = new TransactionResult [count];
+
+		IntStream.range (0, mShards.length).parallel ().filter ((iS) -> !round.get (iS).isEmpty ()).forEach ((iS) -> {
+			List<Integer> part = round.get (iS);
+			List<Transaction> batch = new ArrayList<> (part.size () + 1);
+			if (lead != null) {
+				batch.add (lead.apply (iS));
+			}
+			int offset = batch.size ();
+			for (int iT: part) {
+				batch.add (leg.apply (iT));
+			}
+			List<TransactionResult> results = mShards[iS].processTransactions (batch);
+			for (int iR = 0; iR < part.size (); iR ++) {
+				ret[part.get (iR)] = results.get (offset + iR);
+			}
+		});
+
+		return (ret);
+	}
+
+	/**
+	 * @return the reason for rejecting a transaction that moves the funds of an escrow
+	 * account, or takes an identifier reserved for the legs of the cross-shard transfers,
+	 * which only those transfers do; null for any other transaction
+	 */
+	private static LedgerException checkReserved (Transaction t) {
+		if (ESCROW_ACCOUNT.equals (t.getPayer ()) || ESCROW_ACCOUNT.equals (t.getReceiver ())) {
+			return (new LedgerException (OP_TRANSACTION, "Invalid transaction " + t.getId () +
+					": the escrow accounts only take part in cross-shard transfers."));
+		}
+		for (String suffix: RESERVED_SUFFIXES) {
+			if (t.getId () != null && t.getId ().endsWith (suffix)) {
+				return (new LedgerException (OP_TRANSACTION, "Invalid transaction " + t.getId () +
+						": the identifiers ending with " + suffix + " are reserved for cross-shard transfers."));
+			}
+		}
+
+		return (null);
+	}
+
+	/**
+	 * @return the prepare phase of a cross-shard transfer: the amount moves from the
+	 * payer to the escrow account, with the fee of the transfer
+	 */
+	private static Transaction prepareLeg (Transaction t) {
+		return (new Transaction (t.getId (), t.getPayer (), ESCROW_ACCOUNT, t.getAmount ())
+				.withFee (t.getFee ()).withPayload (t.getPayload ()));
+	}
+
+	/**
+	 * @return the credit of a cross-shard transfer: the amount moves from the master
+	 * account of the receiver's shard to the receiver
+	 */
+	private static Transaction creditLeg (Transaction t) {
+		return (new Transaction (t.getId () + CREDIT_SUFFIX, MASTER_ACCOUNT, t.getReceiver (), t.getAmount ())
+				.withFee (MINIMUM_FEE).withPayload (t.getPayload ()));
+	}
+
+	/**
+	 * @return the release of the escrowed amount of a credited transfer to the master account
+	 */
+	private static Transaction settleLeg (Transaction t) {
+		return (new Transaction (t.getId () + SETTLE_SUFFIX, ESCROW_ACCOUNT, MASTER_ACCOUNT, t.getAmount ())
+				.withFee (MINIMUM_FEE));
+	}
+
+	/**
+	 * @return the release of the escrowed amount of a rejected transfer back to the payer,
+	 * with the fee the payer paid for it
+	 */
+	private static Transaction refundLeg (Transaction t) {
+		return (new Transaction (t.getId () + REFUND_SUFFIX, ESCROW_ACCOUNT, t.getPayer (), t.getAmount () + t.getFee ())
+				.withFee (MINIMUM_FEE));
+	}
+
+	/**
+	 * @return the top-up of the escrow account of a shard by its master account, with the
+	 * funds releases need beyond the escrowed amounts
+	 */
+	private Transaction topUpLeg (int amount) {
+		return (new Transaction (mNextTopUp.incrementAndGet () + FEES_SUFFIX, MASTER_ACCOUNT, ESCROW_ACCOUNT, amount)
+				.withFee (MINIMUM_FEE));
+	}
+
+	/**
+	 * Retries the failed releases (@see #retryReleases()), then seals the working blocks of all shards, in parallel
+	 * @throws LedgerException if a shard fails to seal its block; the earliest shard is reported
+	 */
+	public void seal () throws LedgerException {
+		retryReleases ();
+		LedgerException[] errors = new LedgerException [mShards.length];
+		IntStream.range (0, mShards.length).parallel ().forEach ((iS) -> {
+			try {
+				mShards[iS].seal ();
+			} catch (LedgerException lx) {
+				errors[iS] = lx;
+			}
+		});
+		for (LedgerException lx: errors) {
+			if (lx != null) {
+				throw lx;
+			}
+		}
+	}
+
+	/**
+	 * Takes a global checkpoint of the blocks the shards have committed so far
+	 * @return the checkpoint
+	 * @throws LedgerException if a shard fails to commit a sealed block
+	 */
+	public synchronized Checkpoint checkpoint () throws LedgerException {
+		int[] numbers = new int [mShards.length];
+		byte[][] hashes = new byte [mShards.length][];
+		for (int iS = 0; iS < mShards.length; iS ++) {
+			numbers[iS] = mShards[iS].awaitCommitted (0, 0);
+			hashes[iS] = (numbers[iS] > 0) ? mShards[iS].getBlockHeader (numbers[iS]).getRawHash () : new byte [0];
+		}
+
+		byte[] prevHash = mCheckpoints.isEmpty () ? new byte [0] : mCheckpoints.get (mCheckpoints.size () - 1).getRawHash ();
+		Checkpoint ret = new Checkpoint (mSeed, mCheckpoints.size () + 1, prevHash, numbers, hashes);
+		mCheckpoints.add (ret);
+		return (ret);
+	}
+
+	/**
+	 * @return the checkpoints taken so far, the earliest first
+	 */
+	public synchronized List<Checkpoint> getCheckpoints () {
+		return (new ArrayList<> (mCheckpoints));
+	}
+
+	/**
+	 * Validates the chains of all shards (@see Ledger#validate(boolean)) and the chain of
+	 * checkpoints: each checkpoint against its hash, its link to the previous one and the
+	 * blocks of the shards it commits
+	 * @param full if true, all blocks of the shards are verified; otherwise only those
+	 * committed since their last successful validation
+	 * @throws LedgerException if a verification error is encountered
+	 */
+	public void validate (boolean full) throws LedgerException {
+		for (Ledger shard: mShards) {
+			shard.validate (full);
+		}
+
+		byte[] prevHash = new byte [0];
+		for (Checkpoint checkpoint: getCheckpoints ()) {
+			checkpoint.verify (mSeed);
+			if (!Arrays.equals (prevHash, checkpoint.getRawPreviousHash ())) {
+				throw new LedgerException (OP_CHECKPOINT, "Checkpoint " + checkpoint.getNumber () +
+						" does not follow checkpoint " + (checkpoint.getNumber () - 1));
+			}
+			for (int iS = 0; iS < mShards.length; iS ++) {
+				int number = checkpoint.getBlockNumber (iS);
+				if (number > 0 && !Arrays.equals (checkpoint.getBlockHash (iS),
+						mShards[iS].getBlockHeader (number).getRawHash ())) {
+					throw new LedgerException (OP_CHECKPOINT, "Checkpoint " + checkpoint.getNumber () +
+							" does not match block " + number + " of shard " + iS);
+				}
+			}
+			prevHash = checkpoint.getRawHash ();
+		}
+	}
+
+	/**
+	 * @return the number of cross-shard transfers committed so far
+	 */
+	public long getCrossShardCommitted () {
+		return (mCrossShardCommitted.get ());
+	}
+
+	/**
+	 * @return the number of cross-shard transfers aborted and refunded so far
+	 */
+	public long getCrossShardAborted () {
+		return (mCrossShardAborted.get ());
+	}
+
+	/**
+	 * @return the number of releases that have failed so far, including those retried since
+	 */
+	public long getFailedReleases () {
+		return (mFailedReleases.get ());
+	}
+
+	/**
+	 * @return the number of failed releases still to be retried; as long as there are any,
+	 * funds are held in the escrow accounts
+	 */
+	public int getPendingReleases () {
+		synchronized (mPendingReleases) {
+			return (mPendingReleases.size ());
+		}
+	}
+
+	/**
+	 * Stops taking checkpoints and closes all shards (@see Ledger#close)
+	 * @throws LedgerException if a shard could not be closed; the earliest shard is reported
+	 */
+	public void close () throws LedgerException {
+		synchronized (this) {
+			stopCheckpointTimer ();
+		}
+
+		LedgerException error = null;
+		for (Ledger shard: mShards) {
+			try {
+				shard.close ();
+			} catch (LedgerException lx) {
+				error = (error != null) ? error : lx;
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * The string representation of the ledger; contains its name, seed and number of shards
+	 */
+	@Override
+	public String toString () {
+		return ("Sharded ledger " + mName + ", seed " + mSeed + ", " + mShards.length + " shards");
+	}
+}
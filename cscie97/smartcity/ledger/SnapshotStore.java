@@ -0,0 +1,255 @@
+package cscie97.smartcity.ledger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The directory of snapshots of the account state of the ledger. A snapshot holds
+ * the state of all accounts as of a committed block, together with the hash of that
+ * block and the Merkle root of the accounts, so it can be verified when it is loaded.
+ * Each snapshot is a file named after the block number; it is written under a temporary
+ * name and renamed when complete, so a snapshot interrupted by a crash is never seen.
+ * <p>
+ * The file holds a format marker, the block number, the block hash, the account root,
+ * the number of accounts and the accounts (address and balance), followed by the CRC-32
+ * of all the preceding bytes; the encoding is the same as that of the block log
+ * (@see BlockCodec).
+ */
+public class SnapshotStore implements LedgerConstants {
+
+	private static final String SNAPSHOT_PREFIX = "state-";
+
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	/**
+	 * The marker at the start of every snapshot file
+	 */
+	private static final int FORMAT_MARKER = 0x534E4150;
+
+	/**
+	 * The number of the most recent snapshots kept; older ones are deleted
+	 */
+	private static final int SNAPSHOTS_KEPT = 2;
+
+	/**
+	 * The account state of a committed block, loaded from a snapshot
+	 */
+	public static final class Snapshot {
+		private final int mNumber;
+
+		private final byte[] mBlockHash;
+
+		private final AccountMap mAccounts;
+
+		private Snapshot (int number, byte[] blockHash, AccountMap accounts) {
+			mNumber = number;
+			mBlockHash = blockHash;
+			mAccounts = accounts;
+		}
+
+		/**
+		 * @return the number of the block whose state this is
+		 */
+		public int getNumber () {
+			return (mNumber);
+		}
+
+		/**
+		 * @return the raw hash of the block whose state this is
+		 */
+		public byte[] getBlockHash () {
+			return (mBlockHash);
+		}
+
+		/**
+		 * @return the state of all accounts
+		 */
+		AccountMap getAccounts () {
+			return (mAccounts);
+		}
+	}
+
+	private final Path mDirectory;
+
+	/**
+	 * Opens the snapshot directory, creating it if needed, and removes the
+	 * leftovers of interrupted snapshots
+	 * @param directory The snapshot directory
+	 * @throws LedgerException if the directory cannot be accessed
+	 */
+	public SnapshotStore (Path directory) throws LedgerException {
+		mDirectory = directory;
+		try {
+			Files.createDirectories (directory);
+			try (DirectoryStream<Path> dir = Files.newDirectoryStream (directory, "*" + TEMP_SUFFIX)) {
+				for (Path path: dir) {
+					Files.deleteIfExists (path);
+				}
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_SNAPSHOT, "could not open the snapshot directory " + directory + ": " + iox.getMessage ());
+		}
+	}
+
+	private Path pathOf (int number) {
+		return (mDirectory.resolve (String.format ("%s%010d%s", SNAPSHOT_PREFIX, number, SNAPSHOT_SUFFIX)));
+	}
+
+	/*---------------------------------------------------*/
+	/* public API */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Lists the block numbers of the available snapshots
+	 * @return the block numbers, the most recent first
+	 * @throws LedgerException if the directory cannot be read
+	 */
+	public synchronized List<Integer> getSnapshotNumbers () throws LedgerException {
+		List<Integer> ret = new ArrayList<> ();
+		try (DirectoryStream<Path> dir = Files.newDirectoryStream (mDirectory, SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			for (Path path: dir) {
+				String name = path.getFileName ().toString ();
+				try {
+					ret.add (Integer.valueOf (name.substring (SNAPSHOT_PREFIX.length (), name.length () - SNAPSHOT_SUFFIX.length ())));
+				} catch (NumberFormatException nfx) {
+					// not a snapshot
+				}
+			}
+		} catch (IOException iox) {
+			throw new LedgerException (OP_SNAPSHOT, "could not list the snapshots: " + iox.getMessage ());
+		}
+
+		ret.sort (Collections.reverseOrder ());
+		return (ret);
+	}
+
+	/**
+	 * Writes the snapshot of the account state of a committed block, and deletes the
+	 * snapshots that are no longer needed. The block must not change; the account
+	 * state is read without locking
+	 * @param block The committed block holding the account state
+	 * @throws LedgerException if the snapshot cannot be written
+	 */
+	public void write (Block block) throws LedgerException {
+		write (block, block.getAccountMap ());
+	}
+	
+	/**
+	 * Writes the snapshot of a committed block, given its account state
+	 * @param block The committed block
+	 * @param accounts The account state of the block, taken before the block could release it
+	 * @throws LedgerException if the snapshot cannot be written
+	 */
+	void write (Block block, AccountMap accounts) throws LedgerException {
+		if (accounts == null) {
+			throw new LedgerException (OP_SNAPSHOT, "block " + block.getNumber () + " holds no account state");
+		}
+
+		Path path = pathOf (block.getNumber ());
+		Path temp = path.resolveSibling (path.getFileName () + TEMP_SUFFIX);
+		try (FileChannel channel = FileChannel.open (temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			CheckedOutputStream checked = new CheckedOutputStream (
+					new BufferedOutputStream (Channels.newOutputStream (channel), 1 << 16), new CRC32 ());
+			DataOutputStream out = new DataOutputStream (checked);
+			out.writeInt (FORMAT_MARKER);
+			out.writeInt (block.getNumber ());
+			BlockCodec.writeBytes (out, block.getRawHash ());
+			BlockCodec.writeBytes (out, block.getAccountRoot ());
+			out.writeInt (accounts.size ());
+			for (Account acct: accounts) {
+				BlockCodec.writeString (out, acct.getAddress ());
+				out.writeInt (acct.getBalance ());
+			}
+			out.writeInt ((int) checked.getChecksum ().getValue ());
+			out.flush ();
+			channel.force (false);
+		} catch (IOException iox) {
+			throw new LedgerException (OP_SNAPSHOT, "could not write the snapshot of block " + block.getNumber () + ": " + iox.getMessage ());
+		}
+
+		synchronized (this) {
+			try {
+				Files.move (temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				List<Integer> numbers = getSnapshotNumbers ();
+				for (int iS = SNAPSHOTS_KEPT; iS < numbers.size (); iS ++) {
+					Files.deleteIfExists (pathOf (numbers.get (iS)));
+				}
+			} catch (IOException iox) {
+				throw new LedgerException (OP_SNAPSHOT, "could not store the snapshot of block " + block.getNumber () + ": " + iox.getMessage ());
+			}
+		}
+	}
+
+	/**
+	 * Loads the snapshot of the account state of a committed block, verifying its
+	 * checksum and the Merkle root of the accounts
+	 * @param number The block number
+	 * @return the snapshot
+	 * @throws LedgerException if the snapshot does not exist, is damaged, or does not
+	 * match its account root
+	 */
+	public Snapshot read (int number) throws LedgerException {
+		Path path = pathOf (number);
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+			buf = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+		} catch (IOException iox) {
+			throw new LedgerException (OP_SNAPSHOT, "could not read the snapshot of block " + number + ": " + iox.getMessage ());
+		}
+
+		try {
+			ByteBuffer contents = buf.duplicate ().limit (buf.limit () - Integer.BYTES);
+			CRC32 crc = new CRC32 ();
+			crc.update (contents.duplicate ());
+			if (buf.getInt (contents.limit ()) != (int) crc.getValue () ||
+					contents.getInt () != FORMAT_MARKER || contents.getInt () != number) {
+				throw new LedgerException (OP_SNAPSHOT, "the snapshot of block " + number + " is damaged");
+			}
+
+			byte[] blockHash = BlockCodec.readBytes (contents);
+			byte[] accountRoot = BlockCodec.readBytes (contents);
+			int count = contents.getInt ();
+			AccountMap accounts = AccountMap.EMPTY;
+			for (int iA = 0; iA < count; iA ++) {
+				String address = BlockCodec.readString (contents);
+				accounts = accounts.with (new Account (address).withBalance (contents.getInt ()));
+			}
+
+			if (accounts.size () != count || !MessageDigest.isEqual (accountRoot, accounts.getRootHash ())) {
+				throw new LedgerException (OP_SNAPSHOT, "the snapshot of block " + number + " does not match its account root");
+			}
+
+			return (new Snapshot (number, blockHash, accounts));
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException x) {
+			throw new LedgerException (OP_SNAPSHOT, "the snapshot of block " + number + " is damaged");
+		}
+	}
+
+	/**
+	 * The string representation of the snapshot store; contains its directory
+	 */
+	@Override
+	public String toString () {
+		return ("snapshots in " + mDirectory);
+	}
+}
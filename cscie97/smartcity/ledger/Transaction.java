@@ -1,5 +1,7 @@
 package cscie97.smartcity.ledger;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * This class representc a single transaction - that is, a request to
  * transfre funds from one account to another. It is written as simply a
@@ -39,6 +41,12 @@ public class Transaction implements LedgerConstants {
 	 */
 	private final String mReceiver;
 	
+	/**
+	 * The handles of the payer and the receiver, as last resolved by a ledger
+	 * (@see AddressBook); not part of the contents of the transaction
+	 */
+	private AddressBook.Handles mHandles;
+	
 	public Transaction (String id, String from, String to, int amount) {
 		mId = id;
 		mPayer = from;
@@ -86,6 +94,49 @@ public class Transaction implements LedgerConstants {
 		return mReceiver;
 	}
 
+	public String getPayload () {
+		return mPayload;
+	}
+
+	AddressBook.Handles getHandles () {
+		return mHandles;
+	}
+
+	void setHandles (AddressBook.Handles handles) {
+		mHandles = handles;
+	}
+
+	/**
+	 * Computes the leaf hash of this transaction for the Merkle tree of the block.
+	 * The canonical encoding is: id, payer, receiver (strings), amount, fee (integers),
+	 * payload (string, possibly null); see {@link Hash.Encoder}
+	 * @return the raw leaf hash
+	 */
+	public byte[] computeLeafHash () {
+		return (Hash.leaf ()
+				.putString (mId)
+				.putString (mPayer)
+				.putString (mReceiver)
+				.putInt (mAmount)
+				.putInt (mFee)
+				.putString (mPayload)
+				.hash ());
+	}
+
+	/**
+	 * Estimates the size of this transaction when serialized: the string fields
+	 * as length-prefixed UTF-8, and the amount and the fee as 4-byte integers
+	 * @return the size, in bytes
+	 */
+	public int getSerializedSize () {
+		int size = 2 * Integer.BYTES;
+		for (String field: new String[] { mId, mPayer, mReceiver, mPayload }) {
+			size += Integer.BYTES + (field != null ? field.getBytes (StandardCharsets.UTF_8).length : 0);
+		}
+		
+		return (size);
+	}
+
 	/**
 	 * The string representation of the transaction; contains its identifier,
 	 * amount, the accounts between which the funds are transferred,
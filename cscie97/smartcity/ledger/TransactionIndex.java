@@ -0,0 +1,138 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * The ledger-wide index of transaction identifiers, mapping each identifier
+ * to the number of the block that holds the transaction. It is shared by all
+ * blocks of a chain, so checking an identifier for uniqueness or locating a
+ * transaction takes constant time regardless of the length of the chain.
+ * Implemented as an open-addressing hash table with linear probing, which
+ * avoids allocating an entry object per transaction.
+ * The index is thread-safe, and adding an identifier also checks it for uniqueness,
+ * so concurrent transactions cannot both claim the same identifier.
+ */
+public class TransactionIndex {
+
+	/**
+	 * The initial number of slots; must be a power of two
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The table is doubled once it is more than this fraction full
+	 */
+	private static final float MAX_LOAD = 0.6f;
+
+	/**
+	 * The estimated heap held per identifier: its slots, at the maximal load, and the
+	 * identifier string, which is shared with the transaction
+	 */
+	static final int ENTRY_HEAP_BYTES = 24;
+
+	/**
+	 * The transaction identifiers; null marks an empty slot
+	 */
+	private String[] mIds;
+
+	/**
+	 * The block numbers, parallel to the identifiers
+	 */
+	private int[] mBlocks;
+
+	/**
+	 * The number of identifiers in the table
+	 */
+	private int mSize;
+
+	public TransactionIndex () {
+		mIds = new String [INITIAL_CAPACITY];
+		mBlocks = new int [INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Spreads the hash code of the identifier over the table; the multiplier
+	 * is the 32-bit golden ratio, which scatters sequential identifiers well
+	 */
+	private static int slotOf (String id, int mask) {
+		int h = id.hashCode () * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & mask);
+	}
+
+	/**
+	 * Finds the slot holding the identifier, or the empty slot where it belongs
+	 */
+	private int probe (String id) {
+		int mask = mIds.length - 1;
+		int slot = slotOf (id, mask);
+		while (mIds[slot] != null && !mIds[slot].equals (id)) {
+			slot = (slot + 1) & mask;
+		}
+
+		return (slot);
+	}
+
+	private void grow () {
+		String[] ids = mIds;
+		int[] blocks = mBlocks;
+		mIds = new String [ids.length * 2];
+		mBlocks = new int [ids.length * 2];
+		for (int iS = 0; iS < ids.length; iS ++) {
+			if (ids[iS] != null) {
+				int slot = probe (ids[iS]);
+				mIds[slot] = ids[iS];
+				mBlocks[slot] = blocks[iS];
+			}
+		}
+	}
+
+	/*---------------------------------------------------*/
+	/* public API */
+	/*---------------------------------------------------*/
+
+	/**
+	 * Records the identifier of a transaction accepted into a block
+	 * @param id The transaction identifier
+	 * @param block The number of the block
+	 * @return false if the identifier was already recorded; the index is not changed then
+	 */
+	public synchronized boolean add (String id, int block) {
+		if (mSize + 1 > mIds.length * MAX_LOAD) {
+			grow ();
+		}
+
+		int slot = probe (id);
+		if (mIds[slot] != null) {
+			return (false);
+		}
+
+		mIds[slot] = id;
+		mBlocks[slot] = block;
+		mSize ++;
+		return (true);
+	}
+
+	/**
+	 * Checks whether a transaction with this identifier has been recorded
+	 * @param id The transaction identifier
+	 * @return true if the identifier is present
+	 */
+	public synchronized boolean contains (String id) {
+		return (mIds[probe (id)] != null);
+	}
+
+	/**
+	 * Finds the block that holds the transaction with this identifier
+	 * @param id The transaction identifier
+	 * @return the block number (1-based), or 0 if the identifier is not recorded
+	 */
+	public synchronized int getBlock (String id) {
+		int slot = probe (id);
+		return (mIds[slot] != null ? mBlocks[slot] : 0);
+	}
+
+	/**
+	 * @return the number of recorded identifiers
+	 */
+	public synchronized int size () {
+		return (mSize);
+	}
+}
@@ -0,0 +1,61 @@
+package cscie97.smartcity.ledger;
+
+/**
+ * The outcome of one transaction submitted in a batch (@see Ledger#processTransactions):
+ * either the number of the block that accepted it, or the reason it was rejected.
+ */
+public class TransactionResult {
+
+	private final Transaction mTransaction;
+
+	/**
+	 * The number of the block that accepted the transaction; 0 if it was rejected
+	 */
+	private final int mBlockNumber;
+
+	/**
+	 * The reason for the rejection; null if the transaction was accepted
+	 */
+	private final LedgerException mError;
+
+	TransactionResult (Transaction transaction, int blockNumber, LedgerException error) {
+		mTransaction = transaction;
+		mBlockNumber = blockNumber;
+		mError = error;
+	}
+
+	public Transaction getTransaction () {
+		return (mTransaction);
+	}
+
+	/**
+	 * @return true if the transaction was accepted
+	 */
+	public boolean isAccepted () {
+		return (mError == null);
+	}
+
+	/**
+	 * @return the number of the block that accepted the transaction; 0 if it was rejected
+	 */
+	public int getBlockNumber () {
+		return (mBlockNumber);
+	}
+
+	/**
+	 * @return the reason for the rejection; null if the transaction was accepted
+	 */
+	public LedgerException getError () {
+		return (mError);
+	}
+
+	/**
+	 * The string representation of the result; contains the transaction identifier
+	 * and either the accepting block or the reason for the rejection
+	 */
+	@Override
+	public String toString () {
+		return ("transaction " + mTransaction.getId () +
+				(isAccepted () ? ": accepted into block " + mBlockNumber : ": rejected, " + mError.getMessage ()));
+	}
+}
@@ -0,0 +1,379 @@
+package cscie97.smartcity.ledger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compact, versioned binary format in which a whole chain is exported from one
+ * ledger and imported into another (@see Ledger#exportChain, Ledger#importChain).
+ * Unlike the stored form of the block log (@see BlockCodec), which keeps fixed-width
+ * fields for random access, the wire format is read and written as a stream.
+ * <p>
+ * A stream starts with the magic bytes "SCLX", the format version and the ledger
+ * seed, which the block hashes depend on. Then come the blocks in order, each as a
+ * record prefixed with its length; a zero length ends the stream. A block record holds
+ * the number, the previous hash, the hash and the account root of the block, the table
+ * of the account addresses it refers to, its transactions and the final state of the
+ * accounts changed in it; the transactions and the accounts refer to the addresses by
+ * their position in the table.
+ * <p>
+ * Unsigned numbers (lengths, counts, positions, block numbers) are encoded as varints:
+ * 7 bits per byte, the least significant first, the high bit marking that more bytes
+ * follow. Amounts, fees and balances are zigzag-encoded varints, so small negative
+ * values stay short. Strings are UTF-8, prefixed with their length plus one, 0 standing
+ * for a null string; hashes are prefixed with their length.
+ */
+public final class WireFormat implements LedgerConstants {
+
+	/**
+	 * The version of the format written; streams of later versions are rejected
+	 */
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = { 'S', 'C', 'L', 'X' };
+
+	/**
+	 * The size of the stream buffers
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private WireFormat () {
+	}
+
+	/**
+	 * Writes a chain to a stream, block by block
+	 */
+	static final class Writer {
+		private final OutputStream mOut;
+
+		/**
+		 * The block being encoded; reused for all blocks
+		 */
+		private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream (BUFFER_SIZE);
+
+		/**
+		 * Starts the stream with its header
+		 * @param out The stream; not closed by the writer
+		 * @param seed The ledger seed
+		 */
+		Writer (OutputStream out, String seed) throws IOException {
+			mOut = new BufferedOutputStream (out, BUFFER_SIZE);
+			mOut.write (MAGIC);
+			writeVarInt (mOut, VERSION);
+			writeString (mOut, seed);
+		}
+
+		/**
+		 * Appends the record of a committed block
+		 */
+		void writeBlock (Block block) throws IOException {
+			mRecord.reset ();
+			encodeBlock (mRecord, block);
+			writeVarInt (mOut, mRecord.size ());
+			mRecord.writeTo (mOut);
+		}
+
+		/**
+		 * Sends the buffered records on, so a stream that stays open delivers them
+		 */
+		void flush () throws IOException {
+			mOut.flush ();
+		}
+
+		/**
+		 * Ends the stream and flushes it
+		 */
+		void finish () throws IOException {
+			writeVarInt (mOut, 0);
+			mOut.flush ();
+		}
+	}
+
+	/**
+	 * Reads a chain from a stream, block by block
+	 */
+	static final class Reader {
+		private final InputStream mIn;
+
+		private final String mSeed;
+
+		/**
+		 * Reads the header of the stream
+		 * @param in The stream; not closed by the reader
+		 * @throws LedgerException if the header is not valid, or of a later version
+		 */
+		Reader (InputStream in) throws IOException, LedgerException {
+			mIn = new BufferedInputStream (in, BUFFER_SIZE);
+			if (!Arrays.equals (MAGIC, mIn.readNBytes (MAGIC.length))) {
+				throw new LedgerException (OP_IMPORT, "the stream does not hold an exported chain");
+			}
+			long version = readVarInt (mIn);
+			if (version < 1 || version > VERSION) {
+				throw new LedgerException (OP_IMPORT, "the stream has the unsupported format version " + version);
+			}
+			mSeed = readString (mIn);
+		}
+
+		/**
+		 * @return the seed of the ledger the chain was exported from
+		 */
+		String getSeed () {
+			return (mSeed);
+		}
+
+		/**
+		 * Reads the next block and rebuilds it
+		 * @param prevState The account state of the previous block
+		 * @param index The transaction index of the chain
+		 * @return the rebuilt block, holding its account state; null at the end of the stream
+		 * @throws LedgerException if the record is malformed
+		 */
+		Block readBlock (AccountMap prevState, TransactionIndex index) throws IOException, LedgerException {
+			long length = readVarInt (mIn);
+			if (length == 0) {
+				return (null);
+			} else if (length > Integer.MAX_VALUE) {
+				throw new LedgerException (OP_IMPORT, "malformed block record");
+			}
+
+			byte[] record = mIn.readNBytes ((int) length);
+			if (record.length < length) {
+				throw new LedgerException (OP_IMPORT, "the stream ends within a block record");
+			}
+			return (decodeBlock (ByteBuffer.wrap (record), mSeed, prevState, index));
+		}
+	}
+
+	/**
+	 * Encodes a committed block into a block record
+	 */
+	static void encodeBlock (ByteArrayOutputStream out, Block block) throws IOException {
+		writeVarInt (out, block.getNumber ());
+		writeBytes (out, block.getRawPreviousHash ());
+		writeBytes (out, block.getRawHash ());
+		writeBytes (out, block.getAccountRoot ());
+
+		// the table of the addresses, in the order of their first reference
+		Collection<Transaction> transactions = block.getTransactions ();
+		Collection<Account> accounts = block.getChangedAccounts ();
+		Map<String, Integer> positions = new HashMap<> ();
+		List<String> addresses = new ArrayList<> ();
+		for (Transaction transaction: transactions) {
+			addAddress (positions, addresses, transaction.getPayer ());
+			addAddress (positions, addresses, transaction.getReceiver ());
+		}
+		for (Account acct: accounts) {
+			addAddress (positions, addresses, acct.getAddress ());
+		}
+		writeVarInt (out, addresses.size ());
+		for (String address: addresses) {
+			writeString (out, address);
+		}
+
+		writeVarInt (out, transactions.size ());
+		for (Transaction transaction: transactions) {
+			writeString (out, transaction.getId ());
+			writeVarInt (out, positions.get (transaction.getPayer ()));
+			writeVarInt (out, positions.get (transaction.getReceiver ()));
+			writeSignedVarInt (out, transaction.getAmount ());
+			writeSignedVarInt (out, transaction.getFee ());
+			writeString (out, transaction.getPayload ());
+		}
+
+		writeVarInt (out, accounts.size ());
+		for (Account acct: accounts) {
+			writeVarInt (out, positions.get (acct.getAddress ()));
+			writeSignedVarInt (out, acct.getBalance ());
+		}
+	}
+
+	private static void addAddress (Map<String, Integer> positions, List<String> addresses, String address) {
+		if (positions.putIfAbsent (address, addresses.size ()) == null) {
+			addresses.add (address);
+		}
+	}
+
+	/**
+	 * Rebuilds a committed block from its block record
+	 * @throws LedgerException if the record is malformed
+	 */
+	static Block decodeBlock (ByteBuffer buf, String seed, AccountMap prevState, TransactionIndex index)
+			throws LedgerException
+	{
+		try {
+			int number = readCount (buf);
+			byte[] prevHash = readBytes (buf);
+			byte[] hash = readBytes (buf);
+			byte[] accountRoot = readBytes (buf);
+
+			String[] addresses = new String [readCount (buf)];
+			for (int iA = 0; iA < addresses.length; iA ++) {
+				addresses[iA] = readString (buf);
+			}
+
+			int txCount = readCount (buf);
+			List<Transaction> transactions = new ArrayList<> (txCount);
+			for (int iT = 0; iT < txCount; iT ++) {
+				String id = readString (buf);
+				String payer = addresses[readCount (buf)];
+				String receiver = addresses[readCount (buf)];
+				int amount = readSignedVarInt (buf);
+				int fee = readSignedVarInt (buf);
+				String payload = readString (buf);
+				transactions.add (new Transaction (id, payer, receiver, amount).withFee (fee).withPayload (payload));
+			}
+
+			int acctCount = readCount (buf);
+			List<Account> accounts = new ArrayList<> (acctCount);
+			for (int iA = 0; iA < acctCount; iA ++) {
+				String address = addresses[readCount (buf)];
+				accounts.add (new Account (address).withBalance (readSignedVarInt (buf)));
+			}
+			if (buf.hasRemaining ()) {
+				throw new IllegalArgumentException ();
+			}
+
+			return (new Block (number, seed, prevHash, hash, accountRoot, transactions, accounts, prevState, index));
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException x) {
+			throw new LedgerException (OP_IMPORT, "malformed block record");
+		}
+	}
+
+	/*---------------------------------------------------*/
+	/* varints and strings */
+	/*---------------------------------------------------*/
+
+	static void writeVarInt (OutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.write ((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write ((int) value);
+	}
+
+	static void writeSignedVarInt (OutputStream out, int value) throws IOException {
+		writeVarInt (out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+	}
+
+	static void writeBytes (OutputStream out, byte[] value) throws IOException {
+		writeVarInt (out, value.length);
+		out.write (value);
+	}
+
+	static void writeString (OutputStream out, String value) throws IOException {
+		if (value == null) {
+			writeVarInt (out, 0);
+		} else {
+			byte[] utf8 = value.getBytes (StandardCharsets.UTF_8);
+			writeVarInt (out, utf8.length + 1L);
+			out.write (utf8);
+		}
+	}
+
+	/**
+	 * Reads a varint from a stream
+	 * @throws LedgerException if the stream ends, or the varint is longer than 64 bits
+	 */
+	static long readVarInt (InputStream in) throws IOException, LedgerException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read ();
+			if (b < 0) {
+				throw new LedgerException (OP_IMPORT, "the stream ends unexpectedly");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (value);
+			}
+		}
+
+		throw new LedgerException (OP_IMPORT, "malformed varint in the stream");
+	}
+
+	static long readVarInt (ByteBuffer buf) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buf.get ();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (value);
+			}
+		}
+
+		throw new IllegalArgumentException ("varint too long");
+	}
+
+	/**
+	 * Reads a length, a count or a position, rejecting values that do not fit in an int
+	 */
+	private static int readCount (ByteBuffer buf) {
+		long value = readVarInt (buf);
+		if (value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException ("count too large");
+		}
+
+		return ((int) value);
+	}
+
+	static int readSignedVarInt (ByteBuffer buf) {
+		long value = readVarInt (buf);
+		if (value > 0xFFFFFFFFL) {
+			throw new IllegalArgumentException ("integer too large");
+		}
+
+		int zigzag = (int) value;
+		return ((zigzag >>> 1) ^ -(zigzag & 1));
+	}
+
+	static byte[] readBytes (ByteBuffer buf) {
+		int len = readCount (buf);
+		if (len > buf.remaining ()) {
+			throw new BufferUnderflowException ();
+		}
+
+		byte[] ret = new byte [len];
+		buf.get (ret);
+		return (ret);
+	}
+
+	static String readString (ByteBuffer buf) {
+		int len = readCount (buf);
+		if (len == 0) {
+			return (null);
+		} else if (len - 1 > buf.remaining ()) {
+			throw new BufferUnderflowException ();
+		}
+
+		String ret = new String (buf.array (), buf.arrayOffset () + buf.position (), len - 1, StandardCharsets.UTF_8);
+		buf.position (buf.position () + len - 1);
+		return (ret);
+	}
+
+	private static String readString (InputStream in) throws IOException, LedgerException {
+		long len = readVarInt (in);
+		if (len == 0) {
+			return (null);
+		} else if (len > Integer.MAX_VALUE) {
+			throw new LedgerException (OP_IMPORT, "malformed string in the stream");
+		}
+
+		byte[] utf8 = in.readNBytes ((int) len - 1);
+		if (utf8.length < len - 1) {
+			throw new LedgerException (OP_IMPORT, "the stream ends unexpectedly");
+		}
+		return (new String (utf8, StandardCharsets.UTF_8));
+	}
+}
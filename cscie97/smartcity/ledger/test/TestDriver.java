@@ -12,22 +12,35 @@ import cscie97.smartcity.ledger.CommandProcessor;
 /**
   * The testing harness for the ledger command processor. Passes the incoming file name
   * to the processor and prints the results onto the standard output. If a second argument
-  * is specified, redirects its output into a file with the name taken from this argument
-  * Usage: java com.cscie97.ledger.test.TestDriver <file name containing commands, one per line> [output file name]
+  * is specified, redirects its output into a file with the name taken from this argument.
+  * With the --replay flag, the file is processed in the streaming mode meant for large files
+  * Usage: java com.cscie97.ledger.test.TestDriver [--replay] <file name containing commands, one per line> [output file name]
  */
 public class TestDriver {
+	/**
+	 * The flag that selects the streaming mode
+	 */
+	private static final String REPLAY = "--replay";
+	
 	public static void main(String[] args) {
-		String fileName = args[0];
+		boolean replay = args.length > 0 && REPLAY.equals (args[0]);
+		int first = replay ? 1 : 0;
+		String fileName = args[first];
 		PrintStream p = System.out;
 		
-		if (args.length > 1) {
+		if (args.length > first + 1) {
 			try {
-				p = new PrintStream (args[1], Charset.forName ("UTF-8"));
+				p = new PrintStream (args[first + 1], Charset.forName ("UTF-8"));
 			} catch (IOException iox) {
-				System.err.println ("Could not write to the output file " + args[1] + " - defaulting to standard out.");
+				System.err.println ("Could not write to the output file " + args[first + 1] + " - defaulting to standard out.");
 			}
 		}
 
-		new CommandProcessor ().withPrintStream (p).processCommandFile (fileName);
+		CommandProcessor processor = new CommandProcessor ().withPrintStream (p);
+		if (replay) {
+			processor.replayCommandFile (fileName);
+		} else {
+			processor.processCommandFile (fileName);
+		}
 	}
 }